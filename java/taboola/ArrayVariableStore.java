@@ -0,0 +1,117 @@
+package taboola;
+
+import java.util.Arrays;
+
+/**
+ * Variable store for a Calculator used by one thread at a time.
+ *
+ * Values live in primitive double arrays, so reads and writes involve no boxing and no
+ * synchronization. Slots are numbered process-wide, so the arrays are chunks of
+ * {@value #CHUNK_SIZE} slots allocated when a slot in them is first defined: a
+ * calculator pays for the chunks of the variables it uses, plus one directory entry per
+ * chunk below its highest slot, however many names the process has seen.
+ */
+final class ArrayVariableStore extends VariableStore {
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Chunks by slot >>> CHUNK_BITS; null until a slot in them is defined
+    private double[][] values = new double[1][];
+    // Non-null exactly for the defined slots
+    private Var[][] vars = new Var[1][];
+
+    ArrayVariableStore(Symbols symbols) {
+        super(symbols);
+    }
+
+    @Override
+    boolean isDefined(int slot) {
+        Var[][] vars = this.vars;
+        int chunk = slot >>> CHUNK_BITS;
+        return chunk < vars.length && vars[chunk] != null && vars[chunk][slot & CHUNK_MASK] != null;
+    }
+
+    @Override
+    double get(int slot) {
+        return values[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+    }
+
+    @Override
+    void set(int slot, double value) {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.set(slot, value);
+        }
+        UndoLog undo = this.undo;
+        if (undo != null) {
+            undo.record(this, slot);
+        }
+        if (!isDefined(slot)) {
+            reserve(slot);
+            vars[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = newView(slot);
+        }
+        values[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = value;
+    }
+
+    @Override
+    void remove(int slot) {
+        if (isDefined(slot)) {
+            Journal journal = this.journal;
+            if (journal != null) {
+                journal.remove(slot);
+            }
+            UndoLog undo = this.undo;
+            if (undo != null) {
+                undo.record(this, slot);
+            }
+            Var[] chunk = vars[slot >>> CHUNK_BITS];
+            dropView(chunk[slot & CHUNK_MASK]);
+            chunk[slot & CHUNK_MASK] = null;
+            values[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = 0;
+        }
+    }
+
+    @Override
+    void clear() {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.clear();
+        }
+        UndoLog undo = this.undo;
+        if (undo != null) {
+            for (int chunk = 0; chunk < vars.length; chunk++) {
+                if (vars[chunk] != null) {
+                    for (int i = 0; i < CHUNK_SIZE; i++) {
+                        if (vars[chunk][i] != null) {
+                            undo.record(this, chunk << CHUNK_BITS | i);
+                        }
+                    }
+                }
+            }
+        }
+        values = new double[1][];
+        vars = new Var[1][];
+        synchronized (map) {
+            map.unregisterAll();
+        }
+    }
+
+    /**
+     * Allocates the slot's chunk up front. Parallel execution relies on this: once
+     * reserved, threads assigning different slots never replace arrays under each other.
+     */
+    @Override
+    void reserve(int slot) {
+        int chunk = slot >>> CHUNK_BITS;
+        if (chunk >= vars.length) {
+            int capacity = Math.max(vars.length * 2, chunk + 1);
+            values = Arrays.copyOf(values, capacity);
+            vars = Arrays.copyOf(vars, capacity);
+        }
+        if (vars[chunk] == null) {
+            values[chunk] = new double[CHUNK_SIZE];
+            vars[chunk] = new Var[CHUNK_SIZE];
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package taboola;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs many independent scripts, each against its own {@link Calculator}, and streams
+ * every script's result to a {@link Sink} as soon as that script finishes.
+ *
+ * At most {@code pool.getParallelism()} scripts run at once: that many workers take the
+ * next script from a shared counter until none are left, so a slow script never holds up
+ * the others and no more than one task per worker is ever queued. A script that fails,
+ * including one nested too deeply for the worker's stack, is reported to the sink with
+ * its error message and does not stop the batch.
+ *
+ * Every script runs alone on a fresh calculator, so its output does not depend on
+ * scheduling; only the order of delivery does. Results carry the script's index, and
+ * {@link #inOrder(Sink)} restores input order where that matters.
+ */
+public final class BatchExecutor {
+
+    /**
+     * Receives results. Calls are never concurrent, so a sink need not be thread-safe.
+     */
+    public interface Sink {
+        void accept(Result result);
+    }
+
+    /**
+     * Outcome of one script: its formatted variables, or the message it failed with.
+     */
+    public static final class Result {
+        private final int index;
+        private final String name;
+        private final String output;
+        private final String error;
+
+        Result(int index, String name, String output, String error) {
+            this.index = index;
+            this.name = name;
+            this.output = output;
+            this.error = error;
+        }
+
+        /** Position of the script in the batch. */
+        public int getIndex() {
+            return index;
+        }
+
+        /** File name for a directory batch, "#" and the index otherwise. */
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /** The variables in the format of {@link Calculator#formatOutput}, or null if the script failed. */
+        public String getOutput() {
+            return output;
+        }
+
+        /** Why the script failed, or null if it succeeded. */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + (error == null ? output : "error: " + error);
+        }
+    }
+
+    private BatchExecutor() {
+    }
+
+    /**
+     * Runs the scripts on the common ForkJoinPool.
+     *
+     * @see #run(List, Sink, ForkJoinPool)
+     */
+    public static int run(List<String[]> scripts, Sink sink) {
+        return run(scripts, sink, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs each script like {@link Calculator#processExpressions(String[])} on a fresh
+     * calculator and waits until all have been delivered.
+     *
+     * @param scripts Scripts to run
+     * @param sink Receives one result per script, in completion order
+     * @param pool Pool to run on; its parallelism bounds the scripts running at once
+     * @return Number of scripts that failed
+     */
+    public static int run(List<String[]> scripts, Sink sink, ForkJoinPool pool) {
+        return execute(scripts.size(), index -> {
+            Calculator calc = new Calculator();
+            calc.processExpressions(scripts.get(index));
+            return calc.formatOutput(calc.variables);
+        }, index -> "#" + index, sink, pool);
+    }
+
+    /**
+     * Runs the script files of a directory on the common ForkJoinPool.
+     *
+     * @see #run(Path, Sink, ForkJoinPool)
+     */
+    public static int run(Path directory, Sink sink) throws IOException {
+        return run(directory, sink, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs every regular file of a directory as a script, streamed line by line like
+     * {@link Calculator#processExpressions(Path)}. Files are taken in name order, which
+     * gives each its index; a file that cannot be read is reported as failed.
+     *
+     * @param directory Directory of script files
+     * @param sink Receives one result per file, in completion order
+     * @param pool Pool to run on; its parallelism bounds the scripts running at once
+     * @return Number of scripts that failed
+     * @throws IOException If the directory cannot be listed
+     */
+    public static int run(Path directory, Sink sink, ForkJoinPool pool) throws IOException {
+        List<Path> files;
+        try (Stream<Path> entries = Files.list(directory)) {
+            files = entries.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        return execute(files.size(), index -> {
+            Calculator calc = new Calculator();
+            try {
+                calc.processExpressions(files.get(index));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read script: " + e.getMessage(), e);
+            }
+            return calc.formatOutput(calc.variables);
+        }, index -> files.get(index).getFileName().toString(), sink, pool);
+    }
+
+    /**
+     * Wraps a sink so it receives results in index order, holding back any that finish
+     * before an earlier script. Use one wrapper per batch.
+     */
+    public static Sink inOrder(Sink sink) {
+        return new Sink() {
+            private final ArrayList<Result> pending = new ArrayList<>();
+            private int next;
+
+            @Override
+            public void accept(Result result) {
+                int offset = result.getIndex() - next;
+                while (pending.size() <= offset) {
+                    pending.add(null);
+                }
+                pending.set(offset, result);
+                int ready = 0;
+                while (ready < pending.size() && pending.get(ready) != null) {
+                    sink.accept(pending.get(ready++));
+                }
+                pending.subList(0, ready).clear();
+                next += ready;
+            }
+        };
+    }
+
+    private static int execute(int count, IntFunction<String> job, IntFunction<String> naming,
+                               Sink sink, ForkJoinPool pool) {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        Object lock = new Object();
+        int workers = Math.min(count, pool.getParallelism());
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            tasks.add(pool.submit(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < count) {
+                    Result result;
+                    try {
+                        result = new Result(index, naming.apply(index), job.apply(index), null);
+                    } catch (RuntimeException | StackOverflowError e) {
+                        failures.incrementAndGet();
+                        result = new Result(index, naming.apply(index), null, Parser.failureMessage(e));
+                    }
+                    synchronized (lock) {
+                        sink.accept(result);
+                    }
+                }
+            }));
+        }
+        RuntimeException sinkFailure = null;
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while running a batch", e);
+            } catch (ExecutionException e) {
+                // The sink failed, or the JVM did (out of memory, for example); stop the
+                // other workers and report it once all are done
+                next.set(count);
+                if (sinkFailure == null) {
+                    sinkFailure = e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause()
+                        : new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (sinkFailure != null) {
+            throw sinkFailure;
+        }
+        return failures.get();
+    }
+}
@@ -0,0 +1,328 @@
+package taboola;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates a {@link Node} tree into a hidden JVM class whose eval method computes
+ * the whole expression as straight-line bytecode, so the JIT can inline and
+ * register-allocate it like handwritten Java.
+ *
+ * Variable reads, ++/--, assignments and division still go through the Calculator
+ * methods the interpreter uses (valueOf, step, assign, divide); they are small enough
+ * to be inlined, and keep undefined-variable and division-by-zero errors identical.
+ * The generated code has no branches, so no stack map frames are needed.
+ *
+ * Classes are defined with {@link MethodHandles.Lookup#defineHiddenClass} without the
+ * STRONG option, so they are unloaded once the compiled node is no longer reachable.
+ */
+final class BytecodeCompiler {
+    private static final String CALCULATOR = "taboola/Calculator";
+    private static final String NODE = "taboola/Node";
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int stack;
+    private int maxStack;
+
+    private BytecodeCompiler() {
+    }
+
+    /**
+     * Generates and instantiates a node equivalent to the given tree.
+     *
+     * @param root Tree to compile
+     * @return The generated node, or null if the tree cannot be compiled
+     *         (unsupported node type, method too large, or class definition failure)
+     */
+    static Node compile(Node root) {
+        try {
+            byte[] bytes = new BytecodeCompiler().generate(root);
+            if (bytes == null) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (Node) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (LinkageError e) {
+            return null;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // Unsupported node types and class definition failures leave the tree interpreted
+            return null;
+        }
+    }
+
+    private byte[] generate(Node root) throws IOException {
+        emit(root);
+        code.write(0xaf); // dreturn
+        if (code.size() > MAX_CODE_LENGTH) {
+            return null;
+        }
+        byte[] evalCode = code.toByteArray();
+
+        int thisClass = pool.classRef("taboola/GeneratedNode");
+        int superClass = pool.classRef(NODE);
+        int superInit = pool.methodRef(NODE, "<init>", "()V");
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initDescriptor = pool.utf8("()V");
+        int evalName = pool.utf8("eval");
+        int evalDescriptor = pool.utf8("(L" + CALCULATOR + ";)D");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        pool.write(out);
+        out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+
+        // public <init>() { super(); }
+        out.writeShort(0x0001);
+        out.writeShort(initName);
+        out.writeShort(initDescriptor);
+        out.writeShort(1);
+        byte[] initCode = {0x2a, (byte) 0xb7, (byte) (superInit >> 8), (byte) superInit, (byte) 0xb1};
+        writeCode(out, codeName, 1, 1, initCode);
+
+        // double eval(Calculator calc), package-private like Node.eval
+        out.writeShort(0);
+        out.writeShort(evalName);
+        out.writeShort(evalDescriptor);
+        out.writeShort(1);
+        writeCode(out, codeName, maxStack, 2, evalCode);
+
+        out.writeShort(0); // class attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeCode(DataOutputStream out, int codeName, int maxStack, int maxLocals, byte[] code)
+            throws IOException {
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private void emit(Node node) {
+        if (node instanceof Node.Num) {
+            double value = ((Node.Num) node).value;
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                code.write(0x0e); // dconst_0
+            } else if (value == 1.0) {
+                code.write(0x0f); // dconst_1
+            } else {
+                code.write(0x14); // ldc2_w
+                writeShort(pool.doubleConstant(value));
+            }
+            push(2);
+        } else if (node instanceof Node.Ref) {
+            loadCalculator();
+            loadInt(((Node.Ref) node).slot);
+            invokeCalculator("valueOf", "(I)D", 2);
+        } else if (node instanceof Node.Step) {
+            Node.Step step = (Node.Step) node;
+            loadCalculator();
+            loadInt(step.slot);
+            loadInt(step.increment ? 1 : 0);
+            loadInt(step.prefix ? 1 : 0);
+            invokeCalculator("step", "(IZZ)D", 4);
+        } else if (node instanceof Node.Neg) {
+            emit(((Node.Neg) node).operand);
+            code.write(0x77); // dneg
+        } else if (node instanceof Node.Binary) {
+            Node.Binary binary = (Node.Binary) node;
+            if (binary.op == '/') {
+                loadCalculator();
+                emit(binary.left);
+                emit(binary.right);
+                invokeCalculator("divide", "(DD)D", 5);
+            } else {
+                emit(binary.left);
+                emit(binary.right);
+                code.write(arithmeticOpcode(binary.op));
+                pop(2);
+            }
+        } else if (node instanceof Node.DivideByZero) {
+            loadCalculator();
+            emit(((Node.DivideByZero) node).dividend);
+            code.write(0x0e); // dconst_0
+            push(2);
+            invokeCalculator("divide", "(DD)D", 5);
+        } else if (node instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) node;
+            loadCalculator();
+            loadInt(assign.slot);
+            loadInt(assign.op);
+            emit(assign.value);
+            invokeCalculator("assign", "(ICD)D", 5);
+        } else {
+            throw new UnsupportedOperationException("Cannot compile " + node.getClass().getSimpleName());
+        }
+    }
+
+    private static int arithmeticOpcode(char op) {
+        switch (op) {
+            case '+':
+                return 0x63; // dadd
+            case '-':
+                return 0x67; // dsub
+            case '*':
+                return 0x6b; // dmul
+            case '%':
+                return 0x73; // drem
+            default:
+                throw new UnsupportedOperationException("Invalid operator: " + op);
+        }
+    }
+
+    private void loadCalculator() {
+        code.write(0x2b); // aload_1
+        push(1);
+    }
+
+    private void loadInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(0x03 + value); // iconst_<n>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(0x10); // bipush
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(0x11); // sipush
+            writeShort(value);
+        } else {
+            code.write(0x13); // ldc_w
+            writeShort(pool.intConstant(value));
+        }
+        push(1);
+    }
+
+    /**
+     * Emits an invokevirtual on Calculator that consumes {@code argumentSlots} stack
+     * slots (receiver included) and pushes a double.
+     */
+    private void invokeCalculator(String name, String descriptor, int argumentSlots) {
+        code.write(0xb6); // invokevirtual
+        writeShort(pool.methodRef(CALCULATOR, name, descriptor));
+        pop(argumentSlots);
+        push(2);
+    }
+
+    private void writeShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    private void push(int slots) {
+        stack += slots;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void pop(int slots) {
+        stack -= slots;
+    }
+
+    /**
+     * Class file constant pool with de-duplication of entries.
+     */
+    private static final class ConstantPool {
+        private final List<byte[]> entries = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String value) {
+            return add("U" + value, 1, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            return add("C" + internalName, 1, out -> {
+                out.writeByte(7);
+                out.writeShort(name);
+            });
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = add("N" + name + ":" + descriptor, 1, out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return add("M" + owner + "." + name + descriptor, 1, out -> {
+                out.writeByte(10);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        int intConstant(int value) {
+            return add("I" + value, 1, out -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            // Doubles take two constant pool indexes
+            return add("D" + bits, 2, out -> {
+                out.writeByte(6);
+                out.writeLong(bits);
+            });
+        }
+
+        private int add(String key, int width, Entry entry) {
+            Integer existing = indexes.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                entry.write(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.add(bytes.toByteArray());
+            int index = next;
+            next += width;
+            indexes.put(key, index);
+            return index;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(next);
+            for (byte[] entry : entries) {
+                out.write(entry);
+            }
+        }
+
+        private interface Entry {
+            void write(DataOutputStream out) throws IOException;
+        }
+    }
+}
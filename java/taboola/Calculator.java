@@ -1,9 +1,14 @@
 package taboola;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
 
 public class Calculator {
 
@@ -24,45 +29,48 @@ public class Calculator {
         return a - 1;
     }
 
-    HashMap<String, Var> variables = new HashMap<>();
+    // Variable values by slot; variables is its map view
+    final VariableStore store;
+    final HashMap<String, Var> variables;
 
-    public void setVariable(String name, double value) {
-        variables.put(name, new Var(name, value));
+    // Compiled expressions by source text; null disables caching
+    private final ExpressionCache cache;
+    // Slots of the variable names, shared with the cache and the store
+    final Symbols symbols;
+
+    public Calculator() {
+        this(ExpressionCache.shared());
     }
 
     /**
-     * Normalizes an expression by adding spaces around operators and parentheses.
+     * Creates a calculator that looks up compiled expressions in the given cache.
      *
-     * @param expression The expression to normalize
-     * @return Normalized expression with spaces
+     * @param cache Cache to use (may be shared with other calculators), or null to parse on every call
      */
-    private String normalizeExpression(String expression) {
-        // Add spaces around parentheses
-        expression = expression.replace("(", " ( ").replace(")", " ) ");
-        // Clean up multiple spaces
-        expression = expression.replaceAll("\\s+", " ").trim();
-        return expression;
+    public Calculator(ExpressionCache cache) {
+        this(cache, new ArrayVariableStore(symbolsOf(cache)));
     }
 
     /**
-     * Processes tokens by handling increment/decrement operators and replacing variables.
-     * Modifies the tokens array in place.
-     *
-     * @param tokens Array of tokens to process
+     * @param cache Cache to use, or null
+     * @param store Store created with the cache's symbol table, see {@link #symbolsOf}
      */
-    private void processTokens(String[] tokens) {
-        for (int i = 0; i < tokens.length; i++) {
-            if (tokens[i].startsWith("++") || tokens[i].startsWith("--")) {
-                // Pre-increment/decrement: ++x, --x
-                tokens[i] = replacePreIncrementDecrement(tokens[i]);
-            } else if (tokens[i].endsWith("++") || tokens[i].endsWith("--")) {
-                // Post-increment/decrement: x++, x--
-                tokens[i] = replacePostIncrementDecrement(tokens[i]);
-            } else if (variables.containsKey(tokens[i])) {
-                // Replace variable with its current value
-                tokens[i] = String.valueOf(variables.get(tokens[i]).getValue());
-            }
-        }
+    Calculator(ExpressionCache cache, VariableStore store) {
+        this.cache = cache;
+        this.store = store;
+        this.symbols = store.symbols;
+        this.variables = store.map;
+    }
+
+    /**
+     * @return The symbol table of a calculator using the given cache
+     */
+    static Symbols symbolsOf(ExpressionCache cache) {
+        return cache != null ? cache.symbols : Symbols.GLOBAL;
+    }
+
+    public void setVariable(String name, double value) {
+        store.set(symbols.intern(name), value);
     }
 
     /**
@@ -85,35 +93,385 @@ public class Calculator {
         return variables;
     }
 
+    /**
+     * Executes a script like {@link #processExpressions(String[])} as one transaction:
+     * if a statement fails, every change the script made is undone before its exception
+     * is thrown, so the variables are exactly as before the call.
+     *
+     * @param expressions Array of assignment expressions
+     * @return HashMap of variable names to their Var objects
+     * @see #begin()
+     */
+    public HashMap<String, Var> processExpressionsAtomically(String[] expressions) {
+        begin();
+        try {
+            processExpressions(expressions);
+        } catch (RuntimeException e) {
+            rollback();
+            throw e;
+        }
+        commit();
+        return variables;
+    }
+
+    /**
+     * Opens a transaction, or a savepoint inside the open one.
+     *
+     * Until the matching {@link #commit()} or {@link #rollback()}, the previous value of
+     * every variable changed is kept in an undo log, and each statement is atomic: a
+     * statement that fails (division by zero, an undefined variable, a syntax error)
+     * leaves no change behind, not even from ++ or -- evaluated before the failure.
+     * Rolling back costs time in proportion to the changes made, not to the number of
+     * variables. Transactions are for a calculator used by one thread at a time; changes
+     * made through {@link Var#setValue} and the variables map are logged as well.
+     *
+     * @throws UnsupportedOperationException If the calculator does not support transactions
+     *         ({@link ConcurrentCalculator})
+     */
+    public void begin() {
+        if (store.undo == null) {
+            store.undo = new UndoLog();
+        }
+        store.undo.savepoint();
+    }
+
+    /**
+     * Keeps the changes since the matching {@link #begin()}. Committing a savepoint keeps
+     * its changes as part of the enclosing transaction, which can still roll them back.
+     *
+     * @throws IllegalStateException If no transaction is open
+     */
+    public void commit() {
+        UndoLog undo = openTransaction();
+        undo.release();
+        if (undo.depth() == 0) {
+            store.undo = null;
+        }
+    }
+
+    /**
+     * Undoes every change since the matching {@link #begin()}, newest first.
+     *
+     * @throws IllegalStateException If no transaction is open
+     */
+    public void rollback() {
+        UndoLog undo = openTransaction();
+        undo.rollback(store);
+        if (undo.depth() == 0) {
+            store.undo = null;
+        }
+    }
+
+    /**
+     * @return true while a transaction is open
+     */
+    public boolean inTransaction() {
+        return store.undo != null;
+    }
+
+    private UndoLog openTransaction() {
+        UndoLog undo = store.undo;
+        if (undo == null) {
+            throw new IllegalStateException("No transaction is open.");
+        }
+        return undo;
+    }
+
+    /**
+     * Executes a script like {@link #processExpressions(String[])}, but runs statements that
+     * touch disjoint variables in parallel on the common ForkJoinPool.
+     *
+     * @param expressions Array of assignment expressions
+     * @return HashMap of variable names to their Var objects
+     * @see #processExpressionsParallel(String[], ForkJoinPool)
+     */
+    public HashMap<String, Var> processExpressionsParallel(String[] expressions) {
+        return processExpressionsParallel(expressions, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Executes a script like {@link #processExpressions(String[])}, but runs statements that
+     * touch disjoint variables in parallel.
+     *
+     * The read and write set of every statement, including the writes hidden in ++/-- and
+     * compound assignments, is used to build a dependency graph; statements are then run in
+     * waves of mutually independent statements. The final variables are identical to
+     * sequential execution. If a statement fails, the exception of the earliest failing
+     * statement is thrown, but independent statements after it may already have run. A
+     * statement with a syntax error throws after the statements before it have run, as
+     * with processExpressions. Inside a transaction (see {@link #begin()}) the statements
+     * run sequentially.
+     *
+     * @param expressions Array of assignment expressions
+     * @param pool Pool to run independent statements on
+     * @return HashMap of variable names to their Var objects
+     */
+    public HashMap<String, Var> processExpressionsParallel(String[] expressions, ForkJoinPool pool) {
+        Script script = Script.compileUntilError(this, expressions);
+        ParallelExecutor.run(this, script, pool);
+        script.throwCompileError();
+        return variables;
+    }
+
+    /**
+     * Executes a script like {@link #processExpressions(String[])}, but computes each
+     * repeated side-effect free subexpression, such as "(a + b) * c" appearing in many
+     * statements, only once until one of the variables it reads is written.
+     *
+     * The script is compiled and analysed first, taking the writes hidden in ++/-- and
+     * compound assignments into account, so the results and any exception are the same
+     * as with {@link #processExpressions(String[])}: a statement with a syntax error
+     * throws after the statements before it have run. The analysis costs about as much
+     * as one evaluation of the script, so this pays off for scripts with large repeated
+     * subexpressions.
+     *
+     * @param expressions Array of assignment expressions
+     * @return HashMap of variable names to their Var objects
+     */
+    public HashMap<String, Var> processExpressionsShared(String[] expressions) {
+        Script script = Script.compileUntilError(this, expressions);
+        for (Expression statement : CommonSubexpressions.rewrite(script)) {
+            run(statement);
+        }
+        script.throwCompileError();
+        return variables;
+    }
+
+    /**
+     * Executes a script like {@link #processExpressions(String[])}, skipping the
+     * statements that cannot affect the result: assignments overwritten before any read.
+     *
+     * @param expressions Array of assignment expressions
+     * @return HashMap of variable names to their Var objects
+     * @see #processExpressionsPruned(String[], Set)
+     */
+    public HashMap<String, Var> processExpressionsPruned(String[] expressions) {
+        return processExpressionsPruned(expressions, null);
+    }
+
+    /**
+     * Executes only the statements of a script that the final values of the given
+     * variables depend on, plus the ones that may fail.
+     *
+     * The whole script is analysed first (see {@link DeadStores}), taking the writes hidden
+     * in ++/-- and compound assignments into account, so the given variables end up
+     * exactly as with {@link #processExpressions(String[])}, and a failing script throws
+     * the same exception at the same statement; a statement with a syntax error throws
+     * after the statements before it have been handled the same way. Other variables the
+     * script assigns may be missing or hold intermediate values.
+     *
+     * @param expressions Array of assignment expressions
+     * @param outputs Names of the variables whose final values are wanted, or null for all
+     * @return HashMap of variable names to their Var objects
+     */
+    public HashMap<String, Var> processExpressionsPruned(String[] expressions, Set<String> outputs) {
+        Script script = Script.compileUntilError(this, expressions);
+        int[] slots = null;
+        if (outputs != null) {
+            slots = new int[outputs.size()];
+            int next = 0;
+            for (String name : outputs) {
+                slots[next++] = symbols.find(name);
+            }
+        }
+        boolean[] live = DeadStores.live(script, store, slots);
+        for (int i = 0; i < live.length; i++) {
+            if (live[i]) {
+                run(script.statements[i]);
+            }
+        }
+        script.throwCompileError();
+        return variables;
+    }
+
+    /**
+     * Streams a script from a reader and executes it line by line.
+     * Each non-blank line is one statement, exactly as one element of the array passed to
+     * {@link #processExpressions(String[])}; memory use does not grow with the script length.
+     *
+     * @param script Script source; the caller closes it
+     * @return HashMap of variable names to their Var objects
+     */
+    public HashMap<String, Var> processExpressions(Reader script) throws IOException {
+        ScriptStream.run(this, script);
+        return variables;
+    }
+
+    /**
+     * Executes an ASCII script file line by line, decoding statements directly from
+     * memory-mapped windows of the file. Memory use does not grow with the file size.
+     *
+     * @param script Path of the script file
+     * @return HashMap of variable names to their Var objects
+     */
+    public HashMap<String, Var> processExpressions(Path script) throws IOException {
+        ScriptStream.run(this, script);
+        return variables;
+    }
+
+    /**
+     * Parses and executes one statement without going through the expression cache.
+     *
+     * @param statement A trimmed, non-empty statement
+     */
+    void execute(CharSequence statement) {
+        UndoLog undo = store.undo;
+        if (undo == null) {
+            interpret(statement);
+            return;
+        }
+        int mark = undo.size();
+        try {
+            interpret(statement);
+        } catch (RuntimeException e) {
+            undo.rollback(store, mark);
+            throw e;
+        }
+    }
+
+    /**
+     * Parses and evaluates one statement. Subclasses with their own arithmetic override this.
+     *
+     * @param statement A trimmed, non-empty statement
+     */
+    void interpret(CharSequence statement) {
+        Node root = Optimizer.optimize(Parser.parse(statement, symbols));
+        if (Metrics.enabled) {
+            Metrics.evaluate(root, this);
+        } else {
+            root.eval(this);
+        }
+    }
+
+    /**
+     * Saves all variables to a compact binary snapshot file that
+     * {@link #restoreSnapshot(Path)} can load without replaying the script that built them.
+     * The file is replaced atomically, so a concurrent restore never reads a partial snapshot.
+     *
+     * @param file Destination file; replaced if it exists
+     */
+    public void saveSnapshot(Path file) throws IOException {
+        VariableSnapshot.save(this, file);
+    }
+
+    /**
+     * Replaces all variables with those saved by {@link #saveSnapshot(Path)}. The file is
+     * memory-mapped and read in place; its checksum is verified before any variable changes.
+     * Afterwards {@link #formatOutput(HashMap)} gives the same text as when it was saved.
+     *
+     * @param file Snapshot file
+     * @return HashMap of variable names to their Var objects
+     * @throws IOException If the file cannot be read or is not a valid snapshot
+     */
+    public HashMap<String, Var> restoreSnapshot(Path file) throws IOException {
+        VariableSnapshot.restore(this, file);
+        return variables;
+    }
+
+    /**
+     * Attaches a write-ahead journal that records every change to this calculator's
+     * variables, starting with their current values, or detaches the current one.
+     * Recording only encodes the change into the journal's buffer; the journal writes and
+     * forces it to disk in the background (see {@link Journal}). Attach or detach while no
+     * other thread is evaluating against this calculator.
+     *
+     * @param journal Journal to attach, or null to detach; a journal serves one calculator
+     */
+    public void setJournal(Journal journal) {
+        Journal current = store.journal;
+        if (current == journal) {
+            return;
+        }
+        if (journal != null) {
+            synchronized (variables) {
+                journal.attach(store);
+            }
+        }
+        store.journal = journal;
+        if (current != null) {
+            current.detach();
+        }
+    }
+
+    /**
+     * Applies the changes recorded in a journal file to this calculator's variables, in
+     * order, as at startup after a crash. Frames torn by the crash are ignored.
+     * Replay before attaching a journal; the replayed changes are not journaled again.
+     *
+     * @param file Journal file
+     * @return HashMap of variable names to their Var objects
+     * @throws IOException If the file cannot be read or is not a journal
+     * @throws IllegalStateException If a journal is attached
+     */
+    public HashMap<String, Var> replayJournal(Path file) throws IOException {
+        if (store.journal != null) {
+            throw new IllegalStateException("Detach the journal before replaying " + file);
+        }
+        Journal.replay(store, file);
+        return variables;
+    }
+
     /**
      * Formats the variable results in the required output format.
      * Format: (var1=value1,var2=value2,...)
+     * Variables are sorted by name; whole numbers are displayed without a fraction.
      *
      * @param results HashMap of variable names to Var objects
      * @return Formatted string
      */
     public String formatOutput(HashMap<String, Var> results) {
-        if (results.isEmpty()) {
-            return "()";
+        return OutputFormatter.format(results);
+    }
+
+    /**
+     * Writes the variable results in the format of {@link #formatOutput(HashMap)} to an
+     * Appendable such as a Writer or StringBuilder, without building the whole text first.
+     *
+     * @param results HashMap of variable names to Var objects
+     * @param out Destination; not flushed or closed
+     */
+    public void formatOutput(HashMap<String, Var> results, Appendable out) throws IOException {
+        OutputFormatter.format(results, out);
+    }
+
+    /**
+     * Writes the variable results in the format of {@link #formatOutput(HashMap)} as UTF-8
+     * at the buffer's position.
+     *
+     * @param results HashMap of variable names to Var objects
+     * @param out Destination buffer
+     * @throws java.nio.BufferOverflowException If the text does not fit in the buffer
+     */
+    public void formatOutput(HashMap<String, Var> results, ByteBuffer out) {
+        OutputFormatter.format(results, out);
+    }
+
+    /**
+     * Compiles an expression into an immutable tree that can be evaluated
+     * repeatedly with {@link Expression#eval(Calculator)}.
+     * Repeated source texts are served from the calculator's expression cache.
+     *
+     * @param expression The expression to compile (simple or compound assignment, or a plain expression)
+     * @return The compiled expression
+     */
+    public Expression compile(String expression) {
+        if (cache != null) {
+            return cache.get(expression);
         }
+        return new Expression(expression, Optimizer.optimize(Parser.parse(expression, symbols)));
+    }
 
-        StringBuilder sb = new StringBuilder("(");
-        results.entrySet().stream()
-            .sorted(Map.Entry.comparingByKey())
-            .forEach(entry -> {
-                if (sb.length() > 1) {
-                    sb.append(",");
-                }
-                double value = entry.getValue().getValue();
-                // Display as integer if it's a whole number
-                if (value == Math.floor(value) && !Double.isInfinite(value)) {
-                    sb.append(entry.getKey()).append("=").append((int)value);
-                } else {
-                    sb.append(entry.getKey()).append("=").append(value);
-                }
-            });
-        sb.append(")");
-        return sb.toString();
+    /**
+     * Compiles a whole script once into a {@link Program} that can be run many times with
+     * different input values and without re-parsing. Variables the script reads before
+     * assigning them become the program's inputs. This calculator's variables are neither
+     * read nor changed.
+     *
+     * @param expressions Script statements, as for {@link #processExpressions(String[])}
+     * @return The compiled program
+     */
+    public Program compileScript(String[] expressions) {
+        return Program.compile(Script.compile(this, expressions), symbols);
     }
 
     /**
@@ -121,7 +479,7 @@ public class Calculator {
      * increment/decrement operators, parentheses, and operator precedence.
      * Also supports assignment expressions like "a = x + 8 + c * 3"
      *
-     * @param expression The expression to evaluate (tokens must be space-separated)
+     * @param expression The expression to evaluate (whitespace between tokens is optional)
      * @return The evaluated result
      *
      * Examples:
@@ -129,133 +487,140 @@ public class Calculator {
      * - "a = x + 8 + c * 3" where x=5, c=2 (assigns result to variable 'a')
      */
     public double evaluate(String expression) {
-        // Normalize the expression (add spaces around parentheses and operators)
-        expression = normalizeExpression(expression);
+        return run(compile(expression));
+    }
 
-        // Check if this is an assignment expression (simple or compound)
-        if (expression.contains(" = ") || expression.contains(" += ") ||
-            expression.contains(" -= ") || expression.contains(" *= ") ||
-            expression.contains(" /= ") || expression.contains(" %= ")) {
-            return evaluateAssignment(expression);
+    /**
+     * Evaluates a compiled statement against this calculator. Every way of running a
+     * statement comes through here, so inside a transaction each one is atomic.
+     *
+     * @param statement Compiled statement
+     * @return The evaluated result
+     */
+    final double run(Expression statement) {
+        UndoLog undo = store.undo;
+        if (undo == null) {
+            return interpret(statement);
         }
+        int mark = undo.size();
+        try {
+            return interpret(statement);
+        } catch (RuntimeException e) {
+            undo.rollback(store, mark);
+            throw e;
+        }
+    }
 
-        // Step 1: Tokenize the expression
-        String[] tokens = expression.split(" ");
-
-        // Step 2: Process increment/decrement operators and replace variables
-        processTokens(tokens);
-
-        // Step 3: Reconstruct the expression with replaced values
-        String processedExpression = String.join(" ", tokens);
-
-        // Step 4: Handle parentheses (evaluates innermost expressions first)
-        String withoutBrackets = openBrackets(processedExpression);
-
-        // Step 5: Evaluate the final expression with operator precedence
-        String result = calculateCleanExpression(withoutBrackets);
-
-        // Step 6: Parse and return the final result
-        // calculateCleanExpression returns a single numeric value as a string
-        return Double.parseDouble(result);
+    /**
+     * Evaluates a compiled statement. Subclasses with their own arithmetic override this.
+     *
+     * @param statement Compiled statement
+     * @return The evaluated result
+     */
+    double interpret(Expression statement) {
+        return statement.evaluate(this);
     }
 
     /**
-     * Evaluates an assignment expression and stores the result in a variable.
-     * Supports compound assignments like: a += expr, a -= expr, a *= expr, a /= expr, a %= expr
+     * Evaluates one expression for many rows of variable bindings at once.
+     * Row i binds every variable named in columns to columns.get(name)[i]; other
+     * variables are read from this calculator. The results, and the error thrown for the
+     * first failing row, are the same as evaluating the rows one after another, but the
+     * expression is parsed once and each operator runs as a tight loop over the columns.
      *
-     * @param expression Assignment expression (e.g., "a = x + 8 + c * 3")
-     * @return The evaluated and assigned value
+     * Unlike row-by-row evaluation with {@link #setVariable}, the column variables are
+     * never set in this calculator, and a failing batch changes nothing: its target keeps
+     * its old value rather than the last successful row's.
+     *
+     * Supports +, -, *, /, % and parentheses, optionally as the right side of a plain
+     * assignment, whose target then holds the last row's value. ++, -- and compound
+     * assignments are rejected because they make each row depend on the previous one,
+     * and so is an assignment that reads its target, unless the target has a column.
+     *
+     * @param expression The expression to evaluate, e.g. "a = x * 3 + y % 7"
+     * @param columns Values per variable name; each column needs at least out.length rows
+     * @param out Receives one result per row
      */
-    private double evaluateAssignment(String expression) {
-        String varName;
-        String rightExpression;
-        String operator = null;
+    public void evaluateBatch(String expression, Map<String, double[]> columns, double[] out) {
+        ColumnarEvaluator.evaluate(this, compile(expression), columns, out);
+    }
 
-        // Check for compound assignment operators first
-        if (expression.contains(" += ")) {
-            String[] parts = expression.split(" \\+= ");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid assignment expression: " + expression);
-            }
-            varName = parts[0].trim();
-            rightExpression = parts[1].trim();
-            operator = "+";
-        } else if (expression.contains(" -= ")) {
-            String[] parts = expression.split(" -= ");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid assignment expression: " + expression);
-            }
-            varName = parts[0].trim();
-            rightExpression = parts[1].trim();
-            operator = "-";
-        } else if (expression.contains(" *= ")) {
-            String[] parts = expression.split(" \\*= ");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid assignment expression: " + expression);
-            }
-            varName = parts[0].trim();
-            rightExpression = parts[1].trim();
-            operator = "*";
-        } else if (expression.contains(" /= ")) {
-            String[] parts = expression.split(" /= ");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid assignment expression: " + expression);
-            }
-            varName = parts[0].trim();
-            rightExpression = parts[1].trim();
-            operator = "/";
-        } else if (expression.contains(" %= ")) {
-            String[] parts = expression.split(" %= ");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid assignment expression: " + expression);
-            }
-            varName = parts[0].trim();
-            rightExpression = parts[1].trim();
-            operator = "%";
-        } else {
-            // Simple assignment
-            String[] parts = expression.split(" = ");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid assignment expression: " + expression);
-            }
-            varName = parts[0].trim();
-            rightExpression = parts[1].trim();
+    /**
+     * Returns the current value of a variable.
+     *
+     * @param slot Variable slot
+     * @return The variable's value
+     */
+    double valueOf(int slot) {
+        if (!store.isDefined(slot)) {
+            throw undefined(slot);
         }
+        return store.get(slot);
+    }
 
-        // Evaluate the right side expression
-        double value = evaluate(rightExpression);
-
-        // Handle compound assignments
-        if (operator != null) {
-            if (!variables.containsKey(varName)) {
-                throw new IllegalArgumentException("Variable not defined: " + varName);
-            }
-            double currentValue = variables.get(varName).getValue();
-            value = calculate(currentValue, value, operator);
+    /**
+     * Applies ++ or -- to a variable.
+     *
+     * @param slot Variable slot
+     * @param increment true for ++, false for --
+     * @param prefix true for ++x/--x (returns the new value), false for x++/x-- (returns the old value)
+     * @return The value the operator yields in the enclosing expression
+     */
+    double step(int slot, boolean increment, boolean prefix) {
+        if (Metrics.enabled) {
+            Metrics.count(Metrics.Counter.INCREMENTS);
         }
+        double currentValue = valueOf(slot);
+        double newValue = increment ? increment(currentValue) : decrement(currentValue);
+        store.set(slot, newValue);
+        return prefix ? newValue : currentValue;
+    }
 
-        // Store the result in the variable
-        setVariable(varName, value);
-
+    /**
+     * Stores the result of a simple or compound assignment.
+     *
+     * @param slot Variable slot
+     * @param operator 0 for '=', otherwise the operator of the compound assignment
+     * @param value The evaluated right side
+     * @return The assigned value
+     */
+    double assign(int slot, char operator, double value) {
+        if (Metrics.enabled) {
+            Metrics.count(Metrics.Counter.ASSIGNMENTS);
+        }
+        if (operator != 0) {
+            value = calculate(valueOf(slot), value, operator);
+        }
+        store.set(slot, value);
         return value;
     }
 
+    IllegalArgumentException undefined(int slot) {
+        return new IllegalArgumentException("Variable not defined: " + symbols.name(slot));
+    }
+
+    /**
+     * Returns the slot of a defined variable.
+     *
+     * @param name Variable name
+     * @return The variable's slot
+     */
+    private int definedSlot(String name) {
+        int slot = symbols.find(name);
+        if (slot < 0 || !store.isDefined(slot)) {
+            throw new IllegalArgumentException("Variable not defined: " + name);
+        }
+        return slot;
+    }
 
     // Package-private for testing
     String replacePreIncrementDecrement(String token) {
         String operator = token.substring(0, 2);
-        String varName = token.substring(2).trim();
-        if (!variables.containsKey(varName)) {
-            throw new IllegalArgumentException("Variable not defined: " + varName);
-        }
+        int slot = definedSlot(token.substring(2).trim());
         if (operator.equals("++")) {
-            double newValue = increment(variables.get(varName).getValue());
-            variables.get(varName).setValue(newValue);
-            return String.valueOf(newValue);
+            return String.valueOf(step(slot, true, true));
         } else if (operator.equals("--")) {
-            double newValue = decrement(variables.get(varName).getValue());
-            variables.get(varName).setValue(newValue);
-            return String.valueOf(newValue);
+            return String.valueOf(step(slot, false, true));
         } else {
             throw new IllegalArgumentException("Invalid operator: " + operator);
         }
@@ -263,20 +628,12 @@ public class Calculator {
 
     // Package-private for testing
     String replacePostIncrementDecrement(String token) {
-        String varName = token.substring(0, token.length() - 2).trim();
+        int slot = definedSlot(token.substring(0, token.length() - 2).trim());
         String operator = token.substring(token.length() - 2);
-        if (!variables.containsKey(varName)) {
-            throw new IllegalArgumentException("Variable not defined: " + varName);
-        }
-        double currentValue = variables.get(varName).getValue();
         if (operator.equals("++")) {
-            double newValue = increment(currentValue);
-            variables.get(varName).setValue(newValue);
-            return String.valueOf(currentValue);
+            return String.valueOf(step(slot, true, false));
         } else if (operator.equals("--")) {
-            double newValue = decrement(currentValue);
-            variables.get(varName).setValue(newValue);
-            return String.valueOf(currentValue);
+            return String.valueOf(step(slot, false, false));
         } else {
             throw new IllegalArgumentException("Invalid operator: " + operator);
         }
@@ -285,52 +642,87 @@ public class Calculator {
 
     // Package-private for testing
     String calculateCleanExpression(String expression) {
+        if (Metrics.enabled) {
+            Metrics.PhaseEvent phase = Metrics.begin(Metrics.Phase.CLEAN_EXPRESSION);
+            try {
+                return reduceCleanExpression(expression);
+            } catch (RuntimeException e) {
+                Metrics.failed(phase, e);
+                throw e;
+            } finally {
+                Metrics.end(phase);
+            }
+        }
+        return reduceCleanExpression(expression);
+    }
+
+    private String reduceCleanExpression(String expression) {
         String[] tokens = expression.split(" ");
         if(tokens.length==1){
             return tokens[0];
         }
         for (int i = 0; i < tokens.length; i++) {
-            if ((Arrays.asList("*", "/", "%").contains(tokens[i]))) {
-                tokens[i + 1] = String.valueOf(calculate(Double.parseDouble(tokens[i - 1]), Double.parseDouble(tokens[i + 1]), tokens[i]));
+            if (isOperatorToken(tokens[i], "*/%")) {
+                tokens[i + 1] = String.valueOf(calculate(NumberParser.parse(tokens[i - 1]), NumberParser.parse(tokens[i + 1]), tokens[i]));
                 tokens[i] = "";
                 tokens[i - 1] = "";
                 i++;
             }
         }
 
-        String b = String.join(" ", tokens).replaceAll("\\s+", " ").trim();
-        String[] tokens2 = b.isEmpty() ? new String[0] : b.split(" ");
+        String[] tokens2 = nonEmptyTokens(tokens, 0, tokens.length);
         for (int i = 0; i < tokens2.length; i++) {
-            if ((Arrays.asList("+", "-").contains(tokens2[i]))) {
-                tokens2[i + 1] = String.valueOf(calculate(Double.parseDouble(tokens2[i - 1]), Double.parseDouble(tokens2[i + 1]), tokens2[i]));
+            if (isOperatorToken(tokens2[i], "+-")) {
+                tokens2[i + 1] = String.valueOf(calculate(NumberParser.parse(tokens2[i - 1]), NumberParser.parse(tokens2[i + 1]), tokens2[i]));
                 tokens2[i] = "";
                 tokens2[i - 1] = "";
                 i++;
             }
         }
-        return String.join(" ", tokens2).replaceAll("\\s+", " ").trim();
+        return joinTokens(tokens2, 0, tokens2.length);
     }
 
     private Double calculate(double v, double v1, String operator) {
+        if (operator.length() != 1) {
+            throw new IllegalArgumentException("Invalid operator: " + operator);
+        }
+        return calculate(v, v1, operator.charAt(0));
+    }
+
+    double calculate(double v, double v1, char operator) {
         switch (operator) {
-            case "*":
+            case '*':
                 return v * v1;
-            case "/":
+            case '/':
                 return divide(v, v1);
-            case "%":
+            case '%':
                 return v % v1;
-            case "+":
+            case '+':
                 return v + v1;
-            case "-":
+            case '-':
                 return v - v1;
             default:
                 throw new IllegalArgumentException("Invalid operator: " + operator);
         }
-
     }
 
     // Package-private for testing
     String openBrackets(String expression) {
+        if (Metrics.enabled) {
+            Metrics.PhaseEvent phase = Metrics.begin(Metrics.Phase.OPEN_BRACKETS);
+            try {
+                return reduceBrackets(expression);
+            } catch (RuntimeException e) {
+                Metrics.failed(phase, e);
+                throw e;
+            } finally {
+                Metrics.end(phase);
+            }
+        }
+        return reduceBrackets(expression);
+    }
+
+    private String reduceBrackets(String expression) {
         String[] tokens = expression.split(" ");
         Stack<Integer> stack = new Stack<>();
         for (int i = 0; i < tokens.length; i++) {
@@ -339,7 +731,7 @@ public class Calculator {
             }
             if (tokens[i].endsWith(")")) {
                 int openIndex = stack.pop();
-                String subExpression = String.join(" ", getElements(tokens, i, openIndex)).trim();
+                String subExpression = joinTokens(tokens, openIndex + 1, i);
                 String result = calculateCleanExpression(subExpression).trim();
                 tokens[openIndex] = result;
                 for(int k = openIndex + 1; k <= i; k++) {
@@ -352,14 +744,47 @@ public class Calculator {
             throw new IllegalArgumentException("Mismatched parentheses in expression.");
         }
 
-        return String.join(" ", tokens).replaceAll("\\s+", " ").trim();
+        return joinTokens(tokens, 0, tokens.length);
     }
 
-    private static String[] getElements(String[] tokens, int i, int openIndex) {
-        String joined = String.join(" ", Arrays.copyOfRange(tokens, openIndex + 1, i))
-                              .replaceAll("\\s+", " ")
-                              .trim();
-        return joined.isEmpty() ? new String[0] : joined.split(" ");
+    private static boolean isOperatorToken(String token, String operators) {
+        return token.length() == 1 && operators.indexOf(token.charAt(0)) >= 0;
+    }
+
+    /**
+     * Joins the non-empty tokens in [from, to) with single spaces.
+     */
+    private static String joinTokens(String[] tokens, int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (!tokens[i].isEmpty()) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(tokens[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the non-empty tokens in [from, to).
+     */
+    private static String[] nonEmptyTokens(String[] tokens, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (!tokens[i].isEmpty()) {
+                count++;
+            }
+        }
+        String[] result = new String[count];
+        int next = 0;
+        for (int i = from; i < to; i++) {
+            if (!tokens[i].isEmpty()) {
+                result[next++] = tokens[i];
+            }
+        }
+        return result;
     }
 
     public static void main(String[] args) {
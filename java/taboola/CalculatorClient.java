@@ -0,0 +1,108 @@
+package taboola;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client of a {@link CalculatorServer} session.
+ *
+ * {@link #evaluate} and {@link #processExpressions} send one request and wait for its
+ * response. To pipeline, call {@link #send} several times and then {@link #receive} once
+ * per request: responses come back in request order. Sending and receiving may happen
+ * on two different threads, but each of them from one thread at a time.
+ */
+public final class CalculatorClient implements Closeable {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+    private ByteBuffer body = ByteBuffer.allocate(256);
+
+    public CalculatorClient(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Runs one statement in this session.
+     *
+     * @return The session's variables, formatted like {@link Calculator#formatOutput}
+     * @throws IllegalArgumentException If the server could not evaluate the statement
+     */
+    public String evaluate(String expression) throws IOException {
+        send(CalculatorServer.EVALUATE, expression);
+        return receive();
+    }
+
+    /**
+     * Runs a script in this session.
+     *
+     * @return The session's variables, formatted like {@link Calculator#formatOutput}
+     * @throws IllegalArgumentException If the server could not evaluate the script
+     */
+    public String processExpressions(String[] expressions) throws IOException {
+        send(CalculatorServer.SCRIPT, String.join("\n", expressions));
+        return receive();
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     *
+     * @param type {@link CalculatorServer#EVALUATE} or {@link CalculatorServer#SCRIPT}
+     * @param text Statement or newline-separated script
+     */
+    public void send(byte type, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length + 1 > CalculatorServer.MAX_FRAME) {
+            throw new IllegalArgumentException("Request too large: " + bytes.length + " bytes");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(5 + bytes.length);
+        frame.putInt(1 + bytes.length).put(type).put(bytes);
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Waits for the response to the oldest request not yet received.
+     *
+     * @return The session's variables, formatted like {@link Calculator#formatOutput}
+     * @throws IllegalArgumentException With the server's message if the request failed
+     */
+    public String receive() throws IOException {
+        header.clear();
+        readFully(header);
+        int length = header.getInt(0);
+        byte status = header.get(4);
+        if (length < 1 || length > CalculatorServer.MAX_FRAME) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (body.capacity() < length - 1) {
+            body = ByteBuffer.allocate(Math.max(length - 1, body.capacity() * 2));
+        }
+        body.clear().limit(length - 1);
+        readFully(body);
+        String text = new String(body.array(), 0, length - 1, StandardCharsets.UTF_8);
+        if (status != CalculatorServer.OK) {
+            throw new IllegalArgumentException(text);
+        }
+        return text;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
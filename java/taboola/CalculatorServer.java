@@ -0,0 +1,439 @@
+package taboola;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluation server speaking a compact length-prefixed protocol over TCP.
+ *
+ * Every connection is a session with its own {@link Calculator} variable space. A
+ * request frame is an int length, a type byte ({@link #EVALUATE} for one statement,
+ * {@link #SCRIPT} for newline-separated statements run like
+ * {@link Calculator#processExpressions(String[])}) and the UTF-8 text; the length counts
+ * the type byte and the text. A response frame is an int length, a status byte
+ * ({@link #OK} or {@link #ERROR}) and UTF-8 text: the session's variables in the format
+ * of {@link Calculator#formatOutput(java.util.HashMap)}, or the error message.
+ *
+ * One selector thread does all socket I/O. Requests may be pipelined: each session's
+ * requests run one after another, in order, as a task on virtual threads when the JVM
+ * has them (a small pool of platform threads otherwise), and their responses are sent in
+ * request order.
+ *
+ * Memory per connection is bounded. A session stops taking requests while
+ * {@value #MAX_PIPELINE} of its requests and responses, or {@value #MAX_QUEUED_BYTES}
+ * bytes of them, are waiting, and stops running requests while that many bytes of
+ * responses wait to be sent, so a client that never reads cannot make the server buffer
+ * without bound. A frame's buffer grows only as its bytes arrive. Connections beyond
+ * the server's limit ({@value #MAX_CONNECTIONS} by default) are closed as soon as they
+ * are accepted. Each session also has its own variable name table (see {@link Symbols})
+ * and expression cache, dropped when it closes, so names sent by clients never
+ * accumulate in the process; a session may use at most {@value #MAX_SESSION_NAMES}
+ * distinct names, and requests needing more fail with an error.
+ */
+public final class CalculatorServer implements Closeable {
+    public static final byte EVALUATE = 1;
+    public static final byte SCRIPT = 2;
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+    // Largest frame accepted, in bytes after the length
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    static final int MAX_PIPELINE = 1024;
+    static final int MAX_QUEUED_BYTES = MAX_FRAME;
+    static final int MAX_CONNECTIONS = 1024;
+    static final int MAX_SESSION_NAMES = 10_000;
+    private static final int SESSION_CACHE = 256;
+    private static final int READ_BUFFER = 16 * 1024;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService executor;
+    private final Thread ioThread;
+    // Sessions whose interest ops must be recomputed by the I/O thread
+    private final ConcurrentLinkedQueue<Session> changed = new ConcurrentLinkedQueue<>();
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean closed;
+
+    private CalculatorServer(ServerSocketChannel server, Selector selector, int maxConnections) {
+        this.server = server;
+        this.selector = selector;
+        this.maxConnections = maxConnections;
+        this.executor = newExecutor();
+        this.ioThread = new Thread(this::ioLoop, "taboola-server-io");
+    }
+
+    /**
+     * Starts a server on the given address, e.g. {@code new InetSocketAddress("127.0.0.1", 0)}
+     * for a free loopback port.
+     *
+     * @param address Address to listen on
+     * @return The running server
+     */
+    public static CalculatorServer start(InetSocketAddress address) throws IOException {
+        return start(address, MAX_CONNECTIONS);
+    }
+
+    /**
+     * Starts a server that serves at most the given number of connections at a time.
+     *
+     * @param address Address to listen on
+     * @param maxConnections Most open sessions; further connections are closed when accepted
+     * @return The running server
+     */
+    public static CalculatorServer start(InetSocketAddress address, int maxConnections) throws IOException {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Connection limit must be positive: " + maxConnections);
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        Selector selector = null;
+        try {
+            server.bind(address);
+            server.configureBlocking(false);
+            selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            if (selector != null) {
+                selector.close();
+            }
+            throw e;
+        }
+        CalculatorServer calculatorServer = new CalculatorServer(server, selector, maxConnections);
+        calculatorServer.ioThread.start();
+        return calculatorServer;
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Stops accepting, closes all sessions and waits for running requests to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Virtual threads where available (JDK 21, or 19/20 with preview features enabled),
+     * platform threads otherwise. Looked up reflectively so the class still runs on older JVMs.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "taboola-server-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void ioLoop() {
+        try {
+            while (!closed) {
+                selector.select();
+                Session session;
+                while ((session = changed.poll()) != null) {
+                    try {
+                        session.updateInterest();
+                    } catch (IOException e) {
+                        session.close();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session owner = (Session) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            owner.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            owner.write();
+                        }
+                    } catch (IOException e) {
+                        owner.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Fall through to shutdown
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            try {
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            if (connections.get() >= maxConnections) {
+                channel.close();
+                continue;
+            }
+            connections.incrementAndGet();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Session session = new Session(channel);
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        }
+    }
+
+    /**
+     * One connection and its variable space. Socket buffers are touched only by the I/O
+     * thread; the request and response queues are shared with the worker running the
+     * session's requests and guarded by the session.
+     */
+    private final class Session {
+        private final SocketChannel channel;
+        private final Calculator calculator =
+            new Calculator(new ExpressionCache(SESSION_CACHE, true, new Symbols(MAX_SESSION_NAMES)));
+        private SelectionKey key;
+        // Read but not yet queued bytes: whole frames waiting for room, then a partial one
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        private final ArrayDeque<byte[]> requests = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> responses = new ArrayDeque<>();
+        private long requestBytes;
+        private long responseBytes;
+        private boolean running;
+        private volatile boolean open = true;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        /**
+         * Queues the complete frames in the read buffer while there is room, then sizes
+         * the buffer for what remains: it grows by doubling only when full, so a frame's
+         * buffer never gets far ahead of the bytes that arrived, and shrinks back once
+         * a large frame is consumed.
+         */
+        private void takeFrames() throws IOException {
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                synchronized (this) {
+                    if (!hasRoom()) {
+                        break;
+                    }
+                    in.getInt();
+                    byte[] request = new byte[length];
+                    in.get(request);
+                    requests.add(request);
+                    requestBytes += length;
+                }
+            }
+            in.compact();
+            if (!in.hasRemaining() && 4 + in.getInt(0) > in.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(4 + in.getInt(0), 2 * in.capacity()));
+                in.flip();
+                grown.put(in);
+                in = grown;
+            } else if (in.position() == 0 && in.capacity() > READ_BUFFER) {
+                in = ByteBuffer.allocate(READ_BUFFER);
+            }
+        }
+
+        // Guarded by the session
+        private boolean hasRoom() {
+            return requests.size() + responses.size() < MAX_PIPELINE
+                && requestBytes + responseBytes < MAX_QUEUED_BYTES;
+        }
+
+        /**
+         * Starts a worker for the queued requests unless one runs, or too many response
+         * bytes wait to be sent.
+         */
+        private void startWorker() {
+            synchronized (this) {
+                if (running || requests.isEmpty() || responseBytes >= MAX_QUEUED_BYTES) {
+                    return;
+                }
+                running = true;
+            }
+            executor.execute(this::run);
+        }
+
+        void write() throws IOException {
+            synchronized (this) {
+                while (!responses.isEmpty()) {
+                    ByteBuffer response = responses.peek();
+                    channel.write(response);
+                    if (response.hasRemaining()) {
+                        break;
+                    }
+                    responses.poll();
+                    responseBytes -= response.capacity();
+                }
+            }
+            updateInterest();
+        }
+
+        /**
+         * Takes the frames there is now room for, starts the worker if needed, then reads
+         * while the read buffer has space and the queues have room, and writes while
+         * responses wait. Called on the I/O thread after every read, write or response.
+         */
+        void updateInterest() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            takeFrames();
+            startWorker();
+            int ops;
+            synchronized (this) {
+                ops = (hasRoom() && in.hasRemaining() ? SelectionKey.OP_READ : 0)
+                    | (responses.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Runs the queued requests in order on a worker thread, pausing while too many
+         * response bytes wait to be sent. If a request fails with an error other than its
+         * own, the session is closed, so the client sees the connection end instead of
+         * waiting for a response forever.
+         */
+        private void run() {
+            boolean done = false;
+            try {
+                while (open) {
+                    byte[] request;
+                    synchronized (this) {
+                        request = responseBytes < MAX_QUEUED_BYTES ? requests.poll() : null;
+                        if (request == null) {
+                            running = false;
+                            done = true;
+                            return;
+                        }
+                        requestBytes -= request.length;
+                    }
+                    ByteBuffer response = handle(request);
+                    synchronized (this) {
+                        responses.add(response);
+                        responseBytes += response.capacity();
+                    }
+                    changed.add(this);
+                    selector.wakeup();
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    synchronized (this) {
+                        running = false;
+                    }
+                    close();
+                }
+            }
+        }
+
+        private ByteBuffer handle(byte[] request) {
+            String text = new String(request, 1, request.length - 1, StandardCharsets.UTF_8);
+            byte status = OK;
+            String body;
+            try {
+                if (request[0] == EVALUATE) {
+                    calculator.evaluate(text.trim());
+                } else if (request[0] == SCRIPT) {
+                    calculator.processExpressions(text.split("\n"));
+                } else {
+                    throw new IllegalArgumentException("Unknown request type: " + request[0]);
+                }
+                body = calculator.formatOutput(calculator.variables);
+            } catch (RuntimeException | StackOverflowError e) {
+                status = ERROR;
+                body = Parser.failureMessage(e);
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer response = ByteBuffer.allocate(5 + bytes.length);
+            response.putInt(1 + bytes.length).put(status).put(bytes);
+            response.flip();
+            return response;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (!open) {
+                    return;
+                }
+                open = false;
+            }
+            connections.decrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
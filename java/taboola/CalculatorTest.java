@@ -1,5 +1,28 @@
 package taboola;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 /**
  * Comprehensive unit tests for Calculator class.
  * Tests all methods including edge cases.
@@ -118,6 +141,31 @@ public class CalculatorTest {
         assertEquals(3, calculator.variables.size(), "setVariable: Multiple variables stored");
     }
 
+    public void testSetVariable_StorageSizedByOwnVariables() {
+        // Slots are process-wide: make sure the next name gets a slot far above 100000
+        for (int i = 0; i < 100_000; i++) {
+            Symbols.GLOBAL.intern("sparse_" + i);
+        }
+        String name = "sparse_last";
+        Symbols.GLOBAL.intern(name);
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        Calculator[] calculators = {new Calculator(), new IntegerCalculator(), new ConcurrentCalculator()};
+        for (Calculator calc : calculators) {
+            String kind = calc.getClass().getSimpleName();
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            calc.setVariable(name, 7);
+            calc.setVariable("a", 1);
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            assertTrue(allocated < 64 * 1024, "setVariable: " + kind + " does not allocate up to the highest slot (" + allocated + " bytes)");
+            assertEquals("(a=1,sparse_last=7)", calc.formatOutput(calc.variables), "setVariable: " + kind + " keeps high slots");
+            calc.variables.clear();
+            assertEquals("()", calc.formatOutput(calc.variables), "setVariable: " + kind + " clears high slots");
+            calc.setVariable(name, 8);
+            assertEquals("(sparse_last=8)", calc.formatOutput(calc.variables), "setVariable: " + kind + " defines again after clear");
+        }
+    }
+
     // ==================== Tests for Pre-Increment/Decrement ====================
 
     public void testReplacePreIncrement_Normal() {
@@ -391,6 +439,37 @@ public class CalculatorTest {
         assertEquals(10.0, result, "evaluate: Nested parentheses");
     }
 
+    public void testEvaluate_DeepNesting() {
+        setUp();
+        assertEquals(501.0, calculator.evaluate(nested(500)), "evaluate: 500 levels of parentheses");
+        assertEquals("Expression nested too deeply.", failure(calculator, nested(20_000)),
+                     "evaluate: 20000 levels of parentheses are rejected");
+        StringBuilder chain = new StringBuilder("1");
+        for (int i = 0; i < 20_000; i++) {
+            chain.append(" + 1");
+        }
+        assertEquals("Expression nested too deeply.", failure(calculator, chain.toString()),
+                     "evaluate: A 20000-operator chain is rejected");
+        assertEquals("Expression nested too deeply.",
+                     failure(calculator, "- ".repeat(20_000) + "x"),
+                     "evaluate: 20000 unary minus signs are rejected");
+        calculator.evaluate("x = " + nested(500));
+        assertEquals(501.0, calculator.variables.get("x").getValue(), "evaluate: Still usable after a rejected statement");
+    }
+
+    private static String nested(int depth) {
+        return "(1 + ".repeat(depth) + "1" + ")".repeat(depth);
+    }
+
+    private String failure(Calculator calc, String expression) {
+        try {
+            calc.evaluate(expression);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        return "no exception";
+    }
+
     // ==================== Edge Cases ====================
 
     public void testEvaluate_NegativeNumbers() {
@@ -483,6 +562,2012 @@ public class CalculatorTest {
                      "evaluate: Multiple equals signs");
     }
 
+    // ==================== Tests for Compiled Expressions ====================
+
+    public void testCompile_ReusedAcrossEvaluations() {
+        setUp();
+        calculator.setVariable("x", 1);
+        Expression expression = calculator.compile("x = x * 2 + 1");
+        expression.eval(calculator);
+        expression.eval(calculator);
+        assertEquals(15.0, expression.eval(calculator), "compile: Same tree evaluated repeatedly");
+        assertEquals(15.0, calculator.variables.get("x").getValue(), "compile: Assignment applied on each eval");
+    }
+
+    public void testCompile_SharedAcrossCalculators() {
+        setUp();
+        Expression expression = calculator.compile("a + b * 2");
+        Calculator other = new Calculator();
+        calculator.setVariable("a", 1);
+        calculator.setVariable("b", 2);
+        other.setVariable("a", 10);
+        other.setVariable("b", 20);
+        assertEquals(5.0, expression.eval(calculator), "compile: Evaluated against first calculator");
+        assertEquals(50.0, expression.eval(other), "compile: Evaluated against second calculator");
+    }
+
+    public void testCompile_IncrementSideEffects() {
+        setUp();
+        calculator.setVariable("x", 5);
+        Expression expression = calculator.compile("x++ + ++x");
+        assertEquals(12.0, expression.eval(calculator), "compile: Mixed increments on first eval");
+        assertEquals(16.0, expression.eval(calculator), "compile: Mixed increments on second eval");
+        assertEquals(9.0, calculator.variables.get("x").getValue(), "compile: Variable after two evals");
+    }
+
+    public void testCompile_WithoutSpaces() {
+        setUp();
+        calculator.setVariable("x", 5);
+        calculator.setVariable("b", 2);
+        calculator.setVariable("d", 3);
+        assertEquals(-4.0, calculator.evaluate("x+++(++b)*(d-8)+x"), "compile: Operators without spaces");
+        assertEquals(3.0, calculator.evaluate("b*=1"), "compile: Compound assignment without spaces");
+    }
+
+    public void testCompile_NegativeOperands() {
+        setUp();
+        calculator.setVariable("x", 4);
+        assertEquals(9.0, calculator.evaluate("x - -5"), "compile: Negative literal");
+        assertEquals(-8.0, calculator.evaluate("-x * 2"), "compile: Negated variable");
+        assertEquals(-9.0, calculator.evaluate("-(x + 5)"), "compile: Negated parentheses");
+    }
+
+    public void testCompile_UndefinedVariable() {
+        setUp();
+        assertThrows(() -> calculator.evaluate("y + 1"), "compile: Undefined variable throws exception");
+    }
+
+    public void testCompile_MismatchedParentheses() {
+        setUp();
+        assertThrows(() -> calculator.compile("( 2 + 3"), "compile: Missing closing parenthesis");
+        assertThrows(() -> calculator.compile("2 + 3 )"), "compile: Missing opening parenthesis");
+    }
+
+    public void testCompile_DivisionByZeroAtEval() {
+        setUp();
+        calculator.setVariable("x", 0);
+        Expression expression = calculator.compile("10 / x");
+        assertThrows(() -> expression.eval(calculator), "compile: Division by zero is reported on eval");
+    }
+
+    // ==================== Tests for Variable Store ====================
+
+    public void testVariables_ViewIsStableAcrossAssignments() {
+        setUp();
+        calculator.setVariable("x", 1);
+        Var view = calculator.variables.get("x");
+        calculator.evaluate("x = 10");
+        calculator.evaluate("x++");
+        assertTrue(view == calculator.variables.get("x"), "variables: Same Var view after assignments");
+        assertEquals(11.0, view.getValue(), "variables: View reads current value");
+    }
+
+    public void testVariables_ViewWritesThrough() {
+        setUp();
+        calculator.setVariable("x", 1);
+        calculator.variables.get("x").setValue(41.0);
+        assertEquals(42.0, calculator.evaluate("x + 1"), "variables: Var.setValue visible to expressions");
+    }
+
+    public void testVariables_MapPutAndRemove() {
+        setUp();
+        calculator.variables.put("y", new Var("y", 7.0));
+        assertEquals(14.0, calculator.evaluate("y * 2"), "variables: Map put defines variable");
+        calculator.variables.remove("y");
+        assertThrows(() -> calculator.evaluate("y * 2"), "variables: Map remove undefines variable");
+    }
+
+    public void testVariables_ClearUndefinesAll() {
+        setUp();
+        calculator.setVariable("x", 1);
+        calculator.setVariable("y", 2);
+        calculator.variables.clear();
+        assertEquals(0.0, calculator.variables.size(), "variables: Clear empties the map");
+        assertThrows(() -> calculator.evaluate("x + y"), "variables: Clear undefines variables");
+    }
+
+    public void testVariables_ManyVariables() {
+        setUp();
+        for (int i = 0; i < 5000; i++) {
+            calculator.evaluate("v" + i + " = " + i);
+        }
+        calculator.evaluate("total = v0 + v4999");
+        assertEquals(5001.0, calculator.variables.size(), "variables: All variables present in map");
+        assertEquals(4999.0, calculator.variables.get("total").getValue(), "variables: Values read from slots");
+    }
+
+    public void testVariables_ProcessExpressionsReturnsLiveMap() {
+        setUp();
+        HashMap<String, Var> results = calculator.processExpressions(new String[] {"a = 1"});
+        calculator.evaluate("a += 1");
+        assertEquals(2.0, results.get("a").getValue(), "variables: Returned map reflects later updates");
+    }
+
+    // ==================== Tests for Tiered Compilation ====================
+
+    private Expression compileHot(String source) {
+        int threshold = Expression.getCompileThreshold();
+        Expression.setCompileThreshold(1);
+        try {
+            Expression expression = new Calculator(null).compile(source);
+            Calculator scratch = new Calculator(null);
+            try {
+                expression.eval(scratch);
+            } catch (IllegalArgumentException e) {
+                // Promotion happens before evaluation; errors from the empty calculator are expected
+            }
+            return expression;
+        } finally {
+            Expression.setCompileThreshold(threshold);
+        }
+    }
+
+    public void testTiered_PromotedExpressionMatchesInterpreter() {
+        setUp();
+        String source = "x++ + ++b * ( d - 8 ) + x % 4 - -d / 2";
+        Expression hot = compileHot(source);
+        assertTrue(hot.isCompiled(), "tiered: Expression promoted to bytecode");
+        Calculator interpreted = new Calculator(null);
+        for (Calculator c : new Calculator[] {calculator, interpreted}) {
+            c.setVariable("x", 5);
+            c.setVariable("b", 2);
+            c.setVariable("d", 3);
+        }
+        double expected = interpreted.compile(source).eval(interpreted);
+        assertEquals(expected, hot.eval(calculator), "tiered: Same result as interpreter");
+        assertEquals(interpreted.variables.get("x").getValue(), calculator.variables.get("x").getValue(),
+                     "tiered: Same post-increment side effect");
+        assertEquals(interpreted.variables.get("b").getValue(), calculator.variables.get("b").getValue(),
+                     "tiered: Same pre-increment side effect");
+    }
+
+    public void testTiered_CompoundAssignment() {
+        setUp();
+        Expression hot = compileHot("total *= 1.5 + n");
+        calculator.setVariable("total", 4);
+        calculator.setVariable("n", 0.5);
+        assertEquals(8.0, hot.eval(calculator), "tiered: Compound assignment result");
+        assertEquals(8.0, calculator.variables.get("total").getValue(), "tiered: Compound assignment stored");
+    }
+
+    public void testTiered_DivisionByZero() {
+        setUp();
+        Expression hot = compileHot("a / b");
+        calculator.setVariable("a", 1);
+        calculator.setVariable("b", 0);
+        String message = null;
+        try {
+            hot.eval(calculator);
+        } catch (IllegalArgumentException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Division by zero is not allowed.", String.valueOf(message), "tiered: Division by zero message");
+    }
+
+    public void testTiered_UndefinedVariable() {
+        setUp();
+        Expression hot = compileHot("y = undefinedVar + 1");
+        String message = null;
+        try {
+            hot.eval(calculator);
+        } catch (IllegalArgumentException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Variable not defined: undefinedVar", String.valueOf(message), "tiered: Undefined variable message");
+        assertTrue(!calculator.variables.containsKey("y"), "tiered: Failed assignment leaves target undefined");
+    }
+
+    public void testTiered_ColdExpressionStaysInterpreted() {
+        setUp();
+        int threshold = Expression.getCompileThreshold();
+        Expression.setCompileThreshold(100);
+        try {
+            Expression expression = new Calculator(null).compile("1 + 2");
+            for (int i = 0; i < 99; i++) {
+                expression.eval(calculator);
+            }
+            assertTrue(!expression.isCompiled(), "tiered: Below threshold stays interpreted");
+            expression.eval(calculator);
+            assertTrue(expression.isCompiled(), "tiered: Promoted at threshold");
+        } finally {
+            Expression.setCompileThreshold(threshold);
+        }
+    }
+
+    // ==================== Tests for Batch Evaluation ====================
+
+    public void testEvaluateBatch_MatchesScalar() {
+        setUp();
+        int rows = 3000;
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = i * 0.5 - 100;
+            y[i] = (i * 7919) % 1000 + 1;
+        }
+        calculator.setVariable("k", 3);
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("x", x);
+        columns.put("y", y);
+        double[] out = new double[rows];
+        calculator.evaluateBatch("a = -(x * k + y % 7) / y - 2.5", columns, out);
+
+        Calculator scalar = new Calculator();
+        scalar.setVariable("k", 3);
+        boolean same = true;
+        for (int i = 0; i < rows; i++) {
+            scalar.setVariable("x", x[i]);
+            scalar.setVariable("y", y[i]);
+            same &= Double.compare(scalar.evaluate("a = -(x * k + y % 7) / y - 2.5"), out[i]) == 0;
+        }
+        assertTrue(same, "evaluateBatch: Every row matches scalar evaluate");
+        assertEquals(scalar.variables.get("a").getValue(), calculator.variables.get("a").getValue(),
+                     "evaluateBatch: Assignment target holds last row's value");
+    }
+
+    public void testEvaluateBatch_ConstantExpression() {
+        setUp();
+        double[] out = new double[5];
+        calculator.evaluateBatch("(5 + 3) * 10", new HashMap<>(), out);
+        assertEquals(80.0, out[4], "evaluateBatch: Constant expression broadcast to all rows");
+    }
+
+    public void testEvaluateBatch_DivisionByZero() {
+        setUp();
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("x", new double[] {1, 2, 0, 4});
+        assertThrows(() -> calculator.evaluateBatch("10 / x", columns, new double[4]),
+                     "evaluateBatch: Division by zero throws exception");
+    }
+
+    public void testEvaluateBatch_RejectsSideEffects() {
+        setUp();
+        calculator.setVariable("a", 1);
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("x", new double[] {1, 2});
+        assertThrows(() -> calculator.evaluateBatch("x++ + 1", columns, new double[2]),
+                     "evaluateBatch: ++ is rejected");
+        assertThrows(() -> calculator.evaluateBatch("a += x", columns, new double[2]),
+                     "evaluateBatch: Compound assignment is rejected");
+
+        Calculator acc = new Calculator(null);
+        acc.setVariable("acc", 0);
+        Map<String, double[]> xs = new HashMap<>();
+        xs.put("x", new double[] {1, 2, 3});
+        assertThrows(() -> acc.evaluateBatch("acc = acc + x", xs, new double[3]),
+                     "evaluateBatch: Assignment reading its target without a column is rejected");
+        assertThrows(() -> acc.evaluateBatch("acc += x", xs, new double[3]),
+                     "evaluateBatch: Accumulating compound assignment is rejected");
+        assertThrows(() -> acc.evaluateBatch("acc++ + x", xs, new double[3]),
+                     "evaluateBatch: ++ on a variable without a column is rejected");
+        assertEquals("(acc=0)", acc.formatOutput(acc.variables), "evaluateBatch: Rejected expressions change nothing");
+        xs.put("acc", new double[] {10, 20, 30});
+        double[] out = new double[3];
+        acc.evaluateBatch("acc = acc + x", xs, out);
+        assertEquals("[11.0, 22.0, 33.0] (acc=33)", Arrays.toString(out) + " " + acc.formatOutput(acc.variables),
+                     "evaluateBatch: Assignment reading its target's column");
+    }
+
+    public void testEvaluateBatch_UndefinedVariable() {
+        setUp();
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("x", new double[] {1, 2});
+        assertThrows(() -> calculator.evaluateBatch("x + missing", columns, new double[2]),
+                     "evaluateBatch: Variable without column or value throws exception");
+    }
+
+    public void testEvaluateBatch_FailureChangesNothing() {
+        setUp();
+        calculator.setVariable("x", 99);
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("a", new double[] {1, 2, 3});
+        columns.put("b", new double[] {1, 1, 0});
+        String message = null;
+        try {
+            calculator.evaluateBatch("x = a / b", columns, new double[3]);
+        } catch (IllegalArgumentException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Division by zero is not allowed.", String.valueOf(message), "evaluateBatch: Failing row reported");
+        assertEquals("(x=99)", calculator.formatOutput(calculator.variables),
+                     "evaluateBatch: Failing batch leaves target and column variables untouched");
+
+        String[] expressions = {"a / 0 + undefinedVar", "undefinedVar + a / 0", "a / b + undefinedVar"};
+        for (String expression : expressions) {
+            Calculator scalar = new Calculator(null);
+            scalar.setVariable("a", 1);
+            scalar.setVariable("b", 1);
+            try {
+                calculator.evaluateBatch(expression, columns, new double[3]);
+                message = "no exception";
+            } catch (IllegalArgumentException e) {
+                message = e.getMessage();
+            }
+            assertEquals(failure(scalar, expression), message, "evaluateBatch: Same error as scalar for " + expression);
+        }
+    }
+
+    public void testEvaluateBatch_ShortColumn() {
+        setUp();
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("x", new double[] {1});
+        assertThrows(() -> calculator.evaluateBatch("x + 1", columns, new double[2]),
+                     "evaluateBatch: Column shorter than output throws exception");
+    }
+
+    // ==================== Tests for Streaming Scripts ====================
+
+    private static final String[] STREAM_SCRIPT = {
+        "i = 0",
+        "j = ++i",
+        "x = i++ + 5",
+        "y = (5 + 3) * 10",
+        "i += y"
+    };
+
+    private String longStatement() {
+        StringBuilder sb = new StringBuilder("big = 0");
+        for (int i = 0; i < 3000; i++) {
+            sb.append(" + ").append(i % 10);
+        }
+        return sb.toString();
+    }
+
+    public void testProcessExpressions_Reader() {
+        setUp();
+        String script = String.join("\r\n", STREAM_SCRIPT) + "\n\n   \n" + longStatement();
+        String expected = new Calculator().formatOutput(new Calculator().processExpressions(
+            (String.join("\n", STREAM_SCRIPT) + "\n" + longStatement()).split("\n")));
+        try {
+            HashMap<String, Var> results = calculator.processExpressions(new StringReader(script));
+            assertEquals(expected, calculator.formatOutput(results), "processExpressions(Reader): Same result as array API");
+        } catch (IOException e) {
+            assertTrue(false, "processExpressions(Reader): Unexpected IOException " + e);
+        }
+    }
+
+    public void testProcessExpressions_Path() {
+        setUp();
+        try {
+            Path file = Files.createTempFile("calculator", ".txt");
+            try {
+                Files.write(file, (String.join("\n", STREAM_SCRIPT) + "\n\t\n").getBytes("US-ASCII"));
+                HashMap<String, Var> results = calculator.processExpressions(file);
+                assertEquals("(i=82,j=1,x=6,y=80)", calculator.formatOutput(results),
+                             "processExpressions(Path): Same result as array API");
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            assertTrue(false, "processExpressions(Path): Unexpected IOException " + e);
+        }
+    }
+
+    public void testProcessExpressions_PathWithoutTrailingNewline() {
+        setUp();
+        try {
+            Path file = Files.createTempFile("calculator", ".txt");
+            try {
+                Files.write(file, "a = 2\nb = a * 21".getBytes("US-ASCII"));
+                calculator.processExpressions(file);
+                assertEquals(42.0, calculator.variables.get("b").getValue(),
+                             "processExpressions(Path): Last line without newline is executed");
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            assertTrue(false, "processExpressions(Path): Unexpected IOException " + e);
+        }
+    }
+
+    public void testProcessExpressions_ReaderPropagatesErrors() {
+        setUp();
+        assertThrows(() -> {
+            try {
+                calculator.processExpressions(new StringReader("a = 1\nb = a / 0\n"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "processExpressions(Reader): Division by zero throws exception");
+    }
+
+    // ==================== Tests for Parallel Execution ====================
+
+    private String[] independentBlocksScript(int blocks) {
+        List<String> script = new ArrayList<>();
+        for (int b = 0; b < blocks; b++) {
+            script.add("a" + b + " = " + b);
+            script.add("c" + b + " = a" + b + "++ * 2");
+            script.add("a" + b + " += c" + b + " + shared");
+            script.add("d" + b + " = --a" + b + " % 7");
+            script.add("shared2 = shared + " + b);
+        }
+        return script.toArray(new String[0]);
+    }
+
+    public void testParallel_MatchesSequential() {
+        setUp();
+        String[] script = independentBlocksScript(2000);
+        Calculator sequential = new Calculator();
+        sequential.setVariable("shared", 3);
+        calculator.setVariable("shared", 3);
+        String expected = sequential.formatOutput(sequential.processExpressions(script));
+        String actual = calculator.formatOutput(calculator.processExpressionsParallel(script));
+        assertEquals(expected, actual, "processExpressionsParallel: Same variables as sequential execution");
+    }
+
+    public void testParallel_Levels() {
+        setUp();
+        Script script = Script.compile(calculator, new String[] {
+            "a = 1", "b = 2", "c = a + b", "a = 5", "d = a++", "e = 7"
+        });
+        int[][] levels = script.levels();
+        assertEquals("[0, 1, 5]", Arrays.toString(levels[0]), "levels: Independent statements share the first level");
+        assertEquals("[2]", Arrays.toString(levels[1]), "levels: Reader waits for its writers");
+        assertEquals("[3]", Arrays.toString(levels[2]), "levels: Overwrite waits for earlier reader");
+        assertEquals("[4]", Arrays.toString(levels[3]), "levels: Hidden write of ++ is ordered");
+    }
+
+    public void testParallel_ReportsEarliestFailure() {
+        setUp();
+        String[] script = new String[600];
+        for (int i = 0; i < script.length; i++) {
+            script[i] = "v" + i + " = " + (i == 100 ? "1 / 0" : i == 400 ? "missing + 1" : String.valueOf(i));
+        }
+        String message = null;
+        try {
+            calculator.processExpressionsParallel(script);
+        } catch (IllegalArgumentException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Division by zero is not allowed.", String.valueOf(message),
+                     "processExpressionsParallel: Earliest failing statement is reported");
+
+        String[] syntaxError = independentBlocksScript(500);
+        syntaxError[syntaxError.length - 2] = "z = (1 + ";
+        Calculator sequential = new Calculator();
+        sequential.setVariable("shared", 3);
+        String expected = failure(() -> sequential.processExpressions(syntaxError)) + " "
+            + sequential.formatOutput(sequential.variables);
+        Calculator parallel = new Calculator();
+        parallel.setVariable("shared", 3);
+        String actual = failure(() -> parallel.processExpressionsParallel(syntaxError)) + " "
+            + parallel.formatOutput(parallel.variables);
+        assertEquals(expected, actual, "processExpressionsParallel: Statements before a syntax error run");
+    }
+
+    private static String failure(Runnable run) {
+        try {
+            run.run();
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    // ==================== Tests for Optimizer ====================
+
+    private String optimized(String expression) {
+        return Optimizer.optimize(Parser.parse(expression, Symbols.GLOBAL)).toString();
+    }
+
+    public void testOptimizer_FoldsConstants() {
+        assertEquals("y = 80.0", optimized("y = (5 + 3) * 10"), "optimize: Constant subtree folded");
+        assertEquals("a = (x + 12.0)", optimized("a = x + 2 * (3 + 3)"), "optimize: Constant operand folded");
+        assertEquals("a = 2.0", optimized("a = -(-2)"), "optimize: Negated constants folded");
+    }
+
+    public void testOptimizer_Identities() {
+        assertEquals("x", optimized("x * 1"), "optimize: x * 1 is x");
+        assertEquals("x", optimized("1 * x / 1"), "optimize: 1 * x / 1 is x");
+        assertEquals("x", optimized("x - 0"), "optimize: x - 0 is x");
+        assertEquals("-x", optimized("x * -1"), "optimize: x * -1 is -x");
+        assertEquals("(x * 0.25)", optimized("x / 4"), "optimize: Division by power of two becomes multiplication");
+        assertEquals("(x / 3.0)", optimized("x / 3"), "optimize: Inexact reciprocal kept as division");
+        assertEquals("(x + 0.0)", optimized("x + 0"), "optimize: x + 0 kept for -0.0");
+        assertEquals("(x * 0.0)", optimized("x * 0"), "optimize: x * 0 kept for NaN and infinities");
+    }
+
+    public void testOptimizer_KeepsIeeeResults() {
+        setUp();
+        calculator.setVariable("z", -0.0);
+        calculator.setVariable("inf", Double.POSITIVE_INFINITY);
+        assertTrue(1 / calculator.evaluate("z + 0") > 0, "optimize: -0.0 + 0 is 0.0");
+        assertTrue(1 / calculator.evaluate("z - 0") < 0, "optimize: -0.0 - 0 is -0.0");
+        assertTrue(Double.isNaN(calculator.evaluate("inf * 0")), "optimize: inf * 0 is NaN");
+        assertEquals(1e-300, calculator.evaluate("1e-300 * 1024 / 1024"), "optimize: Power of two division is exact");
+    }
+
+    public void testOptimizer_DivisionByConstantZero() {
+        setUp();
+        calculator.setVariable("x", 5);
+        String message = null;
+        try {
+            calculator.evaluate("a = x++ / (2 - 2)");
+        } catch (IllegalArgumentException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Division by zero is not allowed.", String.valueOf(message),
+                     "optimize: Constant zero divisor fails like divide");
+        assertEquals(6.0, calculator.variables.get("x").getValue(), "optimize: Dividend evaluated before failing");
+        assertTrue(!calculator.variables.containsKey("a"), "optimize: Failed assignment not stored");
+        assertThrows(() -> calculator.evaluate("missing / 0"), "optimize: Undefined dividend still reported");
+    }
+
+    // ==================== Tests for Shared Subexpressions ====================
+
+    public void testShared_MatchesSequential() {
+        String[] script = {
+            "a = 2", "b = 3", "c = 4",
+            "x = (a + b) * c + 1",
+            "y = (a + b) * c - (a + b)",
+            "b++",
+            "z = (a + b) * c",
+            "c *= (a + b) * c",
+            "w = (a + b) * c + -(a + b) % (a++ + (a + b))",
+            "v = (a + b) * c / 0.5 + (a + b) * c"
+        };
+        Calculator sequential = new Calculator();
+        Calculator shared = new Calculator();
+        assertEquals(sequential.formatOutput(sequential.processExpressions(script)),
+                     shared.formatOutput(shared.processExpressionsShared(script)),
+                     "processExpressionsShared: Same variables as sequential execution");
+    }
+
+    public void testShared_ComputesRepeatsOnce() {
+        int[] reads = new int[1];
+        Calculator counting = new Calculator() {
+            @Override
+            double valueOf(int slot) {
+                reads[0]++;
+                return super.valueOf(slot);
+            }
+        };
+        counting.setVariable("a", 1);
+        counting.setVariable("b", 2);
+        counting.setVariable("c", 3);
+        counting.processExpressionsShared(new String[] {
+            "x = (a + b) * c", "y = (a + b) * c + 1", "z = 2 * ((a + b) * c)"
+        });
+        assertEquals(3, reads[0], "processExpressionsShared: Repeated subexpression read once");
+        assertEquals(18.0, counting.variables.get("z").getValue(), "processExpressionsShared: Reused value is correct");
+        reads[0] = 0;
+        counting.processExpressionsShared(new String[] {"x = a * b", "a += 1", "y = a * b"});
+        assertEquals(5, reads[0], "processExpressionsShared: Write to an input invalidates the value");
+        assertEquals(4.0, counting.variables.get("y").getValue(), "processExpressionsShared: Recomputed after write");
+    }
+
+    public void testShared_FailsAtSameStatement() {
+        setUp();
+        calculator.setVariable("a", 1);
+        String message = null;
+        try {
+            calculator.processExpressionsShared(new String[] {"x = a / (a - 1)", "y = 5", "z = a / (a - 1)"});
+        } catch (IllegalArgumentException e) {
+            message = e.getMessage();
+        }
+        assertEquals("Division by zero is not allowed.", String.valueOf(message),
+                     "processExpressionsShared: Same exception as sequential");
+        assertTrue(!calculator.variables.containsKey("y"), "processExpressionsShared: Later statements not run");
+
+        String[] syntaxError = {"x = 1", "y = x + 1", "z = (1 + ", "w = 4"};
+        Calculator sequential = new Calculator();
+        String expected = failure(() -> sequential.processExpressions(syntaxError)) + " " + sequential.formatOutput(sequential.variables);
+        Calculator shared = new Calculator();
+        String actual = failure(() -> shared.processExpressionsShared(syntaxError)) + " "
+            + shared.formatOutput(shared.variables);
+        assertEquals(expected, actual, "processExpressionsShared: Statements before a syntax error run");
+    }
+
+    // ==================== Tests for Reactive Calculator ====================
+
+    private static final String[] MODEL = {
+        "rate = base * 2",
+        "total = rate + fee",
+        "rate += 1",
+        "count = 0",
+        "count++",
+        "scaled = total * count++ + rate",
+        "fee2 = fee % 7",
+        "base = 100",
+        "final = base + scaled"
+    };
+
+    private String rerun(double base, double fee) {
+        Calculator fresh = new Calculator();
+        fresh.setVariable("base", base);
+        fresh.setVariable("fee", fee);
+        return fresh.formatOutput(fresh.processExpressions(MODEL));
+    }
+
+    public void testReactive_MatchesRerun() {
+        ReactiveCalculator model = new ReactiveCalculator();
+        model.setVariable("base", 3);
+        model.setVariable("fee", 10);
+        HashMap<String, Var> variables = model.load(MODEL);
+        assertEquals(rerun(3, 10), model.formatOutput(variables), "load: Same variables as processExpressions");
+        model.setVariable("base", 4);
+        assertEquals(rerun(4, 10), model.formatOutput(variables), "setVariable: Input read by several statements");
+        model.setVariable("fee", 12.5);
+        assertEquals(rerun(4, 12.5), model.formatOutput(variables), "setVariable: Second input");
+        model.setVariable("unrelated", 1);
+        assertEquals(1.0, variables.get("unrelated").getValue(), "setVariable: Variable outside the model");
+    }
+
+    public void testReactive_RecomputesOnlyDependents() {
+        int[] reads = new int[1];
+        ReactiveCalculator model = new ReactiveCalculator() {
+            @Override
+            double valueOf(int slot) {
+                reads[0]++;
+                return super.valueOf(slot);
+            }
+        };
+        String[] script = new String[20000];
+        for (int i = 0; i < script.length; i++) {
+            String source = i == 19000 ? "in" : i % 1000 == 0 ? "other" : "cell" + (i - 1);
+            script[i] = "cell" + i + " = " + source + " + 1";
+        }
+        model.setVariable("in", 0);
+        model.setVariable("other", 0);
+        model.load(script);
+        reads[0] = 0;
+        model.setVariable("in", 5);
+        assertEquals(1000.0, reads[0], "setVariable: Only the 1000 dependent statements recomputed");
+        assertEquals(6.0, model.variables.get("cell19000").getValue(), "setVariable: Dependent refreshed");
+        assertEquals(1005.0, model.variables.get("cell19999").getValue(), "setVariable: End of chain refreshed");
+        assertEquals(1000.0, model.variables.get("cell18999").getValue(), "setVariable: Independent chain unchanged");
+    }
+
+    public void testReactive_StopsWhenValuesUnchanged() {
+        int[] reads = new int[1];
+        ReactiveCalculator model = new ReactiveCalculator() {
+            @Override
+            double valueOf(int slot) {
+                reads[0]++;
+                return super.valueOf(slot);
+            }
+        };
+        model.setVariable("x", 3);
+        model.load(new String[] {"parity = x % 2", "a = parity * 10", "b = a + 1"});
+        reads[0] = 0;
+        model.setVariable("x", 5);
+        assertEquals(1.0, reads[0], "setVariable: Propagation stops at unchanged value");
+        assertEquals(11.0, model.variables.get("b").getValue(), "setVariable: Values kept");
+    }
+
+    public void testReactive_RollsBackOnFailure() {
+        ReactiveCalculator model = new ReactiveCalculator();
+        model.setVariable("x", 3);
+        HashMap<String, Var> variables = model.load(new String[] {"y = x + 1", "z = 10 / (x - 1)", "w = y * 2"});
+        String before = model.formatOutput(variables);
+        assertThrows(() -> model.setVariable("x", 1), "setVariable: Failing recomputation throws");
+        assertEquals(before, model.formatOutput(variables), "setVariable: Variables restored after failure");
+        model.setVariable("x", 6);
+        assertEquals("(w=14,x=6,y=7,z=2)", model.formatOutput(variables), "setVariable: Model usable after failure");
+    }
+
+    // ==================== Tests for Lazy Calculator ====================
+
+    public void testLazy_MatchesEager() {
+        LazyCalculator model = new LazyCalculator();
+        model.setVariable("base", 3);
+        model.setVariable("fee", 10);
+        HashMap<String, Var> variables = model.load(MODEL);
+        assertEquals("(fee=10)", model.formatOutput(variables), "lazy: Load runs no statement, reassigned base hidden");
+        HashSet<String> all = new HashSet<>(Arrays.asList(
+            "base", "count", "fee", "fee2", "final", "rate", "scaled", "total"));
+        assertEquals(rerun(3, 10), model.formatOutput(all), "lazy: Same values as processExpressions");
+        assertEquals(rerun(3, 10), model.formatOutput(variables), "lazy: Evaluated values visible in the map");
+        model.setVariable("base", 4);
+        assertEquals(rerun(4, 10), model.formatOutput(all), "lazy: Input change re-evaluated");
+        model.setVariable("fee", 12.5);
+        assertEquals(rerun(4, 12.5), model.formatOutput(all), "lazy: Second input");
+    }
+
+    public void testLazy_EvaluatesOnlyNeeded() {
+        int[] reads = new int[1];
+        LazyCalculator model = new LazyCalculator() {
+            @Override
+            double valueOf(int slot) {
+                reads[0]++;
+                return super.valueOf(slot);
+            }
+        };
+        String[] script = new String[20000];
+        for (int i = 0; i < script.length; i++) {
+            String source = i == 19000 ? "in" : i % 1000 == 0 ? "other" : "cell" + (i - 1);
+            script[i] = "cell" + i + " = " + source + " + 1";
+        }
+        model.setVariable("in", 0);
+        model.setVariable("other", 0);
+        model.load(script);
+        reads[0] = 0;
+        assertEquals(501, model.get("cell19500"), "lazy: Value of a requested variable");
+        assertEquals(501, reads[0], "lazy: Only the 501 statements it depends on evaluated");
+        assertEquals(2, model.formatOutput(new HashSet<>(Arrays.asList("cell19500", "cell19001"))).split(",").length,
+            "lazy: Subset output");
+        assertEquals(501, reads[0], "lazy: Results memoized");
+        model.setVariable("in", 5);
+        assertEquals(1000, model.get("cell18999"), "lazy: Independent chain");
+        assertEquals(1501, reads[0], "lazy: Independent chain evaluated once");
+        assertEquals(506, model.get("cell19500"), "lazy: Dependent value refreshed after input change");
+        assertEquals(2002, reads[0], "lazy: Only invalidated statements re-evaluated");
+        assertTrue(!model.variables.containsKey("cell5"), "lazy: Unrequested variables not evaluated");
+    }
+
+    public void testLazy_SideEffectsInScriptOrder() {
+        String[] script = {"x = 0", "y = x++", "x += 10", "z = ++x * 2", "t = y", "w = x--", "x *= 3", "v = 5"};
+        Calculator eager = new Calculator();
+        eager.processExpressions(script);
+        LazyCalculator model = new LazyCalculator();
+        model.load(script);
+        assertEquals(eager.variables.get("z").getValue(), model.get("z"), "lazy: ++ chain evaluated from its start");
+        assertEquals("(y=0,z=24)", model.formatOutput(model.variables), "lazy: Intermediate x not exposed");
+        assertEquals(eager.variables.get("x").getValue(), model.get("x"), "lazy: Compound assignment after --");
+        assertEquals(eager.formatOutput(eager.variables),
+            model.formatOutput(new HashSet<>(Arrays.asList("t", "v", "w", "x", "y", "z"))), "lazy: All values match");
+    }
+
+    public void testLazy_Failures() {
+        LazyCalculator model = new LazyCalculator();
+        model.setVariable("x", 1);
+        model.load(new String[] {"y = x + 1", "z = 10 / (x - 1)", "w = y * 2", "u = missing + w"});
+        assertEquals(4, model.get("w"), "lazy: Failing statement not needed");
+        assertThrows(() -> model.get("z"), "lazy: Needed failing statement throws");
+        assertThrows(() -> model.get("u"), "lazy: Undefined variable throws");
+        assertThrows(() -> model.get("nothing"), "lazy: Unknown variable throws");
+        assertEquals("(w=4,x=1,y=2)", model.formatOutput(model.variables), "lazy: Variables consistent after failures");
+        model.setVariable("x", 3);
+        assertEquals(5, model.get("z"), "lazy: Usable after a failure");
+        model.setVariable("missing", 1);
+        assertEquals(9, model.get("u"), "lazy: Late input defines the variable");
+    }
+
+    // ==================== Tests for Output Formatting ====================
+
+    public void testFormatOutput_Values() {
+        setUp();
+        calculator.setVariable("big", 3e9);
+        calculator.setVariable("max", 0x1p62);
+        calculator.setVariable("huge", 1e19);
+        calculator.setVariable("neg", -0.0);
+        calculator.setVariable("frac", -12.375);
+        calculator.setVariable("tiny", 1e-4);
+        calculator.setVariable("third", 1 / 3.0);
+        calculator.setVariable("nan", Double.NaN);
+        calculator.setVariable("inf", Double.NEGATIVE_INFINITY);
+        assertEquals("(big=3000000000,frac=-12.375,huge=10000000000000000000,inf=-Infinity,"
+                     + "max=4611686018427387904,nan=NaN,neg=0,third=0.3333333333333333,tiny=1.0E-4)",
+                     calculator.formatOutput(calculator.variables),
+                     "formatOutput: Whole numbers beyond int range and Double.toString fractions");
+    }
+
+    public void testFormatOutput_SortedAfterChanges() {
+        setUp();
+        calculator.processExpressions(new String[] {"m = 1", "c = 2", "x = 3"});
+        assertEquals("(c=2,m=1,x=3)", calculator.formatOutput(calculator.variables), "formatOutput: Sorted names");
+        calculator.processExpressions(new String[] {"a = 4", "n = 5"});
+        assertEquals("(a=4,c=2,m=1,n=5,x=3)", calculator.formatOutput(calculator.variables),
+                     "formatOutput: New names merged in order");
+        calculator.variables.remove("m");
+        calculator.setVariable("b", 6);
+        assertEquals("(a=4,b=6,c=2,n=5,x=3)", calculator.formatOutput(calculator.variables),
+                     "formatOutput: Removed names dropped");
+        HashMap<String, Var> plain = new HashMap<>();
+        plain.put("z", new Var("z", 1.5));
+        plain.put("y", new Var("y", 2.0));
+        assertEquals("(y=2,z=1.5)", calculator.formatOutput(plain), "formatOutput: Plain HashMap sorted");
+        assertEquals("()", calculator.formatOutput(new HashMap<>()), "formatOutput: Empty map");
+    }
+
+    public void testFormatOutput_Streams() {
+        setUp();
+        StringBuilder expected = new StringBuilder("(");
+        for (int i = 0; i < 3000; i++) {
+            calculator.setVariable("v" + (10000 + i), i + 0.5);
+            expected.append(i == 0 ? "" : ",").append("v").append(10000 + i).append("=").append(i + 0.5);
+        }
+        calculator.setVariable("\u00e9t\u00e9", 1);
+        expected.append(",\u00e9t\u00e9=1)");
+        StringWriter writer = new StringWriter();
+        try {
+            calculator.formatOutput(calculator.variables, writer);
+            assertEquals(expected.toString(), writer.toString(), "formatOutput(Appendable): Streams through a Writer");
+        } catch (IOException e) {
+            assertTrue(false, "formatOutput(Appendable): Unexpected IOException " + e);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(100000);
+        calculator.formatOutput(calculator.variables, bytes);
+        assertEquals(expected.toString(), new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8),
+                     "formatOutput(ByteBuffer): UTF-8 text");
+        assertThrows(() -> calculator.formatOutput(calculator.variables, ByteBuffer.allocate(16)),
+                     "formatOutput(ByteBuffer): Overflow reported");
+    }
+
+    // ==================== Tests for Integer Calculator ====================
+
+    public void testInteger_ExactBeyondDoublePrecision() {
+        IntegerCalculator integers = new IntegerCalculator();
+        integers.processExpressions(new String[]{
+            "id = 9007199254740993",
+            "next = id + 1",
+            "id++",
+            "big = 4611686018427387903 * 2 + 1"
+        });
+        assertEquals("(big=9223372036854775807,id=9007199254740994,next=9007199254740994)",
+            integers.formatOutput(integers.variables), "integer: Exact beyond 2^53");
+        assertTrue(integers.variables.get("id").isInteger(), "integer: Variable holds a long");
+        assertTrue(integers.variables.get("big").getLongValue() == Long.MAX_VALUE, "integer: Exact long value");
+    }
+
+    public void testInteger_JavaDivisionSemantics() {
+        IntegerCalculator integers = new IntegerCalculator();
+        assertEquals(3, integers.evaluate("a = 7 / 2"), "integer: Division truncates");
+        assertEquals(-3, integers.evaluate("b = -7 / 2"), "integer: Division truncates toward zero");
+        assertEquals(-1, integers.evaluate("c = -7 % 2"), "integer: Remainder takes the dividend's sign");
+        assertEquals(1, integers.evaluate("d = 7 % -2"), "integer: Remainder ignores the divisor's sign");
+        integers.setVariable("n", 10);
+        assertEquals(5, integers.evaluate("n /= 2"), "integer: Compound division");
+        assertEquals("(a=3,b=-3,c=-1,d=1,n=5)", integers.formatOutput(integers.variables), "integer: Results");
+        assertThrows(() -> integers.evaluate("e = 1 / 0"), "integer: Division by zero");
+        assertThrows(() -> integers.evaluate("e = 1 % (n - 5)"), "integer: Remainder by zero");
+    }
+
+    public void testInteger_OverflowDetected() {
+        IntegerCalculator integers = new IntegerCalculator();
+        integers.setVariable("max", Long.MAX_VALUE);
+        integers.setVariable("min", Long.MIN_VALUE);
+        assertEquals("Integer overflow: 9223372036854775807 + 1", failure(integers, "x = max + 1"),
+            "integer: Addition overflow");
+        assertEquals("Integer overflow: -9223372036854775808 - 1", failure(integers, "x = min - 1"),
+            "integer: Subtraction overflow");
+        assertEquals("Integer overflow: 3037000500 * 3037000500", failure(integers, "x = 3037000500 * 3037000500"),
+            "integer: Multiplication overflow");
+        assertThrows(() -> integers.evaluate("x = min / -1"), "integer: Division overflow");
+        assertThrows(() -> integers.evaluate("x = -min"), "integer: Negation overflow");
+        assertThrows(() -> integers.evaluate("max++"), "integer: Increment overflow");
+        assertThrows(() -> integers.evaluate("min -= 1"), "integer: Compound overflow");
+        assertTrue(integers.variables.get("max").getLongValue() == Long.MAX_VALUE, "integer: Failed increment leaves value");
+        assertTrue(!integers.variables.containsKey("x"), "integer: Failed assignments define nothing");
+        assertEquals(0, integers.evaluate("x = min % -1"), "integer: MIN % -1 does not overflow");
+    }
+
+    public void testInteger_FallsBackToDouble() {
+        IntegerCalculator integers = new IntegerCalculator();
+        integers.processExpressions(new String[]{
+            "i = 7",
+            "half = i / 2.0",
+            "scaled = half * 2",
+            "j = i / 2",
+            "e = 1e3"
+        });
+        assertTrue(integers.variables.get("i").isInteger(), "integer: Integer literal stays integer");
+        assertTrue(!integers.variables.get("half").isInteger(), "integer: Fraction literal gives a double");
+        assertTrue(!integers.variables.get("scaled").isInteger(), "integer: Reading a double gives a double");
+        assertTrue(!integers.variables.get("e").isInteger(), "integer: Exponent literal gives a double");
+        assertEquals("(e=1000,half=3.5,i=7,j=3,scaled=7)", integers.formatOutput(integers.variables),
+            "integer: Mixed results");
+        integers.setVariable("i", 2.5);
+        assertEquals(5, integers.evaluate("k = i * 2"), "integer: Variable set as double reads as double");
+        assertEquals(2.5, integers.evaluate("i++ + 0"), "integer: Step of a double");
+        assertEquals(3.5, integers.variables.get("i").getValue(), "integer: Double incremented");
+    }
+
+    public void testInteger_MatchesDoubleModeForSmallValues() {
+        String[] script = {"x = 5", "y = 3", "z = x++ + ++y * (x - 8) % 4", "y -= z", "w = -x * -y", "x *= 2"};
+        Calculator doubles = new Calculator(null);
+        doubles.processExpressions(script);
+        IntegerCalculator integers = new IntegerCalculator();
+        integers.processExpressions(script);
+        assertEquals(doubles.formatOutput(doubles.variables), integers.formatOutput(integers.variables),
+            "integer: Same results as double mode");
+        IntegerCalculator parallel = new IntegerCalculator();
+        parallel.processExpressionsParallel(script);
+        assertEquals(integers.formatOutput(integers.variables), parallel.formatOutput(parallel.variables),
+            "integer: Parallel execution uses integer arithmetic");
+        assertTrue(parallel.variables.get("w").isInteger(), "integer: Parallel results are integers");
+    }
+
+    public void testInteger_StreamedScript() {
+        IntegerCalculator integers = new IntegerCalculator();
+        try {
+            integers.processExpressions(new StringReader("a = 9007199254740993\nb = a - 1\nc = 7 / 2.0\n"));
+        } catch (IOException e) {
+            assertTrue(false, "integer: Unexpected IOException " + e);
+        }
+        assertEquals("(a=9007199254740993,b=9007199254740992,c=3.5)",
+            integers.formatOutput(integers.variables), "integer: Streamed statements use integer arithmetic");
+    }
+
+    // ==================== Tests for Snapshots ====================
+
+    public void testSnapshot_RestoresSameOutput() {
+        Calculator original = new Calculator(null);
+        original.processExpressions(new String[]{
+            "x = 5", "y = x++ * 2.5", "negative = -0.001", "huge = 1e300", "zero = -0.0", "ünïcode = 7 / 3"
+        });
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".snapshot");
+            original.saveSnapshot(file);
+            Calculator restored = new Calculator(null);
+            restored.setVariable("stale", 1);
+            HashMap<String, Var> results = restored.restoreSnapshot(file);
+            assertEquals(original.formatOutput(original.variables), restored.formatOutput(results),
+                "snapshot: Same output after restore");
+            assertTrue(!results.containsKey("stale"), "snapshot: Restore replaces existing variables");
+            assertTrue(Double.doubleToRawLongBits(results.get("zero").getValue()) == Double.doubleToRawLongBits(-0.0),
+                "snapshot: Values restored bit for bit");
+            assertEquals(14, restored.evaluate("x + y - 4.5"), "snapshot: Restored variables usable");
+        } catch (IOException e) {
+            assertTrue(false, "snapshot: Unexpected IOException " + e);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    public void testSnapshot_LargeTableAndIntegers() {
+        IntegerCalculator original = new IntegerCalculator();
+        String[] script = new String[5000];
+        for (int i = 0; i < script.length; i++) {
+            script[i] = "snapshotVar" + i + " = " + i + " * 1000000000007";
+        }
+        original.processExpressions(script);
+        original.evaluate("fraction = 1 / 3.0");
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".snapshot");
+            original.saveSnapshot(file);
+            IntegerCalculator restored = new IntegerCalculator();
+            restored.restoreSnapshot(file);
+            assertEquals(original.formatOutput(original.variables), restored.formatOutput(restored.variables),
+                "snapshot: Large table restored");
+            assertTrue(restored.variables.get("snapshotVar4999").isInteger(), "snapshot: Integers stay exact");
+            assertTrue(!restored.variables.get("fraction").isInteger(), "snapshot: Doubles stay doubles");
+            Calculator doubles = new Calculator(null);
+            doubles.restoreSnapshot(file);
+            assertEquals(4999 * 1000000000007.0, doubles.variables.get("snapshotVar4999").getValue(),
+                "snapshot: Integers restore as doubles in a double calculator");
+        } catch (IOException e) {
+            assertTrue(false, "snapshot: Unexpected IOException " + e);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    public void testSnapshot_RejectsCorruptFiles() {
+        Calculator original = new Calculator(null);
+        original.processExpressions(new String[]{"a = 1", "b = 2"});
+        Calculator target = new Calculator(null);
+        target.setVariable("kept", 3);
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".snapshot");
+            original.saveSnapshot(file);
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[bytes.length - 12] ^= 1;
+            Files.write(file, bytes);
+            Path corrupt = file;
+            assertThrows(() -> restoreUnchecked(target, corrupt), "snapshot: Checksum mismatch rejected");
+            Files.write(file, "a = 1".getBytes(StandardCharsets.UTF_8));
+            assertThrows(() -> restoreUnchecked(target, corrupt), "snapshot: Other file rejected");
+            assertEquals("(kept=3)", target.formatOutput(target.variables), "snapshot: Failed restore changes nothing");
+        } catch (IOException e) {
+            assertTrue(false, "snapshot: Unexpected IOException " + e);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    private void restoreUnchecked(Calculator calc, Path file) {
+        try {
+            calc.restoreSnapshot(file);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            // Temporary file; nothing to do
+        }
+    }
+
+    // ==================== Tests for Journal ====================
+
+    public void testJournal_ReplayRestoresState() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".journal");
+            Calculator original = new Calculator(null);
+            original.setVariable("preset", 4);
+            try (Journal journal = new Journal(file, 1000, 60000, 64)) {
+                original.setJournal(journal);
+                original.processExpressions(new String[]{
+                    "x = 5", "y = x++ * preset", "x *= 3", "--y", "long_variable_name_for_journal = x + y / 7"
+                });
+                original.variables.remove("preset");
+            }
+            Calculator recovered = new Calculator(null);
+            recovered.replayJournal(file);
+            assertEquals(original.formatOutput(original.variables), recovered.formatOutput(recovered.variables),
+                "journal: Replay restores the same variables");
+            assertTrue(!recovered.variables.containsKey("preset"), "journal: Removal replayed");
+            assertThrows(() -> original.evaluate("x = 1"), "journal: Closed journal rejects changes");
+            original.setJournal(null);
+            assertEquals(1, original.evaluate("x = 1"), "journal: Detached calculator works without journal");
+
+            IntegerCalculator counters = new IntegerCalculator();
+            try (Journal journal = new Journal(file, 1, 0)) {
+                counters.setJournal(journal);
+                counters.evaluate("id = 9007199254740993");
+                counters.evaluate("id++");
+                journal.flush();
+                IntegerCalculator busy = new IntegerCalculator();
+                busy.setJournal(journal);
+            } catch (IllegalStateException e) {
+                assertEquals("Journal is already attached to a calculator: " + file, e.getMessage(),
+                    "journal: One calculator per journal");
+            }
+            IntegerCalculator recoveredCounters = new IntegerCalculator();
+            recoveredCounters.replayJournal(file);
+            assertEquals("(id=9007199254740994)", recoveredCounters.formatOutput(recoveredCounters.variables),
+                "journal: Appended journal replays from the latest state, integers exact");
+        } catch (IOException e) {
+            assertTrue(false, "journal: Unexpected IOException " + e);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    public void testJournal_RefusedChangeNotApplied() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".journal");
+            Calculator[] calculators = {new Calculator(null), new IntegerCalculator(), new ConcurrentCalculator(null)};
+            for (Calculator calc : calculators) {
+                String kind = calc.getClass().getSimpleName();
+                Journal journal = new Journal(file, 1000, 60000);
+                calc.setJournal(journal);
+                calc.evaluate("x = 1");
+                journal.close();
+                for (String statement : new String[]{"x = 5", "x++", "--x", "x += 2", "y = 3"}) {
+                    assertThrows(() -> calc.evaluate(statement), "journal: " + kind + " rejects " + statement + " after close");
+                }
+                assertThrows(() -> calc.setVariable("x", 7), "journal: " + kind + " rejects setVariable after close");
+                assertThrows(() -> calc.variables.remove("x"), "journal: " + kind + " rejects removal after close");
+                assertThrows(() -> calc.variables.clear(), "journal: " + kind + " rejects clear after close");
+                assertEquals("(x=1)", calc.formatOutput(calc.variables), "journal: " + kind + " keeps memory in step with the journal");
+            }
+        } catch (IOException e) {
+            assertTrue(false, "journal: Unexpected IOException " + e);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    public void testJournal_GroupCommit() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".journal");
+            Calculator calc = new Calculator(null);
+            try (Journal journal = new Journal(file, 3, 3_600_000)) {
+                calc.setJournal(journal);
+                long empty = Files.size(file);
+                calc.evaluate("a = 1");
+                assertTrue(Files.size(file) == empty, "journal: Records are buffered until a commit is due");
+                calc.evaluate("a++");
+                long deadline = System.nanoTime() + 5_000_000_000L;
+                while (Files.size(file) == empty && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertTrue(Files.size(file) > empty, "journal: Committed after the configured number of records");
+                calc.evaluate("b = 2");
+                journal.flush();
+                Calculator recovered = new Calculator(null);
+                recovered.replayJournal(file);
+                assertEquals("(a=2,b=2)", recovered.formatOutput(recovered.variables), "journal: flush commits everything");
+                assertThrows(() -> replayUnchecked(calc, journal.getFile()), "journal: Replay refused while attached");
+            }
+            Calculator timed = new Calculator(null);
+            try (Journal journal = new Journal(file, 1_000_000, 20)) {
+                timed.setJournal(journal);
+                timed.evaluate("t = 1");
+                long size = Files.size(file);
+                long deadline = System.nanoTime() + 5_000_000_000L;
+                while (Files.size(file) == size && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertTrue(Files.size(file) > size, "journal: Committed after the configured time");
+            }
+        } catch (IOException e) {
+            assertTrue(false, "journal: Unexpected IOException " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    public void testJournal_TornTailIgnored() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".journal");
+            Calculator calc = new Calculator(null);
+            try (Journal journal = new Journal(file, 1, 0)) {
+                calc.setJournal(journal);
+                calc.evaluate("a = 1");
+                journal.flush();
+                calc.evaluate("b = 2");
+            }
+            byte[] bytes = Files.readAllBytes(file);
+            // Cut the last frame short, as a crash during the write would
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+            Calculator recovered = new Calculator(null);
+            recovered.replayJournal(file);
+            assertEquals("(a=1)", recovered.formatOutput(recovered.variables), "journal: Torn frame ignored");
+            try (Journal journal = new Journal(file, 1, 0)) {
+                recovered.setJournal(journal);
+                recovered.evaluate("c = 3");
+            }
+            Calculator again = new Calculator(null);
+            again.replayJournal(file);
+            assertEquals("(a=1,c=3)", again.formatOutput(again.variables), "journal: Reopening cuts off the torn frame");
+            Files.write(file, "a = 1".getBytes(StandardCharsets.UTF_8));
+            Path other = file;
+            assertThrows(() -> replayUnchecked(new Calculator(null), other), "journal: Other file rejected");
+        } catch (IOException e) {
+            assertTrue(false, "journal: Unexpected IOException " + e);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    public void testJournal_ConcurrentUpdatesInOrder() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("variables", ".journal");
+            ConcurrentCalculator shared = new ConcurrentCalculator();
+            shared.setVariable("hits", 0);
+            shared.setVariable("total", 0);
+            try (Journal journal = new Journal(file, 100, 5, 256)) {
+                shared.setJournal(journal);
+                runThreads(4, () -> {
+                    for (int i = 0; i < 5000; i++) {
+                        shared.evaluate("hits++");
+                        shared.evaluate("total += 2");
+                    }
+                });
+            }
+            Calculator recovered = new Calculator(null);
+            recovered.replayJournal(file);
+            assertEquals(shared.formatOutput(shared.variables), recovered.formatOutput(recovered.variables),
+                "journal: Concurrent updates replay to the same values");
+            assertEquals(20000, recovered.variables.get("hits").getValue(), "journal: No update lost");
+        } catch (IOException e) {
+            assertTrue(false, "journal: Unexpected IOException " + e);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    private void replayUnchecked(Calculator calc, Path file) {
+        try {
+            calc.replayJournal(file);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ==================== Tests for Transactions ====================
+
+    public void testTransaction_StatementIsAtomic() {
+        Calculator calc = new Calculator(null);
+        calc.setVariable("x", 1);
+        calc.begin();
+        assertThrows(() -> calc.evaluate("y = x++ + ++x / 0"), "transaction: Failing statement throws");
+        assertEquals("(x=1)", calc.formatOutput(calc.variables), "transaction: ++ before the failure is undone");
+        assertThrows(() -> calc.evaluate("y = --x + undefinedVar"), "transaction: Undefined variable throws");
+        assertThrows(() -> calc.evaluate("y = (x++"), "transaction: Syntax error throws");
+        assertEquals(1, calc.evaluate("z = x++"), "transaction: Later statements still run");
+        calc.commit();
+        assertEquals("(x=2,z=1)", calc.formatOutput(calc.variables), "transaction: Committed changes kept");
+        assertTrue(!calc.inTransaction(), "transaction: Closed after commit");
+        assertThrows(() -> calc.evaluate("y = x++ / 0"), "transaction: Failure outside a transaction");
+        assertEquals(3, calc.variables.get("x").getValue(), "transaction: No undo outside a transaction");
+    }
+
+    public void testTransaction_ScriptRollsBack() {
+        Calculator calc = new Calculator(null);
+        calc.processExpressions(new String[]{"a = 1", "b = 2"});
+        String before = calc.formatOutput(calc.variables);
+        assertThrows(() -> calc.processExpressionsAtomically(new String[]{
+            "a += 10", "c = a * b", "b++", "d = c / (a - 11)"
+        }), "transaction: Failing script throws");
+        assertEquals(before, calc.formatOutput(calc.variables), "transaction: Whole script undone");
+        assertTrue(!calc.variables.containsKey("c"), "transaction: New variables removed");
+        assertTrue(!calc.inTransaction(), "transaction: Closed after failed script");
+        calc.processExpressionsAtomically(new String[]{"a += 10", "c = a * b"});
+        assertEquals("(a=11,b=2,c=22)", calc.formatOutput(calc.variables), "transaction: Successful script kept");
+    }
+
+    public void testTransaction_Savepoints() {
+        Calculator calc = new Calculator(null);
+        calc.setVariable("a", 0);
+        calc.begin();
+        calc.evaluate("a = 1");
+        calc.begin();
+        calc.evaluate("a = 2");
+        calc.evaluate("b = 3");
+        calc.variables.remove("a");
+        calc.rollback();
+        assertEquals("(a=1)", calc.formatOutput(calc.variables), "transaction: Savepoint rolled back");
+        calc.begin();
+        calc.evaluate("c = 4");
+        calc.commit();
+        assertTrue(calc.inTransaction(), "transaction: Outer transaction still open");
+        calc.variables.clear();
+        calc.rollback();
+        assertEquals("(a=0)", calc.formatOutput(calc.variables), "transaction: Outer rollback undoes committed savepoint and clear");
+        assertThrows(() -> calc.commit(), "transaction: Commit without transaction");
+        assertThrows(() -> calc.rollback(), "transaction: Rollback without transaction");
+        assertThrows(() -> new ConcurrentCalculator().begin(), "transaction: Not supported by ConcurrentCalculator");
+        ConcurrentCalculator concurrent = new ConcurrentCalculator();
+        concurrent.setVariable("a", 1);
+        assertThrows(() -> concurrent.processExpressionsAtomically(new String[]{"a = 2"}),
+            "transaction: Atomic scripts not supported by ConcurrentCalculator");
+        assertEquals("(a=1)", concurrent.formatOutput(concurrent.variables), "transaction: Unsupported atomic script changes nothing");
+        assertTrue(!concurrent.inTransaction(), "transaction: ConcurrentCalculator never opens one");
+    }
+
+    public void testTransaction_OtherExecutionPaths() {
+        IntegerCalculator integers = new IntegerCalculator();
+        integers.setVariable("id", 9007199254740993L);
+        integers.setVariable("ratio", 0.5);
+        integers.begin();
+        integers.evaluate("id++");
+        integers.evaluate("ratio = 7");
+        integers.rollback();
+        assertEquals("(id=9007199254740993,ratio=0.5)", integers.formatOutput(integers.variables),
+            "transaction: Integers and doubles restored exactly");
+        assertTrue(!integers.variables.get("ratio").isInteger(), "transaction: Value kind restored");
+
+        Calculator calc = new Calculator(null);
+        calc.setVariable("n", 1);
+        calc.begin();
+        try {
+            calc.processExpressions(new StringReader("n++\nm = n / 0\nk = n\n"));
+        } catch (IOException e) {
+            assertTrue(false, "transaction: Unexpected IOException " + e);
+        } catch (IllegalArgumentException e) {
+            assertEquals("(n=2)", calc.formatOutput(calc.variables), "transaction: Streamed statement atomic");
+        }
+        calc.rollback();
+        assertEquals("(n=1)", calc.formatOutput(calc.variables), "transaction: Streamed script rolled back");
+
+        String[] script = independentBlocksScript(2000);
+        Calculator parallel = new Calculator(null);
+        parallel.setVariable("shared", 3);
+        String before = parallel.formatOutput(parallel.variables);
+        parallel.begin();
+        parallel.processExpressionsParallel(script);
+        parallel.rollback();
+        assertEquals(before, parallel.formatOutput(parallel.variables), "transaction: Parallel script rolled back");
+    }
+
+    public void testTransaction_EveryPathIsAtomic() {
+        String[] script = {"x++ + y / 0"};
+        Map<String, Consumer<Calculator>> paths = new LinkedHashMap<>();
+        paths.put("processExpressions", calc -> calc.processExpressions(script));
+        paths.put("processExpressionsShared", calc -> calc.processExpressionsShared(script));
+        paths.put("processExpressionsPruned", calc -> calc.processExpressionsPruned(script));
+        paths.put("processExpressionsParallel", calc -> calc.processExpressionsParallel(script));
+        paths.put("Expression.eval", calc -> calc.compile(script[0]).eval(calc));
+        for (Map.Entry<String, Consumer<Calculator>> path : paths.entrySet()) {
+            Calculator calc = new Calculator(null);
+            calc.setVariable("x", 1);
+            calc.setVariable("y", 2);
+            calc.begin();
+            assertThrows(() -> path.getValue().accept(calc), "transaction: " + path.getKey() + " fails");
+            assertEquals("(x=1,y=2)", calc.formatOutput(calc.variables),
+                         "transaction: " + path.getKey() + " undoes the failing statement");
+            calc.rollback();
+        }
+    }
+
+    // ==================== Tests for Server ====================
+
+    public void testServer_SessionsAreIsolated() {
+        try (CalculatorServer server = CalculatorServer.start(new InetSocketAddress("127.0.0.1", 0));
+             CalculatorClient first = new CalculatorClient(server.getAddress());
+             CalculatorClient second = new CalculatorClient(server.getAddress())) {
+            assertEquals("(i=0)", first.evaluate("i = 0"), "server: Evaluate returns session variables");
+            assertEquals("(i=1,j=1,x=6,y=80)", first.processExpressions(new String[]{"j = ++i", "x = i++ + 5", "y = (5 + 3) * 10", "i -= 1"}),
+                "server: Script returns session variables");
+            assertEquals("(a=10)", second.evaluate("a = 10"), "server: Second session has its own variables");
+            try {
+                first.evaluate("z = a + 1");
+                assertTrue(false, "server: Undefined variable of another session rejected");
+            } catch (IllegalArgumentException e) {
+                assertEquals("Variable not defined: a", e.getMessage(), "server: Error message returned");
+            }
+            assertEquals("(i=1,j=1,x=6,y=80)", first.evaluate("i"), "server: Session survives an error");
+            try {
+                first.evaluate("z = " + "(".repeat(50_000) + "1" + ")".repeat(50_000));
+                assertTrue(false, "server: Deeply nested request rejected");
+            } catch (IllegalArgumentException e) {
+                assertEquals("Expression nested too deeply.", e.getMessage(), "server: Deeply nested request rejected");
+            }
+            assertEquals("(i=1,j=1,x=6,y=80)", first.evaluate("i"), "server: Session survives a deeply nested request");
+        } catch (IOException e) {
+            assertTrue(false, "server: Unexpected IOException " + e);
+        }
+    }
+
+    public void testServer_NamesArePerSession() {
+        try (CalculatorServer server = CalculatorServer.start(new InetSocketAddress("127.0.0.1", 0));
+             CalculatorClient other = new CalculatorClient(server.getAddress())) {
+            String prefix = "session" + System.nanoTime() + "_";
+            String[] script = new String[CalculatorServer.MAX_SESSION_NAMES + 1];
+            for (int i = 0; i < script.length; i++) {
+                script[i] = prefix + i + " = " + i;
+            }
+            for (int round = 0; round < 3; round++) {
+                try (CalculatorClient client = new CalculatorClient(server.getAddress())) {
+                    try {
+                        client.processExpressions(script);
+                        assertTrue(false, "server: Script with too many names rejected");
+                    } catch (IllegalArgumentException e) {
+                        assertEquals("Too many variable names.", e.getMessage(), "server: Script with too many names rejected");
+                    }
+                    try {
+                        client.evaluate(prefix + "fresh = 1");
+                        assertTrue(false, "server: Session name table stays full");
+                    } catch (IllegalArgumentException e) {
+                        assertEquals("Too many variable names.", e.getMessage(), "server: Session name table stays full");
+                    }
+                    String output = client.evaluate(prefix + "0 = 42");
+                    assertTrue(output.startsWith("(" + prefix + "0=42,"), "server: Known names still usable when the table is full");
+                }
+            }
+            assertEquals("(" + prefix + "fresh=1)", other.evaluate(prefix + "fresh = 1"), "server: Other sessions have their own names");
+            try (CalculatorClient client = new CalculatorClient(server.getAddress())) {
+                assertEquals("(" + prefix + "fresh=2)", client.evaluate(prefix + "fresh = 2"), "server: New sessions unaffected by full ones");
+            }
+            assertTrue(Symbols.GLOBAL.find(prefix + "0") < 0, "server: Session names stay out of the process-wide table");
+            Calculator local = new Calculator();
+            local.setVariable(prefix + "local", 1);
+            assertEquals("(" + prefix + "local=1)", local.formatOutput(local.variables), "server: Local calculators unaffected by sessions");
+        } catch (IOException e) {
+            assertTrue(false, "server: Unexpected IOException " + e);
+        }
+    }
+
+    public void testServer_PipelinedRequestsInOrder() {
+        try (CalculatorServer server = CalculatorServer.start(new InetSocketAddress("127.0.0.1", 0));
+             CalculatorClient client = new CalculatorClient(server.getAddress())) {
+            int count = 3 * CalculatorServer.MAX_PIPELINE;
+            client.send(CalculatorServer.EVALUATE, "n = 0");
+            for (int i = 0; i < count; i++) {
+                client.send(CalculatorServer.EVALUATE, i % 100 == 50 ? "n / 0" : "n++");
+            }
+            client.receive();
+            boolean ordered = true;
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                try {
+                    ordered &= client.receive().equals("(n=" + (++n) + ")") && i % 100 != 50;
+                } catch (IllegalArgumentException e) {
+                    ordered &= i % 100 == 50;
+                }
+            }
+            assertTrue(ordered, "server: Pipelined responses in request order");
+
+            String[] script = new String[5000];
+            for (int i = 0; i < script.length; i++) {
+                script[i] = "v" + i + " = " + i;
+            }
+            String output = client.processExpressions(script);
+            assertTrue(output.startsWith("(n=" + n + ",v0=0,v1=1,v10=10,") && output.contains(",v4999=4999,")
+                && output.endsWith(",v999=999)"), "server: Request larger than the read buffer");
+        } catch (IOException e) {
+            assertTrue(false, "server: Unexpected IOException " + e);
+        }
+    }
+
+    public void testServer_ManyConnections() {
+        try (CalculatorServer server = CalculatorServer.start(new InetSocketAddress("127.0.0.1", 0))) {
+            InetSocketAddress address = server.getAddress();
+            int increments = 200;
+            String[] outputs = new String[16];
+            Thread[] clients = new Thread[outputs.length];
+            for (int c = 0; c < clients.length; c++) {
+                int t = c;
+                clients[c] = new Thread(() -> outputs[t] = countRemotely(address, t, increments));
+                clients[c].start();
+            }
+            for (Thread client : clients) {
+                try {
+                    client.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            boolean all = true;
+            for (int t = 0; t < outputs.length; t++) {
+                all &= ("(count=" + increments + ",t=" + t + ")").equals(outputs[t]);
+            }
+            assertTrue(all, "server: Concurrent sessions each see only their own updates");
+        } catch (IOException e) {
+            assertTrue(false, "server: Unexpected IOException " + e);
+        }
+    }
+
+    private static String countRemotely(InetSocketAddress address, int t, int increments) {
+        try (CalculatorClient client = new CalculatorClient(address)) {
+            client.evaluate("t = " + t);
+            client.evaluate("count = 0");
+            for (int i = 0; i < increments; i++) {
+                client.send(CalculatorServer.EVALUATE, "count++");
+            }
+            String output = null;
+            for (int i = 0; i < increments; i++) {
+                output = client.receive();
+            }
+            return output;
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    public void testServer_ConnectionLimit() {
+        try (CalculatorServer server = CalculatorServer.start(new InetSocketAddress("127.0.0.1", 0), 2);
+             CalculatorClient first = new CalculatorClient(server.getAddress())) {
+            assertEquals("(a=1)", first.evaluate("a = 1"), "server: Connections up to the limit served");
+            try (CalculatorClient second = new CalculatorClient(server.getAddress())) {
+                assertEquals("(b=2)", second.evaluate("b = 2"), "server: Connections up to the limit served");
+                try (CalculatorClient third = new CalculatorClient(server.getAddress())) {
+                    third.evaluate("c = 3");
+                    assertTrue(false, "server: Connection beyond the limit closed");
+                } catch (IOException e) {
+                    assertTrue(true, "server: Connection beyond the limit closed");
+                }
+            }
+            String output = null;
+            for (int attempt = 0; attempt < 50 && output == null; attempt++) {
+                try (CalculatorClient again = new CalculatorClient(server.getAddress())) {
+                    output = again.evaluate("d = 4");
+                } catch (IOException e) {
+                    sleep(100);
+                }
+            }
+            assertEquals("(d=4)", output, "server: Closed connections make room for new ones");
+        } catch (IOException e) {
+            assertTrue(false, "server: Unexpected IOException " + e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void testServer_MemoryPerConnectionBounded() {
+        try (CalculatorServer server = CalculatorServer.start(new InetSocketAddress("127.0.0.1", 0))) {
+            Thread io = null;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("taboola-server-io") && thread.isAlive()) {
+                    io = thread;
+                }
+            }
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            long before = threads.getThreadAllocatedBytes(io.getId());
+            List<SocketChannel> idle = new ArrayList<>();
+            try {
+                for (int i = 0; i < 20; i++) {
+                    SocketChannel channel = SocketChannel.open(server.getAddress());
+                    idle.add(channel);
+                    ByteBuffer start = ByteBuffer.allocate(4 + 1000);
+                    start.putInt(CalculatorServer.MAX_FRAME).put(new byte[1000]).flip();
+                    channel.write(start);
+                }
+                try (CalculatorClient client = new CalculatorClient(server.getAddress())) {
+                    assertEquals("(x=1)", client.evaluate("x = 1"), "server: Serves while large frames are pending");
+                }
+            } finally {
+                for (SocketChannel channel : idle) {
+                    channel.close();
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(io.getId()) - before;
+            assertTrue(allocated < 8 * 1024 * 1024,
+                "server: Frame buffers grow with the bytes received (" + allocated + " bytes for 20 maximal headers)");
+
+            try (CalculatorClient client = new CalculatorClient(server.getAddress())) {
+                String[] script = new String[2000];
+                for (int i = 0; i < script.length; i++) {
+                    script[i] = "v" + i + " = " + i;
+                }
+                client.processExpressions(script);
+                // Small requests whose large responses fill the response budget, then
+                // large requests that wait while the worker pauses
+                int small = 4000;
+                int large = 48;
+                String request = " ".repeat(1024 * 1024) + "x = 1";
+                boolean[] sent = new boolean[1];
+                Thread sender = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < small; i++) {
+                            client.send(CalculatorServer.EVALUATE, "x = 1");
+                        }
+                        for (int i = 0; i < large; i++) {
+                            client.send(CalculatorServer.EVALUATE, request);
+                        }
+                        sent[0] = true;
+                    } catch (IOException e) {
+                        // Reported by the receive loop below
+                    }
+                });
+                sender.start();
+                sleep(2000);
+                assertTrue(sender.isAlive(), "server: Stops reading while " + CalculatorServer.MAX_QUEUED_BYTES + " bytes are queued");
+                boolean all = true;
+                for (int i = 0; i < small + large; i++) {
+                    all &= client.receive().startsWith("(v0=0,");
+                }
+                sender.join();
+                assertTrue(all && sent[0], "server: Every queued request answered once the client reads");
+            }
+        } catch (IOException e) {
+            assertTrue(false, "server: Unexpected IOException " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ==================== Tests for Batches ====================
+
+    public void testBatch_StreamsResultsAndIsolatesFailures() {
+        List<String[]> scripts = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            scripts.add(new String[]{"a = " + i, "b = a * 2", i % 7 == 3 ? "c = b / 0" : "c = b + 1"});
+        }
+        String[] outputs = new String[scripts.size()];
+        int[] active = new int[2];
+        ForkJoinPool pool = new ForkJoinPool(4);
+        int failed;
+        try {
+            failed = BatchExecutor.run(scripts, result -> {
+                active[0]++;
+                active[1] = Math.max(active[1], active[0]);
+                outputs[result.getIndex()] = result.isSuccess() ? result.getOutput() : "error: " + result.getError();
+                active[0]--;
+            }, pool);
+        } finally {
+            pool.shutdown();
+        }
+        boolean correct = true;
+        int expectedFailures = 0;
+        for (int i = 0; i < outputs.length; i++) {
+            if (i % 7 == 3) {
+                expectedFailures++;
+                correct &= "error: Division by zero is not allowed.".equals(outputs[i]);
+            } else {
+                correct &= ("(a=" + i + ",b=" + 2 * i + ",c=" + (2 * i + 1) + ")").equals(outputs[i]);
+            }
+        }
+        assertTrue(correct, "batch: Every script's result delivered");
+        assertEquals(expectedFailures, failed, "batch: Failures counted, not fatal");
+        assertEquals(1, active[1], "batch: Sink never called concurrently");
+    }
+
+    public void testBatch_DirectoryInOrder() {
+        Path directory = null;
+        try {
+            directory = Files.createTempDirectory("batch");
+            Files.write(directory.resolve("b.calc"), "x = 2\ny = x * 3\n".getBytes(StandardCharsets.US_ASCII));
+            Files.write(directory.resolve("a.calc"), "x = 1\n".getBytes(StandardCharsets.US_ASCII));
+            Files.write(directory.resolve("c.calc"), "x = undefinedVar\n".getBytes(StandardCharsets.US_ASCII));
+            Files.createDirectory(directory.resolve("nested"));
+            StringBuilder delivered = new StringBuilder();
+            int failed = BatchExecutor.run(directory, BatchExecutor.inOrder(result -> delivered.append(result).append('\n')));
+            assertEquals("a.calc: (x=1)\nb.calc: (x=2,y=6)\nc.calc: error: Variable not defined: undefinedVar\n",
+                delivered.toString(), "batch: Directory scripts delivered in name order");
+            assertEquals(1, failed, "batch: Failing file reported");
+        } catch (IOException e) {
+            assertTrue(false, "batch: Unexpected IOException " + e);
+        } finally {
+            if (directory != null) {
+                deleteQuietly(directory.resolve("a.calc"));
+                deleteQuietly(directory.resolve("b.calc"));
+                deleteQuietly(directory.resolve("c.calc"));
+                deleteQuietly(directory.resolve("nested"));
+                deleteQuietly(directory);
+            }
+        }
+
+        List<String[]> scripts = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            scripts.add(new String[]{"n = " + i, "n *= n"});
+        }
+        List<Integer> order = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            BatchExecutor.run(scripts, BatchExecutor.inOrder(result -> order.add(result.getIndex())), pool);
+        } finally {
+            pool.shutdown();
+        }
+        boolean ordered = order.size() == scripts.size();
+        for (int i = 0; i < order.size(); i++) {
+            ordered &= order.get(i) == i;
+        }
+        assertTrue(ordered, "batch: inOrder restores input order");
+    }
+
+    // ==================== Tests for Programs ====================
+
+    public void testProgram_MatchesProcessExpressions() {
+        String[] example = {"i = 0", "j = ++i", "x = i++ + 5", "y = (5 + 3) * 10", "i += y"};
+        Program program = new Calculator().compileScript(example);
+        program.run(new double[0]);
+        Calculator calc = new Calculator();
+        calc.processExpressions(example);
+        assertEquals(calc.formatOutput(calc.variables), program.formatOutput(), "program: Example without inputs");
+
+        String[] model = {
+            "j = ++i", "x = i++ + 5", "y = x * rate - j", "i += y", "rate /= 2",
+            "z = x-- - --x % 3", "w = -(i + z) * 2.5", "w %= 7", "  ", "k = i-- * --rate"
+        };
+        program = new Calculator().compileScript(model);
+        assertEquals("[i, rate]", Arrays.toString(program.getInputs()), "program: Inputs in order of first read");
+        boolean same = true;
+        for (int n = 0; n < 200; n++) {
+            double i = n - 100;
+            double rate = n * 0.37 + 1;
+            program.run(new double[]{i, rate});
+            calc = new Calculator();
+            calc.setVariable("i", i);
+            calc.setVariable("rate", rate);
+            calc.processExpressions(model);
+            same &= calc.formatOutput(calc.variables).equals(program.formatOutput());
+        }
+        assertTrue(same, "program: Same results as processExpressions for many inputs");
+    }
+
+    public void testProgram_InputsAndErrors() {
+        Program program = new Calculator().compileScript(new String[]{"total += price * qty", "count++", "avg = total / count"});
+        assertEquals("[price, qty, total, count]", Arrays.toString(program.getInputs()), "program: Compound assignment and ++ read their variable");
+        assertEquals("[avg, count, price, qty, total]", Arrays.toString(program.getVariables()), "program: Variables sorted by name");
+        double[] out = program.run(new double[]{2.5, 4, 10, 0});
+        assertEquals(20, out[program.indexOf("total")], "program: Compound assignment");
+        assertEquals(20, out[program.indexOf("avg")], "program: Reads updated values");
+        assertEquals(-1, program.indexOf("missing"), "program: Unknown variable has no index");
+        assertTrue(out == program.run(new double[]{1, 1, 1, 1}), "program: Output buffer reused");
+        assertEquals(1, out[program.indexOf("avg")], "program: Buffer holds the latest run");
+        assertThrows(() -> program.run(new double[]{1, 1, 1}), "program: Wrong number of inputs");
+
+        Program dividing = new Calculator().compileScript(new String[]{"y = x / d", "z = y + 1"});
+        try {
+            dividing.run(new double[]{1, 0});
+            assertTrue(false, "program: Division by zero throws");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Division by zero is not allowed.", e.getMessage(), "program: Same message as Calculator");
+        }
+        assertEquals(1.5, dividing.run(new double[]{1, 2})[dividing.indexOf("z")], "program: Usable after a failure");
+        Program constant = new Calculator().compileScript(new String[]{"z = ++x / 0"});
+        assertThrows(() -> constant.run(new double[]{1}), "program: Constant division by zero throws");
+        assertThrows(() -> new Calculator().compileScript(new String[]{"x = (1"}), "program: Syntax errors at compile time");
+    }
+
+    public void testProgram_IntegerCalculatorKeepsIntegerSemantics() {
+        Program program = new IntegerCalculator().compileScript(new String[]{
+            "y = x / 2", "z = y * 3 + 7 / 2", "big = 9007199254740993 + x - x", "h = x / 4.0"
+        });
+        assertEquals(3.0, program.run(new double[]{7})[program.indexOf("y")], "program: Integer division truncates");
+        assertEquals(12.0, program.run(new double[]{7})[program.indexOf("z")], "program: Integer literals stay integers");
+        assertEquals("(big=9007199254740993,h=1.75,x=7,y=3,z=12)", program.formatOutput(), "program: Integers printed exactly");
+        assertEquals(1.25, program.run(new double[]{2.5})[program.indexOf("y")], "program: Fractional inputs use double arithmetic");
+        Program overflow = new IntegerCalculator().compileScript(new String[]{"o = 9223372036854775807 + n"});
+        assertThrows(() -> overflow.run(new double[]{1}), "program: Integer overflow detected");
+        assertEquals(9223372036854775807.0, overflow.run(new double[]{0})[overflow.indexOf("o")], "program: Runs again after a failure");
+    }
+
+    public void testProgram_RunAllocatesNothing() {
+        String[] script = {"j = ++i", "x = i++ + 5", "y = (5 + 3) * 10", "i += y", "z = x * j % 7 - --i"};
+        assertRunAllocatesNothing(new Calculator().compileScript(script), "program");
+        assertRunAllocatesNothing(new IntegerCalculator().compileScript(script), "integer program");
+    }
+
+    private void assertRunAllocatesNothing(Program program, String kind) {
+        double[] inputs = {0};
+        double sum = 0;
+        for (int n = 0; n < 20_000; n++) {
+            inputs[0] = n;
+            sum += program.run(inputs)[0];
+        }
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int n = 0; n < 100_000; n++) {
+            inputs[0] = n;
+            sum += program.run(inputs)[0];
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue(allocated < 1024 && sum != 0, kind + ": 100000 runs allocate nothing (" + allocated + " bytes)");
+    }
+
+    // ==================== Tests for Pruned Scripts ====================
+
+    public void testPruned_RemovesDeadStores() {
+        String[] script = {
+            "t = a * 2", "t = b + 1", "x = t * 3", "t = 0", "u = x - 1", "u = x + 1", "y = u * 2", "t = y"
+        };
+        Calculator calc = new Calculator(null);
+        calc.setVariable("a", 4);
+        calc.setVariable("b", 5);
+        boolean[] live = DeadStores.live(Script.compile(calc, script), calc.store, null);
+        assertEquals("[false, true, true, false, false, true, true, true]", Arrays.toString(live),
+            "pruned: Overwritten assignments removed");
+        calc.processExpressionsPruned(script);
+        Calculator full = new Calculator(null);
+        full.setVariable("a", 4);
+        full.setVariable("b", 5);
+        full.processExpressions(script);
+        assertEquals(full.formatOutput(full.variables), calc.formatOutput(calc.variables), "pruned: Same final variables");
+    }
+
+    public void testPruned_OnlyWantedOutputs() {
+        String[] script = {
+            "i = 0", "j = ++i", "x = i++ + 5", "y = (5 + 3) * 10", "i += y", "unused = x * y", "k = j * 2"
+        };
+        Calculator calc = new Calculator(null);
+        boolean[] live = DeadStores.live(Script.compile(calc, script), calc.store, new int[]{Symbols.GLOBAL.intern("i")});
+        assertEquals("[true, true, true, true, true, false, false]", Arrays.toString(live),
+            "pruned: ++ side effects kept for the wanted variable");
+        calc.processExpressionsPruned(script, new HashSet<>(Arrays.asList("k")));
+        assertEquals("(i=1,j=1,k=2)", calc.formatOutput(calc.variables), "pruned: Only dependencies of k run");
+
+        calc = new Calculator(null);
+        calc.processExpressionsPruned(new String[]{"x = 0", "y = x++", "y = 5", "z = x"}, new HashSet<>(Arrays.asList("z", "y")));
+        assertEquals("(x=1,y=5,z=1)", calc.formatOutput(calc.variables), "pruned: Statement kept for its increment");
+    }
+
+    public void testPruned_FailuresUnchanged() {
+        Calculator calc = new Calculator(null);
+        calc.setVariable("d", 0);
+        String[] script = {"x = 1", "y = 3", "y = x / d", "x = 2"};
+        try {
+            calc.processExpressionsPruned(script);
+            assertTrue(false, "pruned: Division by zero still throws");
+        } catch (IllegalArgumentException e) {
+            assertEquals("(d=0,x=1,y=3)", calc.formatOutput(calc.variables), "pruned: Values before the failure kept");
+        }
+        Calculator undefined = new Calculator(null);
+        assertThrows(() -> undefined.processExpressionsPruned(new String[]{"t = 1", "t = missing + 1", "t = 2"}),
+            "pruned: Undefined variable still throws");
+        assertEquals("(t=1)", undefined.formatOutput(undefined.variables), "pruned: Store before undefined read kept");
+
+        String[] syntaxError = {"x = 1", "y = x + 1", "z = (1 + ", "x = 4"};
+        Calculator sequential = new Calculator();
+        String expected = failure(() -> sequential.processExpressions(syntaxError)) + " "
+            + sequential.formatOutput(sequential.variables);
+        Calculator pruned = new Calculator();
+        String actual = failure(() -> pruned.processExpressionsPruned(syntaxError)) + " "
+            + pruned.formatOutput(pruned.variables);
+        assertEquals(expected, actual, "pruned: Statements before a syntax error run");
+    }
+
+    public void testPruned_MatchesFullRunOnRandomScripts() {
+        Random random = new Random(24);
+        String[] names = {"a", "b", "c", "d", "e"};
+        String[] operators = {" + ", " - ", " * ", " / ", " % "};
+        String[] assignments = {" = ", " = ", " += ", " -= ", " *= ", " /= "};
+        boolean same = true;
+        int statements = 0;
+        int kept = 0;
+        for (int n = 0; n < 400; n++) {
+            String[] script = new String[10];
+            for (int i = 0; i < script.length; i++) {
+                String target = names[random.nextInt(names.length)];
+                if (random.nextInt(6) == 0) {
+                    script[i] = random.nextBoolean() ? target + "++" : "--" + target;
+                    continue;
+                }
+                StringBuilder expression = new StringBuilder();
+                for (int term = random.nextInt(3); term >= 0; term--) {
+                    int kind = random.nextInt(5);
+                    String name = names[random.nextInt(names.length)];
+                    expression.append(kind == 0 ? String.valueOf(random.nextInt(3))
+                        : kind == 1 ? name + "++" : kind == 2 ? "--" + name : name);
+                    if (term > 0) {
+                        expression.append(operators[random.nextInt(operators.length)]);
+                    }
+                }
+                script[i] = target + assignments[random.nextInt(assignments.length)] + expression;
+            }
+            HashSet<String> outputs = new HashSet<>(Arrays.asList(names[random.nextInt(5)], names[random.nextInt(5)]));
+            for (HashSet<String> wanted : Arrays.asList(null, outputs)) {
+                Calculator full = new Calculator(null);
+                Calculator pruned = new Calculator(null);
+                for (int i = 0; i < 3; i++) {
+                    full.setVariable(names[i], i);
+                    pruned.setVariable(names[i], i);
+                }
+                String fullError = failure(() -> full.processExpressions(script));
+                String prunedError = failure(() -> pruned.processExpressionsPruned(script, wanted));
+                same &= String.valueOf(fullError).equals(String.valueOf(prunedError));
+                for (String name : wanted == null ? Arrays.asList(names) : wanted) {
+                    Var expected = full.variables.get(name);
+                    Var actual = pruned.variables.get(name);
+                    same &= expected == null ? actual == null
+                        : actual != null && Double.compare(expected.getValue(), actual.getValue()) == 0;
+                }
+            }
+            boolean[] live = DeadStores.live(Script.compile(new Calculator(null), script), new Calculator(null).store, null);
+            statements += live.length;
+            for (boolean statement : live) {
+                kept += statement ? 1 : 0;
+            }
+        }
+        assertTrue(same, "pruned: Wanted variables and errors match the full run on random scripts");
+        assertTrue(kept < statements, "pruned: Random scripts have dead stores (" + kept + " of " + statements + " kept)");
+    }
+
+    // ==================== Tests for Metrics ====================
+
+    public void testMetrics_CountsPhasesAndEvents() {
+        Calculator uncached = new Calculator(null);
+        Metrics.setEnabled(true);
+        Metrics.reset();
+        try {
+            uncached.evaluate("a = 1");
+            uncached.evaluate("b = a++ + 2");
+            assertThrows(() -> uncached.evaluate("c = b / (a - 2)"), "metrics: Failing statement");
+            uncached.openBrackets("( 1 + 2 )");
+            assertThrows(() -> uncached.openBrackets("( 1 / 0 )"), "metrics: Failing nested phase");
+        } finally {
+            Metrics.setEnabled(false);
+        }
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        assertEquals(3, snapshot.getCount(Metrics.Phase.TOKENIZE), "metrics: Tokenize counted per parse");
+        assertEquals(3, snapshot.getCount(Metrics.Phase.PARSE), "metrics: Parse counted");
+        assertEquals(3, snapshot.getCount(Metrics.Phase.EVALUATE), "metrics: Evaluate counted, including failures");
+        assertEquals(2, snapshot.getCount(Metrics.Phase.OPEN_BRACKETS), "metrics: openBrackets counted");
+        assertEquals(2, snapshot.getCount(Metrics.Phase.CLEAN_EXPRESSION), "metrics: Nested calculateCleanExpression counted");
+        assertTrue(snapshot.getNanos(Metrics.Phase.EVALUATE) > 0, "metrics: Time recorded");
+        assertEquals(2, snapshot.get(Metrics.Counter.VARIABLES_CREATED), "metrics: Variables created");
+        assertEquals(1, snapshot.get(Metrics.Counter.INCREMENTS), "metrics: Increments applied");
+        assertEquals(2, snapshot.get(Metrics.Counter.ASSIGNMENTS), "metrics: Assignments");
+        assertEquals(2, snapshot.get(Metrics.Counter.EXCEPTIONS), "metrics: Exceptions counted once by the outermost phase");
+        uncached.evaluate("d = 4");
+        assertEquals(3, Metrics.snapshot().getCount(Metrics.Phase.EVALUATE), "metrics: Nothing recorded while disabled");
+    }
+
+    public void testMetrics_JfrEvents() {
+        try (Recording recording = new Recording()) {
+            recording.enable("taboola.Phase");
+            recording.enable("taboola.Failure");
+            recording.start();
+            Metrics.setEnabled(true);
+            try {
+                new Calculator(null).evaluate("x = 2 * 3");
+                assertThrows(() -> new Calculator(null).evaluate("y = missing"), "metrics: Failing statement recorded");
+                assertThrows(() -> new Calculator(null).openBrackets("( 1 / 0 )"), "metrics: Failing nested phase recorded");
+            } finally {
+                Metrics.setEnabled(false);
+            }
+            recording.stop();
+            Path file = Files.createTempFile("metrics", ".jfr");
+            try {
+                recording.dump(file);
+                int phases = 0;
+                long nanos = 0;
+                List<String> failures = new ArrayList<>();
+                for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                    if (event.getEventType().getName().equals("taboola.Phase")) {
+                        phases++;
+                        nanos += event.getDuration().toNanos();
+                    } else if (event.getEventType().getName().equals("taboola.Failure")) {
+                        failures.add(event.getString("phase") + ": " + event.getString("message"));
+                    }
+                }
+                assertTrue(phases >= 8, "metrics: Phase events emitted to JFR");
+                assertTrue(nanos > 0, "metrics: Phase events span their phase");
+                assertEquals("[EVALUATE: Variable not defined: missing, OPEN_BRACKETS: Division by zero is not allowed.]",
+                             failures.toString(), "metrics: One failure event per exception emitted to JFR");
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            assertTrue(false, "metrics: Unexpected IOException " + e);
+        }
+    }
+
+    // ==================== Tests for Concurrent Calculator ====================
+
+    private void runThreads(int threads, Runnable body) {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(body);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void testConcurrent_IncrementIsAtomic() {
+        ConcurrentCalculator shared = new ConcurrentCalculator();
+        shared.setVariable("hits", 0);
+        runThreads(8, () -> {
+            for (int i = 0; i < 20000; i++) {
+                shared.evaluate("hits++");
+            }
+        });
+        assertEquals(160000.0, shared.snapshot().get("hits"), "ConcurrentCalculator: No lost ++ updates");
+    }
+
+    public void testConcurrent_CompoundAssignmentIsAtomic() {
+        ConcurrentCalculator shared = new ConcurrentCalculator();
+        shared.setVariable("sum", 0);
+        shared.setVariable("down", 0);
+        runThreads(8, () -> {
+            for (int i = 0; i < 20000; i++) {
+                shared.evaluate("sum += 2");
+                shared.evaluate("--down");
+            }
+        });
+        Map<String, Double> snapshot = shared.snapshot();
+        assertEquals(320000.0, snapshot.get("sum"), "ConcurrentCalculator: No lost += updates");
+        assertEquals(-160000.0, snapshot.get("down"), "ConcurrentCalculator: No lost -- updates");
+    }
+
+    public void testConcurrent_DefinesFromManyThreads() {
+        ConcurrentCalculator shared = new ConcurrentCalculator();
+        int[] next = new int[1];
+        runThreads(4, () -> {
+            int thread;
+            synchronized (next) {
+                thread = next[0]++;
+            }
+            for (int i = 0; i < 500; i++) {
+                shared.evaluate("t" + thread + "v" + i + " = " + i);
+            }
+        });
+        Map<String, Double> snapshot = shared.snapshot();
+        assertEquals(2000, snapshot.size(), "ConcurrentCalculator: Every variable defined once");
+        assertEquals(499.0, snapshot.get("t3v499"), "ConcurrentCalculator: Defined value is visible");
+    }
+
+    public void testConcurrent_MatchesCalculator() {
+        ConcurrentCalculator concurrent = new ConcurrentCalculator();
+        Calculator sequential = new Calculator();
+        String[] script = {"i = 0", "j = ++i", "x = i++ + 5", "y = (5 + 3) * 10", "i += y", "x %= 4"};
+        assertEquals(sequential.formatOutput(sequential.processExpressions(script)),
+                     concurrent.formatOutput(concurrent.processExpressions(script)),
+                     "ConcurrentCalculator: Same results as Calculator");
+        boolean threw = false;
+        try {
+            concurrent.evaluate("missing++");
+        } catch (IllegalArgumentException e) {
+            threw = e.getMessage().equals("Variable not defined: missing");
+        }
+        assertTrue(threw, "ConcurrentCalculator: Undefined variable is reported");
+    }
+
     // ==================== Run All Tests ====================
 
     public void runAllTests() {
@@ -504,6 +2589,7 @@ public class CalculatorTest {
         testSetVariable_Normal();
         testSetVariable_Override();
         testSetVariable_MultipleVariables();
+        testSetVariable_StorageSizedByOwnVariables();
 
         // Pre-increment/decrement
         System.out.println("\n--- Pre-Increment/Decrement ---");
@@ -562,6 +2648,7 @@ public class CalculatorTest {
         testEvaluate_ComplexWithAllFeatures();
         testEvaluate_WithParentheses();
         testEvaluate_NestedParentheses();
+        testEvaluate_DeepNesting();
 
         // Edge cases
         System.out.println("\n--- Edge Cases ---");
@@ -581,6 +2668,161 @@ public class CalculatorTest {
         testEvaluate_InvalidAssignment();
         testEvaluate_MultipleEquals();
 
+        // Compiled expressions
+        System.out.println("\n--- Compiled Expressions ---");
+        testCompile_ReusedAcrossEvaluations();
+        testCompile_SharedAcrossCalculators();
+        testCompile_IncrementSideEffects();
+        testCompile_WithoutSpaces();
+        testCompile_NegativeOperands();
+        testCompile_UndefinedVariable();
+        testCompile_MismatchedParentheses();
+        testCompile_DivisionByZeroAtEval();
+
+        // Variable store
+        System.out.println("\n--- Variable Store ---");
+        testVariables_ViewIsStableAcrossAssignments();
+        testVariables_ViewWritesThrough();
+        testVariables_MapPutAndRemove();
+        testVariables_ClearUndefinesAll();
+        testVariables_ManyVariables();
+        testVariables_ProcessExpressionsReturnsLiveMap();
+
+        // Tiered compilation
+        System.out.println("\n--- Tiered Compilation ---");
+        testTiered_PromotedExpressionMatchesInterpreter();
+        testTiered_CompoundAssignment();
+        testTiered_DivisionByZero();
+        testTiered_UndefinedVariable();
+        testTiered_ColdExpressionStaysInterpreted();
+
+        // Batch evaluation
+        System.out.println("\n--- Batch Evaluation ---");
+        testEvaluateBatch_MatchesScalar();
+        testEvaluateBatch_ConstantExpression();
+        testEvaluateBatch_DivisionByZero();
+        testEvaluateBatch_RejectsSideEffects();
+        testEvaluateBatch_FailureChangesNothing();
+        testEvaluateBatch_UndefinedVariable();
+        testEvaluateBatch_ShortColumn();
+
+        // Streaming scripts
+        System.out.println("\n--- Streaming Scripts ---");
+        testProcessExpressions_Reader();
+        testProcessExpressions_Path();
+        testProcessExpressions_PathWithoutTrailingNewline();
+        testProcessExpressions_ReaderPropagatesErrors();
+
+        // Parallel execution
+        System.out.println("\n--- Parallel Execution ---");
+        testParallel_MatchesSequential();
+        testParallel_Levels();
+        testParallel_ReportsEarliestFailure();
+
+        // Optimizer
+        System.out.println("\n--- Optimizer ---");
+        testOptimizer_FoldsConstants();
+        testOptimizer_Identities();
+        testOptimizer_KeepsIeeeResults();
+        testOptimizer_DivisionByConstantZero();
+
+        // Shared subexpressions
+        System.out.println("\n--- Shared Subexpressions ---");
+        testShared_MatchesSequential();
+        testShared_ComputesRepeatsOnce();
+        testShared_FailsAtSameStatement();
+
+        // Reactive calculator
+        System.out.println("\n--- Reactive Calculator ---");
+        testReactive_MatchesRerun();
+        testReactive_RecomputesOnlyDependents();
+        testReactive_StopsWhenValuesUnchanged();
+        testReactive_RollsBackOnFailure();
+
+        // Lazy calculator
+        System.out.println("\n--- Lazy Calculator ---");
+        testLazy_MatchesEager();
+        testLazy_EvaluatesOnlyNeeded();
+        testLazy_SideEffectsInScriptOrder();
+        testLazy_Failures();
+
+        // Output formatting
+        System.out.println("\n--- Output Formatting ---");
+        testFormatOutput_Values();
+        testFormatOutput_SortedAfterChanges();
+        testFormatOutput_Streams();
+
+        // Integer calculator
+        System.out.println("\n--- Integer Calculator ---");
+        testInteger_ExactBeyondDoublePrecision();
+        testInteger_JavaDivisionSemantics();
+        testInteger_OverflowDetected();
+        testInteger_FallsBackToDouble();
+        testInteger_MatchesDoubleModeForSmallValues();
+        testInteger_StreamedScript();
+
+        // Snapshots
+        System.out.println("\n--- Snapshots ---");
+        testSnapshot_RestoresSameOutput();
+        testSnapshot_LargeTableAndIntegers();
+        testSnapshot_RejectsCorruptFiles();
+
+        // Journal
+        System.out.println("\n--- Journal ---");
+        testJournal_ReplayRestoresState();
+        testJournal_RefusedChangeNotApplied();
+        testJournal_GroupCommit();
+        testJournal_TornTailIgnored();
+        testJournal_ConcurrentUpdatesInOrder();
+
+        // Transactions
+        System.out.println("\n--- Transactions ---");
+        testTransaction_StatementIsAtomic();
+        testTransaction_ScriptRollsBack();
+        testTransaction_Savepoints();
+        testTransaction_OtherExecutionPaths();
+        testTransaction_EveryPathIsAtomic();
+
+        // Server
+        System.out.println("\n--- Server ---");
+        testServer_SessionsAreIsolated();
+        testServer_NamesArePerSession();
+        testServer_PipelinedRequestsInOrder();
+        testServer_ManyConnections();
+        testServer_ConnectionLimit();
+        testServer_MemoryPerConnectionBounded();
+
+        // Batches
+        System.out.println("\n--- Batches ---");
+        testBatch_StreamsResultsAndIsolatesFailures();
+        testBatch_DirectoryInOrder();
+
+        // Programs
+        System.out.println("\n--- Programs ---");
+        testProgram_MatchesProcessExpressions();
+        testProgram_InputsAndErrors();
+        testProgram_IntegerCalculatorKeepsIntegerSemantics();
+        testProgram_RunAllocatesNothing();
+
+        // Pruned scripts
+        System.out.println("\n--- Pruned Scripts ---");
+        testPruned_RemovesDeadStores();
+        testPruned_OnlyWantedOutputs();
+        testPruned_FailuresUnchanged();
+        testPruned_MatchesFullRunOnRandomScripts();
+
+        // Metrics
+        System.out.println("\n--- Metrics ---");
+        testMetrics_CountsPhasesAndEvents();
+        testMetrics_JfrEvents();
+
+        // Concurrent calculator
+        System.out.println("\n--- Concurrent Calculator ---");
+        testConcurrent_IncrementIsAtomic();
+        testConcurrent_CompoundAssignmentIsAtomic();
+        testConcurrent_DefinesFromManyThreads();
+        testConcurrent_MatchesCalculator();
+
         // Summary
         System.out.println("\n========================================");
         System.out.println("  TEST SUMMARY");
@@ -0,0 +1,316 @@
+package taboola;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates one compiled expression over arrays of variable bindings, one row per index.
+ *
+ * The tree is flattened once into a list of column operations. Each operation reads
+ * whole slices of its operands and writes a slice of its own buffer, so the per-row work
+ * is a plain counted loop over primitive arrays that the JIT can unroll and vectorize.
+ * Rows are processed in chunks so the intermediate buffers stay in cache. Constants and
+ * variables without a column are broadcast into a chunk-sized buffer once, up front.
+ *
+ * Only side-effect free expressions (optionally the right side of a plain assignment)
+ * can be evaluated this way, since ++, -- and compound assignment make each row depend
+ * on the previous one. For the same reason an assignment may only read its own target
+ * if the target has a column.
+ */
+final class ColumnarEvaluator {
+    private static final int CHUNK = 1024;
+
+    private static final byte NEG = 0;
+    private static final byte ADD = 1;
+    private static final byte SUBTRACT = 2;
+    private static final byte MULTIPLY = 3;
+    private static final byte DIVIDE = 4;
+    private static final byte MODULO = 5;
+    // Fails on the first row: reads a variable that has neither a column nor a value
+    private static final byte UNDEFINED = 6;
+
+    private final Calculator calc;
+    private final Map<String, double[]> columns;
+    private final int rows;
+    // Slot of the assignment target, or -1
+    private final int target;
+    private final List<Operation> operations = new ArrayList<>();
+    // Rows of the current chunk still evaluated, and the error of the first failed row
+    private int limit;
+    private IllegalArgumentException failure;
+
+    private ColumnarEvaluator(Calculator calc, Map<String, double[]> columns, int rows, int target) {
+        this.calc = calc;
+        this.columns = columns;
+        this.rows = rows;
+        this.target = target;
+    }
+
+    /**
+     * Evaluates the expression for rows [0, out.length) and stores the results in out.
+     * If the expression is an assignment, its target is left holding the last row's value,
+     * as if the rows had been evaluated one after another. If a row fails, the error of
+     * its first failing operator is thrown and nothing is assigned.
+     *
+     * @param calc Calculator supplying variables that have no column
+     * @param expression Compiled expression
+     * @param columns Column of values per variable name
+     * @param out Destination for the per-row results
+     */
+    static void evaluate(Calculator calc, Expression expression, Map<String, double[]> columns, double[] out) {
+        Node root = expression.root;
+        int target = -1;
+        if (root instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) root;
+            if (assign.op != 0) {
+                throw new IllegalArgumentException(
+                    "Batch evaluation does not support compound assignment: " + expression.getSource());
+            }
+            target = assign.slot;
+            root = assign.value;
+        }
+        int rows = out.length;
+        for (Map.Entry<String, double[]> column : columns.entrySet()) {
+            if (column.getValue().length < rows) {
+                throw new IllegalArgumentException("Column " + column.getKey() + " has "
+                    + column.getValue().length + " rows, expected at least " + rows);
+            }
+        }
+        ColumnarEvaluator evaluator = new ColumnarEvaluator(calc, columns, rows, target);
+        Operand result = evaluator.plan(root, expression);
+        if (rows == 0) {
+            return;
+        }
+        evaluator.run(result, out);
+        if (target >= 0) {
+            calc.assign(target, (char) 0, out[rows - 1]);
+        }
+    }
+
+    /**
+     * Flattens the tree into operations in evaluation order and returns the operand
+     * holding the tree's result. Walks the tree with an explicit stack (see
+     * {@link Parser#MAX_HEIGHT}).
+     */
+    private Operand plan(Node root, Expression expression) {
+        ArrayDeque<Node> pending = new ArrayDeque<>();
+        // Per pending node, whether its children have been planned
+        ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+        ArrayDeque<Operand> results = new ArrayDeque<>();
+        pending.push(root);
+        expanded.push(false);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            boolean ready = expanded.pop();
+            if (node instanceof Node.Num) {
+                results.push(broadcast(((Node.Num) node).value));
+            } else if (node instanceof Node.Ref) {
+                int slot = ((Node.Ref) node).slot;
+                double[] column = columns.get(calc.symbols.name(slot));
+                if (column == null && slot == target) {
+                    // Each row would read the value the previous row assigned
+                    throw new IllegalArgumentException(
+                        "Batch evaluation does not support reading the assigned variable without a column: "
+                        + expression.getSource());
+                }
+                if (column != null) {
+                    results.push(new Operand(column, true));
+                } else if (calc.store.isDefined(slot)) {
+                    // Unbound variables are read once
+                    results.push(broadcast(calc.store.get(slot)));
+                } else {
+                    // Reported when the first row reaches it, so errors come in evaluation order
+                    Operand result = broadcast(0);
+                    operations.add(new Operation(UNDEFINED, slot, result));
+                    results.push(result);
+                }
+            } else if (!ready) {
+                pending.push(node);
+                expanded.push(true);
+                if (node instanceof Node.Neg) {
+                    pending.push(((Node.Neg) node).operand);
+                    expanded.push(false);
+                } else if (node instanceof Node.Binary) {
+                    pending.push(((Node.Binary) node).right);
+                    expanded.push(false);
+                    pending.push(((Node.Binary) node).left);
+                    expanded.push(false);
+                } else if (node instanceof Node.DivideByZero) {
+                    pending.push(((Node.DivideByZero) node).dividend);
+                    expanded.push(false);
+                } else {
+                    throw new IllegalArgumentException(
+                        "Batch evaluation does not support ++, -- or nested assignment: " + expression.getSource());
+                }
+            } else {
+                Operand result = new Operand(new double[CHUNK], false);
+                if (node instanceof Node.Neg) {
+                    operations.add(new Operation(NEG, results.pop(), null, result));
+                } else if (node instanceof Node.Binary) {
+                    Operand right = results.pop();
+                    Operand left = results.pop();
+                    operations.add(new Operation(opcode(((Node.Binary) node).op), left, right, result));
+                } else {
+                    // Fails in the divisor pre-scan of the first chunk, exactly like scalar evaluation
+                    operations.add(new Operation(DIVIDE, results.pop(), broadcast(0), result));
+                }
+                results.push(result);
+            }
+        }
+        return results.pop();
+    }
+
+    private Operand broadcast(double value) {
+        double[] values = new double[CHUNK];
+        Arrays.fill(values, value);
+        return new Operand(values, false);
+    }
+
+    private static byte opcode(char op) {
+        switch (op) {
+            case '+':
+                return ADD;
+            case '-':
+                return SUBTRACT;
+            case '*':
+                return MULTIPLY;
+            case '/':
+                return DIVIDE;
+            case '%':
+                return MODULO;
+            default:
+                throw new IllegalArgumentException("Invalid operator: " + op);
+        }
+    }
+
+    /**
+     * Runs the operations chunk by chunk. An operation that fails at some row limits the
+     * later operations of the chunk to the rows before it, so the error thrown is the one
+     * row-by-row evaluation would reach first.
+     */
+    private void run(Operand result, double[] out) {
+        for (int from = 0; from < rows; from += CHUNK) {
+            limit = Math.min(CHUNK, rows - from);
+            for (Operation operation : operations) {
+                execute(operation, from);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            System.arraycopy(result.values, result.offset(from), out, from, limit);
+        }
+    }
+
+    private void execute(Operation operation, int from) {
+        int length = limit;
+        if (operation.code == UNDEFINED) {
+            if (length > 0) {
+                fail(0, calc.undefined(operation.slot));
+            }
+            return;
+        }
+        double[] a = operation.left.values;
+        int aOffset = operation.left.offset(from);
+        double[] d = operation.result.values;
+        if (operation.code == NEG) {
+            for (int i = 0; i < length; i++) {
+                d[i] = -a[aOffset + i];
+            }
+            return;
+        }
+        double[] b = operation.right.values;
+        int bOffset = operation.right.offset(from);
+        switch (operation.code) {
+            case ADD:
+                for (int i = 0; i < length; i++) {
+                    d[i] = a[aOffset + i] + b[bOffset + i];
+                }
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    d[i] = a[aOffset + i] - b[bOffset + i];
+                }
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    d[i] = a[aOffset + i] * b[bOffset + i];
+                }
+                break;
+            case DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    if (b[bOffset + i] == 0) {
+                        try {
+                            // Report the error exactly as scalar evaluation does
+                            calc.divide(a[aOffset + i], b[bOffset + i]);
+                        } catch (IllegalArgumentException e) {
+                            fail(i, e);
+                            length = i;
+                        }
+                        break;
+                    }
+                }
+                for (int i = 0; i < length; i++) {
+                    d[i] = a[aOffset + i] / b[bOffset + i];
+                }
+                break;
+            case MODULO:
+                for (int i = 0; i < length; i++) {
+                    d[i] = a[aOffset + i] % b[bOffset + i];
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation: " + operation.code);
+        }
+    }
+
+    private void fail(int row, IllegalArgumentException error) {
+        limit = row;
+        failure = error;
+    }
+
+    /**
+     * Input or output of an operation: a caller's column (indexed by absolute row)
+     * or a chunk-sized buffer (indexed from 0 for every chunk).
+     */
+    private static final class Operand {
+        final double[] values;
+        final boolean column;
+
+        Operand(double[] values, boolean column) {
+            this.values = values;
+            this.column = column;
+        }
+
+        int offset(int from) {
+            return column ? from : 0;
+        }
+    }
+
+    private static final class Operation {
+        final byte code;
+        final Operand left;
+        final Operand right;
+        final Operand result;
+        // Variable read by an UNDEFINED operation
+        final int slot;
+
+        Operation(byte code, Operand left, Operand right, Operand result) {
+            this.code = code;
+            this.left = left;
+            this.right = right;
+            this.result = result;
+            this.slot = -1;
+        }
+
+        Operation(byte code, int slot, Operand result) {
+            this.code = code;
+            this.left = null;
+            this.right = null;
+            this.result = result;
+            this.slot = slot;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package taboola;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Finds side-effect free subexpressions that a script computes more than once with the
+ * same inputs, and rewrites the script to compute each of them once.
+ *
+ * Subexpressions are numbered by value: two occurrences get the same number when they
+ * have the same shape, the same constants, and read every variable at the same version.
+ * A variable's version changes at every write in evaluation order, including the hidden
+ * writes of ++, -- and compound assignment, so "(a + b) * c" is only reused until a, b or
+ * c is written. The first occurrence (in evaluation order) is rewritten into a
+ * {@link Node.Store} and later ones into {@link Node.Load}s of the same temporary.
+ *
+ * Since occurrences are only merged when nothing they read changed in between, and the
+ * first one is always evaluated before the others, the rewritten script computes exactly
+ * the same values, and fails at the same statement with the same exception.
+ */
+final class CommonSubexpressions {
+    private static final long NUM = 0;
+    private static final long REF = 1;
+    private static final long NEG = 2;
+
+    private final Script script;
+    private final int[] versions;
+    private final Map<Key, Integer> numbers = new HashMap<>();
+    private final Map<Node, Boolean> purity = new IdentityHashMap<>();
+    // Numbers of the pure subtrees seen since the last write; valid while no version changes
+    private final Map<Node, Integer> current = new IdentityHashMap<>();
+    private final ArrayDeque<Node> pending = new ArrayDeque<>();
+    private int[] counts = new int[64];
+    private int[] reuses;
+    private int[] temps;
+    private boolean[] computed;
+    private double[] values;
+    private int tempCount;
+
+    private CommonSubexpressions(Script script) {
+        this.script = script;
+        this.versions = new int[script.slotLimit()];
+    }
+
+    /**
+     * Rewrites the statements of a script to share repeated subexpressions.
+     *
+     * @param script Compiled script
+     * @return The statement to run in place of each statement of the script: the
+     *         statement itself where nothing is shared, a rewritten one otherwise
+     */
+    static Expression[] rewrite(Script script) {
+        return new CommonSubexpressions(script).run();
+    }
+
+    private Expression[] run() {
+        // Count occurrences, then find which survive inside shared occurrences, then rewrite
+        for (Expression statement : script.statements) {
+            count(statement.root);
+        }
+        reset();
+        reuses = new int[counts.length];
+        computed = new boolean[counts.length];
+        for (Expression statement : script.statements) {
+            simulate(statement.root);
+        }
+        reset();
+        temps = new int[counts.length];
+        Arrays.fill(temps, -1);
+        for (int number = 0; number < reuses.length; number++) {
+            if (reuses[number] > 0) {
+                temps[number] = tempCount++;
+            }
+        }
+        values = new double[tempCount];
+        computed = new boolean[counts.length];
+        Expression[] rewritten = script.statements.clone();
+        for (int i = 0; i < rewritten.length && tempCount > 0; i++) {
+            Expression statement = rewritten[i];
+            Node node = rewrite(statement.root);
+            if (node != statement.root) {
+                rewritten[i] = new Expression(statement.getSource(), node);
+            }
+        }
+        return rewritten;
+    }
+
+    private void reset() {
+        Arrays.fill(versions, 0);
+        current.clear();
+    }
+
+    private void count(Node node) {
+        visit(node, false);
+    }
+
+    private void simulate(Node node) {
+        visit(node, true);
+    }
+
+    /**
+     * Counts the occurrences of each number, or, when simulating, counts how often each
+     * number shared by several occurrences is reused instead of computed. Visits the
+     * children in evaluation order, then records the node's own writes. Recurses with
+     * one small frame per level (see {@link Parser#MAX_HEIGHT}).
+     */
+    private void visit(Node node, boolean simulating) {
+        if (isSharable(node)) {
+            int number = number(node);
+            if (!simulating) {
+                if (number >= counts.length) {
+                    counts = Arrays.copyOf(counts, Math.max(number + 1, counts.length * 2));
+                }
+                counts[number]++;
+            } else if (counts[number] > 1) {
+                if (computed[number]) {
+                    reuses[number]++;
+                    return;
+                }
+                computed[number] = true;
+            }
+        }
+        if (node instanceof Node.Neg) {
+            visit(((Node.Neg) node).operand, simulating);
+        } else if (node instanceof Node.Binary) {
+            visit(((Node.Binary) node).left, simulating);
+            visit(((Node.Binary) node).right, simulating);
+        } else if (node instanceof Node.DivideByZero) {
+            visit(((Node.DivideByZero) node).dividend, simulating);
+        } else if (node instanceof Node.Assign) {
+            visit(((Node.Assign) node).value, simulating);
+            write(((Node.Assign) node).slot);
+        } else if (node instanceof Node.Step) {
+            write(((Node.Step) node).slot);
+        }
+    }
+
+    private Node rewrite(Node node) {
+        if (isSharable(node)) {
+            int number = number(node);
+            int temp = temps[number];
+            if (temp >= 0) {
+                if (computed[number]) {
+                    return new Node.Load(values, temp);
+                }
+                computed[number] = true;
+                return new Node.Store(values, temp, rewriteChildren(node));
+            }
+        }
+        return rewriteChildren(node);
+    }
+
+    private Node rewriteChildren(Node node) {
+        if (node instanceof Node.Neg) {
+            Node operand = ((Node.Neg) node).operand;
+            Node rewritten = rewrite(operand);
+            return rewritten == operand ? node : new Node.Neg(rewritten);
+        }
+        if (node instanceof Node.Binary) {
+            Node.Binary binary = (Node.Binary) node;
+            Node left = rewrite(binary.left);
+            Node right = rewrite(binary.right);
+            return left == binary.left && right == binary.right ? node : new Node.Binary(binary.op, left, right);
+        }
+        if (node instanceof Node.DivideByZero) {
+            Node dividend = ((Node.DivideByZero) node).dividend;
+            Node rewritten = rewrite(dividend);
+            return rewritten == dividend ? node : new Node.DivideByZero(rewritten);
+        }
+        if (node instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) node;
+            Node value = rewrite(assign.value);
+            write(assign.slot);
+            return value == assign.value ? node : new Node.Assign(assign.slot, assign.op, value);
+        }
+        if (node instanceof Node.Step) {
+            write(((Node.Step) node).slot);
+        }
+        return node;
+    }
+
+    private void write(int slot) {
+        versions[slot]++;
+        current.clear();
+    }
+
+    /**
+     * Only operators are worth sharing; a constant or a variable read costs no more than
+     * reading a temporary.
+     */
+    private boolean isSharable(Node node) {
+        return (node instanceof Node.Neg || node instanceof Node.Binary) && isPure(node);
+    }
+
+    private boolean isPure(Node node) {
+        Boolean pure = purity.get(node);
+        if (pure == null) {
+            if (node instanceof Node.Num || node instanceof Node.Ref) {
+                pure = true;
+            } else if (node instanceof Node.Neg) {
+                pure = isPure(((Node.Neg) node).operand);
+            } else if (node instanceof Node.Binary) {
+                pure = isPure(((Node.Binary) node).left) && isPure(((Node.Binary) node).right);
+            } else {
+                // Writes, and divisions known to fail
+                pure = false;
+            }
+            purity.put(node, pure);
+        }
+        return pure;
+    }
+
+    /**
+     * Value number of a pure subtree at the current variable versions. Numbers the
+     * unnumbered subtrees children first with an explicit stack (see
+     * {@link Parser#MAX_HEIGHT}); nothing is written meanwhile, so current stays valid.
+     */
+    private int number(Node root) {
+        Integer known = current.get(root);
+        if (known != null) {
+            return known;
+        }
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.peek();
+            Key key;
+            if (node instanceof Node.Num) {
+                key = new Key(NUM, Double.doubleToRawLongBits(((Node.Num) node).value), 0);
+            } else if (node instanceof Node.Ref) {
+                int slot = ((Node.Ref) node).slot;
+                key = new Key(REF, slot, versions[slot]);
+            } else if (node instanceof Node.Neg) {
+                Integer operand = current.get(((Node.Neg) node).operand);
+                if (operand == null) {
+                    pending.push(((Node.Neg) node).operand);
+                    continue;
+                }
+                key = new Key(NEG, operand, 0);
+            } else {
+                Node.Binary binary = (Node.Binary) node;
+                Integer left = current.get(binary.left);
+                Integer right = current.get(binary.right);
+                if (left == null || right == null) {
+                    if (right == null) {
+                        pending.push(binary.right);
+                    }
+                    if (left == null) {
+                        pending.push(binary.left);
+                    }
+                    continue;
+                }
+                // Operator codes are chars, above the NUM, REF and NEG codes
+                key = new Key(binary.op, left, right);
+            }
+            pending.pop();
+            Integer number = numbers.get(key);
+            if (number == null) {
+                number = numbers.size();
+                numbers.put(key, number);
+            }
+            current.put(node, number);
+        }
+        return current.get(root);
+    }
+
+    private static final class Key {
+        final long kind;
+        final long a;
+        final long b;
+
+        Key(long kind, long a, long b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return kind == key.kind && a == key.a && b == key.b;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode((kind * 31 + a) * 31 + b);
+        }
+    }
+}
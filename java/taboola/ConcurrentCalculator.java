@@ -0,0 +1,105 @@
+package taboola;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Calculator whose variables can be shared by many threads evaluating at the same time.
+ *
+ * Reads of a variable take no lock. ++, -- and compound assignments (+=, *= and so on)
+ * are atomic per variable: each retries a compare-and-set on the variable's value until
+ * no other thread has changed it in between, so concurrent x++ or x += 1 never lose an
+ * update. A statement touching several variables is atomic per variable, not as a whole;
+ * "a = b + c" may see b and c from different moments.
+ *
+ * The map returned by {@link #processExpressions(String[])} is live and may only be
+ * iterated while no other thread is defining or removing variables; use
+ * {@link #snapshot()} to read all variables while other threads are running.
+ *
+ * Transactions are not supported: {@link #begin()}, and therefore
+ * {@link #processExpressionsAtomically(String[])}, throw UnsupportedOperationException,
+ * since an undo log cannot tell one thread's changes from another's. Without an open
+ * transaction, {@link #commit()} and {@link #rollback()} fail as in any Calculator.
+ */
+public class ConcurrentCalculator extends Calculator {
+    private final ConcurrentVariableStore values;
+
+    public ConcurrentCalculator() {
+        this(ExpressionCache.shared());
+    }
+
+    /**
+     * Creates a calculator that looks up compiled expressions in the given cache.
+     *
+     * @param cache Cache to use (may be shared with other calculators), or null to parse on every call
+     */
+    public ConcurrentCalculator(ExpressionCache cache) {
+        this(cache, new ConcurrentVariableStore(symbolsOf(cache)));
+    }
+
+    private ConcurrentCalculator(ExpressionCache cache, ConcurrentVariableStore store) {
+        super(cache, store);
+        this.values = store;
+    }
+
+    /**
+     * Returns a copy of all variable values, taken while no variable is being defined or removed.
+     *
+     * @return Variable values by name
+     */
+    public Map<String, Double> snapshot() {
+        synchronized (variables) {
+            Map<String, Double> snapshot = new HashMap<>(variables.size() * 2);
+            for (Var var : variables.values()) {
+                snapshot.put(var.getName(), var.getValue());
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Not supported: the undo log of a transaction needs a calculator used by one thread
+     * at a time, so this always throws and leaves the calculator unchanged.
+     *
+     * @throws UnsupportedOperationException Always
+     */
+    @Override
+    public void begin() {
+        throw new UnsupportedOperationException("Transactions are not supported by ConcurrentCalculator.");
+    }
+
+    @Override
+    double step(int slot, boolean increment, boolean prefix) {
+        if (Metrics.enabled) {
+            Metrics.count(Metrics.Counter.INCREMENTS);
+        }
+        valueOf(slot);
+        while (true) {
+            long bits = values.bits(slot);
+            double currentValue = Double.longBitsToDouble(bits);
+            double newValue = increment ? increment(currentValue) : decrement(currentValue);
+            if (values.compareAndSet(slot, bits, newValue)) {
+                return prefix ? newValue : currentValue;
+            }
+        }
+    }
+
+    @Override
+    double assign(int slot, char operator, double value) {
+        if (Metrics.enabled) {
+            Metrics.count(Metrics.Counter.ASSIGNMENTS);
+        }
+        if (operator == 0) {
+            values.set(slot, value);
+            return value;
+        }
+        valueOf(slot);
+        while (true) {
+            long bits = values.bits(slot);
+            double newValue = calculate(Double.longBitsToDouble(bits), value, operator);
+            if (values.compareAndSet(slot, bits, newValue)) {
+                return newValue;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package taboola;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Variable store that can be shared by many threads.
+ *
+ * Values are kept as the raw long bits of each double in atomic arrays, so reads and
+ * plain writes are single volatile accesses and read-modify-write operators can use
+ * {@link #compareAndSet(int, long, double)}. Storage is split into fixed-size chunks,
+ * allocated when a slot in them is first defined and never reallocated; adding one only
+ * publishes a new copy of the chunk directory, so a thread never writes into an array
+ * another thread has already replaced.
+ *
+ * Defining and removing variables (and the map view) is serialized on the map; these
+ * are rare compared to updates of existing variables, which take no lock.
+ */
+final class ConcurrentVariableStore extends VariableStore {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    ConcurrentVariableStore(Symbols symbols) {
+        super(symbols);
+    }
+
+    @Override
+    boolean isDefined(int slot) {
+        Chunk chunk = chunkOrNull(slot);
+        return chunk != null && chunk.vars.get(slot & CHUNK_MASK) != null;
+    }
+
+    @Override
+    double get(int slot) {
+        return Double.longBitsToDouble(bits(slot));
+    }
+
+    /**
+     * @param slot Slot of a defined variable
+     * @return The raw long bits of the variable's value
+     */
+    long bits(int slot) {
+        return chunks[slot >>> CHUNK_BITS].values.get(slot & CHUNK_MASK);
+    }
+
+    /**
+     * Atomically replaces the value of a defined variable if it still has the expected bits.
+     *
+     * @param slot Slot of a defined variable
+     * @param expected Bits previously returned by {@link #bits(int)}
+     * @param value New value
+     * @return true if the value was replaced
+     */
+    boolean compareAndSet(int slot, long expected, double value) {
+        Journal journal = this.journal;
+        if (journal == null) {
+            return chunks[slot >>> CHUNK_BITS].values.compareAndSet(
+                slot & CHUNK_MASK, expected, Double.doubleToRawLongBits(value));
+        }
+        // Updates and their records are serialized so the journal has them in update order
+        journal.lock.lock();
+        try {
+            journal.reserve(slot);
+            if (!chunks[slot >>> CHUNK_BITS].values.compareAndSet(
+                    slot & CHUNK_MASK, expected, Double.doubleToRawLongBits(value))) {
+                return false;
+            }
+            journal.appendSet(slot, value);
+            return true;
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    @Override
+    void set(int slot, double value) {
+        Chunk chunk = chunk(slot);
+        int index = slot & CHUNK_MASK;
+        // The value is written before the view is published, so a thread that sees
+        // the variable as defined also sees a value assigned to it
+        Journal journal = this.journal;
+        if (journal == null) {
+            chunk.values.set(index, Double.doubleToRawLongBits(value));
+        } else {
+            journal.lock.lock();
+            try {
+                journal.set(slot, value);
+                chunk.values.set(index, Double.doubleToRawLongBits(value));
+            } finally {
+                journal.lock.unlock();
+            }
+        }
+        if (chunk.vars.get(index) == null) {
+            synchronized (map) {
+                if (chunk.vars.get(index) == null) {
+                    chunk.vars.set(index, newView(slot));
+                }
+            }
+        }
+    }
+
+    @Override
+    void remove(int slot) {
+        synchronized (map) {
+            if (isDefined(slot)) {
+                Journal journal = this.journal;
+                if (journal != null) {
+                    journal.remove(slot);
+                }
+                Chunk chunk = chunks[slot >>> CHUNK_BITS];
+                int index = slot & CHUNK_MASK;
+                dropView(chunk.vars.getAndSet(index, null));
+                chunk.values.set(index, 0);
+            }
+        }
+    }
+
+    @Override
+    void clear() {
+        synchronized (map) {
+            Journal journal = this.journal;
+            if (journal != null) {
+                journal.clear();
+            }
+            for (Chunk chunk : chunks) {
+                if (chunk == null) {
+                    continue;
+                }
+                for (int i = 0; i < CHUNK_SIZE; i++) {
+                    chunk.vars.set(i, null);
+                    chunk.values.set(i, 0);
+                }
+            }
+            map.unregisterAll();
+        }
+    }
+
+    @Override
+    void reserve(int slot) {
+        chunk(slot);
+    }
+
+    private Chunk chunkOrNull(int slot) {
+        Chunk[] directory = chunks;
+        int index = slot >>> CHUNK_BITS;
+        return index < directory.length ? directory[index] : null;
+    }
+
+    private Chunk chunk(int slot) {
+        Chunk chunk = chunkOrNull(slot);
+        return chunk != null ? chunk : grow(slot >>> CHUNK_BITS);
+    }
+
+    private synchronized Chunk grow(int index) {
+        Chunk[] directory = chunks;
+        if (index < directory.length && directory[index] != null) {
+            return directory[index];
+        }
+        Chunk[] grown = Arrays.copyOf(directory, Math.max(index + 1, directory.length));
+        Chunk chunk = new Chunk();
+        grown[index] = chunk;
+        chunks = grown;
+        return chunk;
+    }
+
+    private static final class Chunk {
+        final AtomicLongArray values = new AtomicLongArray(CHUNK_SIZE);
+        // Non-null exactly for the defined slots
+        final AtomicReferenceArray<Var> vars = new AtomicReferenceArray<>(CHUNK_SIZE);
+    }
+}
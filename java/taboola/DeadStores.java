@@ -0,0 +1,119 @@
+package taboola;
+
+import java.util.Arrays;
+
+/**
+ * Finds the statements of a script that can be skipped without changing the final value
+ * of the variables the caller wants: statements whose writes are all overwritten before
+ * any read (dead stores), and statements that only feed variables nobody asked for.
+ *
+ * A backward pass keeps a statement when it writes a live variable, and then makes the
+ * variables it reads live in place of the ones it overwrites. The read and write sets of
+ * {@link Script} include the hidden effects of the operators, so "y = x++" is kept for
+ * its increment whenever x is live, even if y is not. Statements that may throw are
+ * always kept, and everything they could expose is treated as live: a division whose
+ * divisor is not a non-zero constant, or a read of a variable that is not defined at that
+ * point. A failing script therefore fails at the same statement, with the same message
+ * and the same values of the wanted variables, as when run in full.
+ */
+final class DeadStores {
+
+    private DeadStores() {
+    }
+
+    /**
+     * Decides which statements to run.
+     *
+     * @param script Compiled script
+     * @param store Variables the script will run against, for the ones defined at the start
+     * @param outputs Slots of the variables whose final values matter, or null for all
+     * @return Per statement, whether it must run
+     */
+    static boolean[] live(Script script, VariableStore store, int[] outputs) {
+        int limit = script.slotLimit();
+        boolean[] wanted = new boolean[limit];
+        if (outputs == null) {
+            Arrays.fill(wanted, true);
+        } else {
+            for (int slot : outputs) {
+                if (slot >= 0 && slot < limit) {
+                    wanted[slot] = true;
+                }
+            }
+        }
+        boolean[] mayFail = mayFail(script, store, limit);
+        // A slot is live if marked here, or if it is wanted and was not overwritten since
+        // the latest may-fail statement (in backward order), which makes every wanted slot
+        // live again by starting a new epoch instead of visiting each of them
+        boolean[] live = new boolean[limit];
+        int[] killedEpoch = new int[limit];
+        int epoch = 1;
+        boolean[] keep = new boolean[script.size()];
+        for (int i = script.size() - 1; i >= 0; i--) {
+            if (mayFail[i]) {
+                keep[i] = true;
+                epoch++;
+            } else {
+                for (int slot : script.writes[i]) {
+                    keep[i] |= live[slot] || wanted[slot] && killedEpoch[slot] < epoch;
+                }
+            }
+            if (keep[i]) {
+                // A failing statement writes nothing, so what it overwrites stays visible
+                if (!mayFail[i]) {
+                    for (int slot : script.writes[i]) {
+                        live[slot] = false;
+                        killedEpoch[slot] = epoch;
+                    }
+                }
+                for (int slot : script.reads[i]) {
+                    live[slot] = true;
+                }
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Statements that can throw: risky divisions, and reads of variables that are
+     * undefined when the statement runs. Assignments define variables only once their
+     * value is computed, so a statement never reads a variable it defines itself.
+     */
+    private static boolean[] mayFail(Script script, VariableStore store, int limit) {
+        boolean[] defined = new boolean[limit];
+        for (int slot = 0; slot < limit; slot++) {
+            defined[slot] = store.isDefined(slot);
+        }
+        boolean[] mayFail = new boolean[script.size()];
+        for (int i = 0; i < script.size(); i++) {
+            mayFail[i] = mayDivideByZero(script.statements[i].root);
+            for (int slot : script.reads[i]) {
+                mayFail[i] |= !defined[slot];
+            }
+            for (int slot : script.writes[i]) {
+                defined[slot] = true;
+            }
+        }
+        return mayFail;
+    }
+
+    private static boolean mayDivideByZero(Node node) {
+        if (node instanceof Node.Neg) {
+            return mayDivideByZero(((Node.Neg) node).operand);
+        } else if (node instanceof Node.Binary) {
+            Node.Binary binary = (Node.Binary) node;
+            return binary.op == '/' && !nonZeroConstant(binary.right)
+                || mayDivideByZero(binary.left) || mayDivideByZero(binary.right);
+        } else if (node instanceof Node.DivideByZero) {
+            return true;
+        } else if (node instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) node;
+            return assign.op == '/' && !nonZeroConstant(assign.value) || mayDivideByZero(assign.value);
+        }
+        return false;
+    }
+
+    private static boolean nonZeroConstant(Node node) {
+        return node instanceof Node.Num && ((Node.Num) node).value != 0;
+    }
+}
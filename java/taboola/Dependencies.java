@@ -0,0 +1,90 @@
+package taboola;
+
+import java.util.Arrays;
+
+/**
+ * Def-use graph of a {@link Script}: for every variable a statement reads, which earlier
+ * statement produced the value it reads (its reaching definition), or whether it reads
+ * the value the variable had before the script ran.
+ *
+ * Values are identified by (statement, position in that statement's write set). The
+ * hidden reads and writes of ++, -- and compound assignment are included, so a statement
+ * that runs with the values of its reaching definitions restored computes exactly what
+ * it computed in the sequential run.
+ */
+final class Dependencies {
+    final Script script;
+    // Per statement and read slot (parallel to script.reads): defining statement, or -1 for the input
+    final int[][] readDefs;
+    // Per statement and read slot: position of the slot in the defining statement's write set
+    final int[][] readDefPositions;
+    // Per statement: later statements reading at least one value it wrote, ascending
+    final int[][] dependents;
+    // Per slot: statements reading the value the slot had before the script, ascending
+    final int[][] inputReaders;
+    // Per slot: last statement writing it and the slot's position in its write set, or -1
+    final int[] lastWriter;
+    final int[] lastWriterPosition;
+
+    Dependencies(Script script) {
+        this.script = script;
+        int statements = script.size();
+        int limit = script.slotLimit();
+        readDefs = new int[statements][];
+        readDefPositions = new int[statements][];
+        lastWriter = new int[limit];
+        lastWriterPosition = new int[limit];
+        Arrays.fill(lastWriter, -1);
+        Arrays.fill(lastWriterPosition, -1);
+        int[] dependentCounts = new int[statements];
+        int[] inputReaderCounts = new int[limit];
+        int[] seen = new int[statements];
+        Arrays.fill(seen, -1);
+        for (int i = 0; i < statements; i++) {
+            int[] reads = script.reads[i];
+            readDefs[i] = new int[reads.length];
+            readDefPositions[i] = new int[reads.length];
+            for (int k = 0; k < reads.length; k++) {
+                int def = lastWriter[reads[k]];
+                readDefs[i][k] = def;
+                readDefPositions[i][k] = lastWriterPosition[reads[k]];
+                if (def < 0) {
+                    inputReaderCounts[reads[k]]++;
+                } else if (seen[def] != i) {
+                    seen[def] = i;
+                    dependentCounts[def]++;
+                }
+            }
+            int[] writes = script.writes[i];
+            for (int k = 0; k < writes.length; k++) {
+                lastWriter[writes[k]] = i;
+                lastWriterPosition[writes[k]] = k;
+            }
+        }
+        dependents = allocate(dependentCounts);
+        inputReaders = allocate(inputReaderCounts);
+        Arrays.fill(dependentCounts, 0);
+        Arrays.fill(inputReaderCounts, 0);
+        Arrays.fill(seen, -1);
+        for (int i = 0; i < statements; i++) {
+            int[] reads = script.reads[i];
+            for (int k = 0; k < reads.length; k++) {
+                int def = readDefs[i][k];
+                if (def < 0) {
+                    inputReaders[reads[k]][inputReaderCounts[reads[k]]++] = i;
+                } else if (seen[def] != i) {
+                    seen[def] = i;
+                    dependents[def][dependentCounts[def]++] = i;
+                }
+            }
+        }
+    }
+
+    private static int[][] allocate(int[] counts) {
+        int[][] lists = new int[counts.length][];
+        for (int i = 0; i < counts.length; i++) {
+            lists[i] = new int[counts[i]];
+        }
+        return lists;
+    }
+}
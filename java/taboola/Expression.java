@@ -0,0 +1,111 @@
+package taboola;
+
+/**
+ * An expression that has been parsed once into an immutable tree.
+ * The same instance can be evaluated many times, against any Calculator,
+ * without re-parsing or any intermediate string conversions.
+ *
+ * Obtain instances with {@link Calculator#compile(String)}.
+ *
+ * Evaluation is tiered: an expression starts out interpreted by walking its tree,
+ * and once it has been evaluated {@link #setCompileThreshold(int) threshold} times
+ * it is promoted to a generated JVM class (see {@link BytecodeCompiler}).
+ */
+public final class Expression {
+    private static volatile int compileThreshold = Integer.getInteger("taboola.compileThreshold", 10_000);
+
+    private final String source;
+    final Node root;
+    // Node used for evaluation once promotion has been decided: the generated
+    // node, or root itself if generation failed; null while still counting
+    private volatile Node tiered;
+    // Racy on purpose: a few lost increments only delay promotion
+    private int evaluations;
+
+    Expression(String source, Node root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    /**
+     * Sets how many evaluations of one expression trigger its compilation to bytecode.
+     * Expressions that are already promoted are not affected.
+     *
+     * @param evaluations Number of evaluations; 0 or less disables compilation
+     */
+    public static void setCompileThreshold(int evaluations) {
+        compileThreshold = evaluations;
+    }
+
+    public static int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    /**
+     * Evaluates the expression against the variables of the given calculator, exactly
+     * like {@link Calculator#evaluate(String)} with the same source: with the
+     * calculator's arithmetic, and atomically while it has a transaction open.
+     * Assignments and ++/-- update the calculator's variables.
+     *
+     * @param calculator Calculator holding the variables
+     * @return The evaluated result
+     */
+    public double eval(Calculator calculator) {
+        return calculator.run(this);
+    }
+
+    /**
+     * Evaluates the tree, or the generated class once promoted, with plain double arithmetic.
+     */
+    double evaluate(Calculator calculator) {
+        Node node = tiered;
+        if (Metrics.enabled) {
+            return Metrics.evaluate(node != null ? node : select(), calculator);
+        }
+        if (node == null) {
+            node = select();
+        }
+        return node.eval(calculator);
+    }
+
+    /**
+     * Counts an interpreted evaluation and returns the node to run it with.
+     */
+    private Node select() {
+        int threshold = compileThreshold;
+        if (threshold > 0 && ++evaluations >= threshold) {
+            return promote();
+        }
+        return root;
+    }
+
+    private synchronized Node promote() {
+        if (tiered == null) {
+            Node generated = BytecodeCompiler.compile(root);
+            tiered = generated != null ? generated : root;
+            if (generated != null && Metrics.enabled) {
+                Metrics.count(Metrics.Counter.PROMOTIONS);
+            }
+        }
+        return tiered;
+    }
+
+    /**
+     * @return true once the expression runs as generated bytecode
+     */
+    boolean isCompiled() {
+        Node node = tiered;
+        return node != null && node != root;
+    }
+
+    /**
+     * @return The source text this expression was compiled from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public String toString() {
+        return "Expression{source='" + source + "', tree=" + root + "}";
+    }
+}
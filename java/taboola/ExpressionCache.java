@@ -0,0 +1,179 @@
+package taboola;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded LRU cache from expression source text to its compiled form.
+ *
+ * The cache is split into independently locked segments (chosen by the hash of
+ * the source text), each an access-ordered LinkedHashMap, so lookups from many
+ * threads do not serialize on one lock. Eviction is least-recently-used within a
+ * segment. Compiled expressions are immutable, so one cache can be shared by any
+ * number of Calculator instances and threads.
+ */
+public final class ExpressionCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int MAX_SEGMENTS = 16;
+    // Keep segments large enough that per-segment LRU stays close to global LRU
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+
+    private static final ExpressionCache SHARED = new ExpressionCache(
+        Integer.getInteger("taboola.expressionCache.capacity", DEFAULT_CAPACITY));
+
+    private final Segment[] segments;
+    private final int capacity;
+    // False for caches of unoptimized trees, whose literals keep their exact integer values
+    private final boolean optimize;
+    // Table the parsed trees' slots belong to
+    final Symbols symbols;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity Maximum number of compiled expressions to keep
+     */
+    public ExpressionCache(int capacity) {
+        this(capacity, true);
+    }
+
+    /**
+     * @param capacity Maximum number of compiled expressions to keep
+     * @param optimize Whether to run the {@link Optimizer} on parsed trees
+     */
+    ExpressionCache(int capacity, boolean optimize) {
+        this(capacity, optimize, Symbols.GLOBAL);
+    }
+
+    /**
+     * @param capacity Maximum number of compiled expressions to keep
+     * @param optimize Whether to run the {@link Optimizer} on parsed trees
+     * @param symbols Table to intern variable names into; calculators using the cache
+     *        must use the same table
+     */
+    ExpressionCache(int capacity, boolean optimize, Symbols symbols) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && capacity / (count * 2) >= MIN_SEGMENT_CAPACITY) {
+            count *= 2;
+        }
+        this.capacity = capacity;
+        this.optimize = optimize;
+        this.symbols = symbols;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // Spread the remainder so the segment capacities add up to the total
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+    }
+
+    /**
+     * Process-wide cache used by Calculators created without an explicit cache.
+     * Its capacity can be set with the system property taboola.expressionCache.capacity.
+     *
+     * @return The shared cache
+     */
+    public static ExpressionCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the compiled form of the expression, parsing it only on a miss.
+     * Expressions that fail to parse are not cached.
+     *
+     * @param source The expression text
+     * @return The compiled expression
+     */
+    Expression get(String source) {
+        Segment segment = segmentFor(source);
+        Expression expression;
+        synchronized (segment) {
+            expression = segment.get(source);
+        }
+        if (expression != null) {
+            hits.increment();
+            return expression;
+        }
+        misses.increment();
+        // Parse outside the lock; a concurrent miss on the same text just parses twice
+        Node root = Parser.parse(source, symbols);
+        expression = new Expression(source, optimize ? Optimizer.optimize(root) : root);
+        synchronized (segment) {
+            Expression existing = segment.putIfAbsent(source, expression);
+            return existing != null ? existing : expression;
+        }
+    }
+
+    private Segment segmentFor(String source) {
+        int h = source.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Removes all entries. Counters are left untouched.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public String toString() {
+        return "ExpressionCache{size=" + size() + ", capacity=" + capacity + ", hits=" + getHits()
+            + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "}";
+    }
+
+    // Never serialized; LinkedHashMap is just the LRU structure
+    @SuppressWarnings("serial")
+    private final class Segment extends LinkedHashMap<String, Expression> {
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+            if (size() > maxSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package taboola;
+
+/**
+ * Unit tests for the ExpressionCache class.
+ */
+public class ExpressionCacheTest {
+    private ExpressionCache cache;
+    private int passedTests = 0;
+    private int failedTests = 0;
+
+    public void setUp() {
+        cache = new ExpressionCache(4);
+    }
+
+    // Helper methods for assertions
+    private void assertEquals(double expected, double actual, String testName) {
+        if (Math.abs(expected - actual) < 0.0001) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName);
+        } else {
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName + " - Expected: " + expected + ", Got: " + actual);
+        }
+    }
+
+    private void assertEquals(String expected, String actual, String testName) {
+        if (expected.equals(actual)) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName);
+        } else {
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName + " - Expected: '" + expected + "', Got: '" + actual + "'");
+        }
+    }
+
+    private void assertTrue(boolean condition, String testName) {
+        if (condition) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName);
+        } else {
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName);
+        }
+    }
+
+    private void assertThrows(Runnable code, String testName) {
+        try {
+            code.run();
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName + " - Expected exception but none was thrown");
+        } catch (Exception e) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName + " - Exception thrown as expected: " + e.getClass().getSimpleName());
+        }
+    }
+
+    // ==================== Tests for Hits and Misses ====================
+
+    public void testGet_MissThenHit() {
+        setUp();
+        Expression first = cache.get("a = b + 1");
+        Expression second = cache.get("a = b + 1");
+        assertTrue(first == second, "get: Repeated source returns the same compiled expression");
+        assertEquals(1.0, cache.getMisses(), "get: One miss recorded");
+        assertEquals(1.0, cache.getHits(), "get: One hit recorded");
+    }
+
+    public void testGet_ParseErrorNotCached() {
+        setUp();
+        assertThrows(() -> cache.get("a = "), "get: Invalid expression throws exception");
+        assertEquals(0.0, cache.size(), "get: Invalid expression is not cached");
+    }
+
+    public void testCalculator_UsesCache() {
+        setUp();
+        Calculator calculator = new Calculator(cache);
+        calculator.processExpressions(new String[] {"x = 1", "x += 2", "x += 2", "  x += 2  "});
+        assertEquals(7.0, calculator.variables.get("x").getValue(), "calculator: Results unchanged with cache");
+        assertEquals(2.0, cache.getMisses(), "calculator: Each distinct statement parsed once");
+        assertEquals(2.0, cache.getHits(), "calculator: Repeated statements served from cache");
+    }
+
+    public void testCalculator_WithoutCache() {
+        setUp();
+        Calculator calculator = new Calculator(null);
+        assertTrue(calculator.compile("1 + 1") != calculator.compile("1 + 1"),
+                   "calculator: Null cache parses on every call");
+    }
+
+    // ==================== Tests for Eviction ====================
+
+    public void testEviction_LeastRecentlyUsed() {
+        setUp();
+        cache.get("1");
+        cache.get("2");
+        cache.get("3");
+        cache.get("4");
+        Expression one = cache.get("1");
+        cache.get("5");
+        assertEquals(4.0, cache.size(), "eviction: Size bounded by capacity");
+        assertEquals(1.0, cache.getEvictions(), "eviction: One eviction recorded");
+        assertTrue(cache.get("1") == one, "eviction: Recently used entry kept");
+        long misses = cache.getMisses();
+        cache.get("2");
+        assertEquals(misses + 1, cache.getMisses(), "eviction: Least recently used entry evicted");
+    }
+
+    public void testEviction_LargeCapacityIsSegmented() {
+        ExpressionCache large = new ExpressionCache(1000);
+        for (int i = 0; i < 5000; i++) {
+            large.get("x + " + i);
+        }
+        assertTrue(large.size() <= 1000, "eviction: Segmented cache stays within capacity");
+        assertEquals(5000.0, large.size() + large.getEvictions(), "eviction: Every entry counted as kept or evicted");
+    }
+
+    public void testInvalidCapacity() {
+        assertThrows(() -> new ExpressionCache(0), "constructor: Zero capacity throws exception");
+    }
+
+    // ==================== Tests for Sharing ====================
+
+    public void testConcurrentAccess() {
+        ExpressionCache shared = new ExpressionCache(128);
+        Thread[] threads = new Thread[8];
+        double[] results = new double[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                Calculator calculator = new Calculator(shared);
+                calculator.setVariable("x", index);
+                for (int i = 0; i < 10000; i++) {
+                    calculator.evaluate("x = x + " + (i % 50));
+                }
+                results[index] = calculator.variables.get("x").getValue();
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        boolean correct = true;
+        for (int t = 0; t < threads.length; t++) {
+            // Each thread adds 0..49 two hundred times on top of its start value
+            correct &= results[t] == t + 200 * 1225;
+        }
+        assertTrue(correct, "concurrent: Calculators sharing a cache compute independent results");
+        assertEquals(50.0, shared.size(), "concurrent: Shared cache holds each distinct expression once");
+    }
+
+    // ==================== Run All Tests ====================
+
+    public void runAllTests() {
+        System.out.println("\n========================================");
+        System.out.println("  EXPRESSION CACHE UNIT TESTS");
+        System.out.println("========================================\n");
+
+        System.out.println("--- Hits and Misses ---");
+        testGet_MissThenHit();
+        testGet_ParseErrorNotCached();
+        testCalculator_UsesCache();
+        testCalculator_WithoutCache();
+
+        System.out.println("\n--- Eviction ---");
+        testEviction_LeastRecentlyUsed();
+        testEviction_LargeCapacityIsSegmented();
+        testInvalidCapacity();
+
+        System.out.println("\n--- Sharing ---");
+        testConcurrentAccess();
+
+        // Summary
+        System.out.println("\n========================================");
+        System.out.println("  TEST SUMMARY");
+        System.out.println("========================================");
+        System.out.println("Total tests: " + (passedTests + failedTests));
+        System.out.println("Passed: " + passedTests);
+        System.out.println("Failed: " + failedTests);
+        if (failedTests == 0) {
+            System.out.println("\n🎉 ALL TESTS PASSED! 🎉");
+        } else {
+            System.out.println("\n⚠️  SOME TESTS FAILED ⚠️");
+        }
+        System.out.println("========================================\n");
+    }
+
+    public static void main(String[] args) {
+        ExpressionCacheTest test = new ExpressionCacheTest();
+        test.runAllTests();
+    }
+}
@@ -0,0 +1,244 @@
+package taboola;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Calculator that keeps integers exact: statements that involve only integer literals
+ * and integer variables run on primitive longs instead of doubles.
+ *
+ * Integer statements follow Java's long semantics: / truncates toward zero and % takes
+ * the sign of the dividend. Results that do not fit in a long are reported as errors
+ * instead of wrapping around, as with {@link Math#addExact} and friends; division or
+ * remainder by zero fails as in double mode. A statement falls back to double arithmetic
+ * as a whole when it contains a literal with a fraction or exponent, or reads a variable
+ * that holds a double; the variables it writes then hold doubles too. Variables set with
+ * {@link #setVariable(String, long)} or assigned by integer statements are integers, and
+ * {@link #formatOutput} prints them exactly, also beyond 2^53.
+ *
+ * Expressions are compiled without the {@link Optimizer}, whose folding would compute
+ * constant parts in double arithmetic. {@link #processExpressionsShared(String[])} runs
+ * the statements one by one, and {@link #evaluateBatch} always uses double arithmetic.
+ */
+public class IntegerCalculator extends Calculator {
+    private static final ExpressionCache CACHE = new ExpressionCache(
+        Integer.getInteger("taboola.expressionCache.capacity", ExpressionCache.DEFAULT_CAPACITY), false);
+
+    private final IntegerVariableStore values;
+
+    public IntegerCalculator() {
+        this(new IntegerVariableStore(CACHE.symbols));
+    }
+
+    private IntegerCalculator(IntegerVariableStore store) {
+        super(CACHE, store);
+        this.values = store;
+    }
+
+    /**
+     * Sets a variable to an exact integer.
+     *
+     * @param name Variable name
+     * @param value New value
+     */
+    public void setVariable(String name, long value) {
+        values.setLong(symbols.intern(name), value);
+    }
+
+    /**
+     * Runs the statements in order; integer arithmetic does not share subexpressions.
+     */
+    @Override
+    public HashMap<String, Var> processExpressionsShared(String[] expressions) {
+        return processExpressions(expressions);
+    }
+
+    /**
+     * Runs all statements in order: integer arithmetic can fail on overflow anywhere, so
+     * no statement is safe to skip.
+     */
+    @Override
+    public HashMap<String, Var> processExpressionsPruned(String[] expressions, Set<String> outputs) {
+        return processExpressions(expressions);
+    }
+
+    /**
+     * Compiles a script into a program that runs it with this calculator's integer
+     * semantics rather than as double arithmetic code (see {@link Program}).
+     */
+    @Override
+    public Program compileScript(String[] expressions) {
+        return Program.compile(Script.compile(this, expressions), symbols, new IntegerCalculator());
+    }
+
+    @Override
+    double interpret(Expression statement) {
+        Node root = statement.root;
+        return integral(root) ? exact(root) : statement.evaluate(this);
+    }
+
+    @Override
+    void interpret(CharSequence statement) {
+        Node root = Parser.parse(statement, symbols);
+        if (integral(root)) {
+            exact(root);
+        } else if (Metrics.enabled) {
+            Metrics.evaluate(root, this);
+        } else {
+            root.eval(this);
+        }
+    }
+
+    private double exact(Node root) {
+        if (!Metrics.enabled) {
+            return eval(root);
+        }
+        Metrics.PhaseEvent phase = Metrics.begin(Metrics.Phase.EVALUATE);
+        try {
+            return eval(root);
+        } catch (RuntimeException e) {
+            Metrics.failed(phase, e);
+            throw e;
+        } finally {
+            Metrics.end(phase);
+        }
+    }
+
+    /**
+     * @return true if every literal of the tree is an integer and every variable it reads
+     *         holds one (or is undefined, which fails the same way in either mode)
+     */
+    private boolean integral(Node node) {
+        if (node instanceof Node.Num) {
+            return ((Node.Num) node).integer;
+        }
+        if (node instanceof Node.Ref) {
+            return holdsInteger(((Node.Ref) node).slot);
+        }
+        if (node instanceof Node.Step) {
+            return holdsInteger(((Node.Step) node).slot);
+        }
+        if (node instanceof Node.Neg) {
+            return integral(((Node.Neg) node).operand);
+        }
+        if (node instanceof Node.Binary) {
+            return integral(((Node.Binary) node).left) && integral(((Node.Binary) node).right);
+        }
+        if (node instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) node;
+            return integral(assign.value) && (assign.op == 0 || holdsInteger(assign.slot));
+        }
+        return false;
+    }
+
+    private boolean holdsInteger(int slot) {
+        return !values.isDefined(slot) || values.isInteger(slot);
+    }
+
+    /**
+     * Evaluates a tree accepted by {@link #integral(Node)}, left to right like {@link Node#eval}.
+     */
+    private long eval(Node node) {
+        if (node instanceof Node.Num) {
+            return ((Node.Num) node).exact;
+        }
+        if (node instanceof Node.Ref) {
+            return longOf(((Node.Ref) node).slot);
+        }
+        if (node instanceof Node.Binary) {
+            Node.Binary binary = (Node.Binary) node;
+            long a = eval(binary.left);
+            long b = eval(binary.right);
+            return calculate(a, b, binary.op);
+        }
+        if (node instanceof Node.Neg) {
+            long value = eval(((Node.Neg) node).operand);
+            if (value == Long.MIN_VALUE) {
+                throw overflow("-(" + value + ")");
+            }
+            return -value;
+        }
+        if (node instanceof Node.Step) {
+            Node.Step step = (Node.Step) node;
+            return step(step.slot, step.increment, step.prefix, longOf(step.slot));
+        }
+        if (node instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) node;
+            long value = eval(assign.value);
+            if (Metrics.enabled) {
+                Metrics.count(Metrics.Counter.ASSIGNMENTS);
+            }
+            if (assign.op != 0) {
+                value = calculate(longOf(assign.slot), value, assign.op);
+            }
+            values.setLong(assign.slot, value);
+            return value;
+        }
+        throw new IllegalArgumentException("Unknown node: " + node.getClass().getSimpleName());
+    }
+
+    private long longOf(int slot) {
+        if (!values.isDefined(slot)) {
+            throw undefined(slot);
+        }
+        return values.getLong(slot);
+    }
+
+    private long step(int slot, boolean increment, boolean prefix, long currentValue) {
+        if (Metrics.enabled) {
+            Metrics.count(Metrics.Counter.INCREMENTS);
+        }
+        if (currentValue == (increment ? Long.MAX_VALUE : Long.MIN_VALUE)) {
+            throw overflow(symbols.name(slot) + (increment ? "++" : "--") + " with " + currentValue);
+        }
+        long newValue = increment ? currentValue + 1 : currentValue - 1;
+        values.setLong(slot, newValue);
+        return prefix ? newValue : currentValue;
+    }
+
+    private long calculate(long a, long b, char operator) {
+        switch (operator) {
+            case '*': {
+                long high = Math.multiplyHigh(a, b);
+                long low = a * b;
+                if (high != (low >> 63)) {
+                    throw overflow(a + " * " + b);
+                }
+                return low;
+            }
+            case '/':
+                if (b == 0) {
+                    throw new IllegalArgumentException("Division by zero is not allowed.");
+                }
+                if (a == Long.MIN_VALUE && b == -1) {
+                    throw overflow(a + " / " + b);
+                }
+                return a / b;
+            case '%':
+                if (b == 0) {
+                    throw new IllegalArgumentException("Division by zero is not allowed.");
+                }
+                return a % b;
+            case '+': {
+                long sum = a + b;
+                if (((a ^ sum) & (b ^ sum)) < 0) {
+                    throw overflow(a + " + " + b);
+                }
+                return sum;
+            }
+            case '-': {
+                long difference = a - b;
+                if (((a ^ b) & (a ^ difference)) < 0) {
+                    throw overflow(a + " - " + b);
+                }
+                return difference;
+            }
+            default:
+                throw new IllegalArgumentException("Invalid operator: " + operator);
+        }
+    }
+
+    private static IllegalArgumentException overflow(String operation) {
+        return new IllegalArgumentException("Integer overflow: " + operation);
+    }
+}
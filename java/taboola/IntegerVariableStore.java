@@ -0,0 +1,154 @@
+package taboola;
+
+import java.util.Arrays;
+
+/**
+ * Variable store of an {@link IntegerCalculator}: each variable holds either an exact
+ * long or a double.
+ *
+ * Both kinds share one primitive long array (the long itself, or the double's bits),
+ * with a flag per slot telling them apart, so integers of any size up to 2^63 are kept
+ * without rounding and nothing is boxed. Like {@link ArrayVariableStore}, the arrays are
+ * chunks allocated when a slot in them is first defined.
+ */
+final class IntegerVariableStore extends VariableStore {
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Chunks by slot >>> CHUNK_BITS; null until a slot in them is defined
+    private long[][] values = new long[1][];
+    private boolean[][] integers = new boolean[1][];
+    // Non-null exactly for the defined slots
+    private Var[][] vars = new Var[1][];
+
+    IntegerVariableStore(Symbols symbols) {
+        super(symbols);
+    }
+
+    @Override
+    boolean isDefined(int slot) {
+        Var[][] vars = this.vars;
+        int chunk = slot >>> CHUNK_BITS;
+        return chunk < vars.length && vars[chunk] != null && vars[chunk][slot & CHUNK_MASK] != null;
+    }
+
+    @Override
+    double get(int slot) {
+        long value = values[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+        return isInteger(slot) ? (double) value : Double.longBitsToDouble(value);
+    }
+
+    @Override
+    void set(int slot, double value) {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.set(slot, value);
+        }
+        UndoLog undo = this.undo;
+        if (undo != null) {
+            undo.record(this, slot);
+        }
+        define(slot);
+        values[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = Double.doubleToRawLongBits(value);
+        integers[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = false;
+    }
+
+    @Override
+    boolean isInteger(int slot) {
+        return integers[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+    }
+
+    @Override
+    long getLong(int slot) {
+        long value = values[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+        return isInteger(slot) ? value : (long) Double.longBitsToDouble(value);
+    }
+
+    @Override
+    void setLong(int slot, long value) {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.setLong(slot, value);
+        }
+        UndoLog undo = this.undo;
+        if (undo != null) {
+            undo.record(this, slot);
+        }
+        define(slot);
+        values[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = value;
+        integers[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = true;
+    }
+
+    private void define(int slot) {
+        if (!isDefined(slot)) {
+            reserve(slot);
+            vars[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = newView(slot);
+        }
+    }
+
+    @Override
+    void remove(int slot) {
+        if (isDefined(slot)) {
+            Journal journal = this.journal;
+            if (journal != null) {
+                journal.remove(slot);
+            }
+            UndoLog undo = this.undo;
+            if (undo != null) {
+                undo.record(this, slot);
+            }
+            Var[] chunk = vars[slot >>> CHUNK_BITS];
+            dropView(chunk[slot & CHUNK_MASK]);
+            chunk[slot & CHUNK_MASK] = null;
+            values[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = 0;
+            integers[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = false;
+        }
+    }
+
+    @Override
+    void clear() {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.clear();
+        }
+        UndoLog undo = this.undo;
+        if (undo != null) {
+            for (int chunk = 0; chunk < vars.length; chunk++) {
+                if (vars[chunk] != null) {
+                    for (int i = 0; i < CHUNK_SIZE; i++) {
+                        if (vars[chunk][i] != null) {
+                            undo.record(this, chunk << CHUNK_BITS | i);
+                        }
+                    }
+                }
+            }
+        }
+        values = new long[1][];
+        integers = new boolean[1][];
+        vars = new Var[1][];
+        synchronized (map) {
+            map.unregisterAll();
+        }
+    }
+
+    /**
+     * Allocates the slot's chunk up front, so parallel execution never replaces arrays
+     * under threads assigning other slots.
+     */
+    @Override
+    void reserve(int slot) {
+        int chunk = slot >>> CHUNK_BITS;
+        if (chunk >= vars.length) {
+            int capacity = Math.max(vars.length * 2, chunk + 1);
+            values = Arrays.copyOf(values, capacity);
+            integers = Arrays.copyOf(integers, capacity);
+            vars = Arrays.copyOf(vars, capacity);
+        }
+        if (vars[chunk] == null) {
+            values[chunk] = new long[CHUNK_SIZE];
+            integers[chunk] = new boolean[CHUNK_SIZE];
+            vars[chunk] = new Var[CHUNK_SIZE];
+        }
+    }
+}
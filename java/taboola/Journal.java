@@ -0,0 +1,532 @@
+package taboola;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead journal of the variable changes of a Calculator, for recovering
+ * its state after a crash with {@link Calculator#replayJournal(Path)}.
+ *
+ * Attached with {@link Calculator#setJournal(Journal)}, the journal receives every change
+ * the calculator's variable store makes: assignments, ++ and --, setVariable, removals.
+ * The store appends each record before it makes the change, so a change the journal
+ * refuses (it is closed, or a write failed) is never made in memory either.
+ * Evaluating threads only encode a record of a dozen bytes into an in-memory buffer; a
+ * background thread writes the buffer to the file and forces it to disk (group commit)
+ * once a number of records has accumulated or the oldest unsynced record reaches a
+ * given age. At most those records are lost in a crash. The buffers are bounded: when
+ * both are full, evaluating threads wait for the writer.
+ *
+ * File layout (big-endian): the magic "TBJL" and a version, then frames of an int
+ * payload length, the payload's CRC-32C and the payload. A payload holds records, each
+ * a type byte followed by its operands:
+ * <pre>
+ *   NAME     int id, int length, UTF-8 name   (precedes the first change of a variable)
+ *   SET      int id, long double bits
+ *   SET_LONG int id, long value               (integer variable of an IntegerCalculator)
+ *   REMOVE   int id
+ *   CLEAR
+ * </pre>
+ * A frame torn by a crash fails its length or checksum; replay stops there and opening
+ * the journal again cuts it off before appending.
+ */
+public final class Journal implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x54424A4C;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int FRAME_HEADER = 8;
+    private static final byte NAME = 1;
+    private static final byte SET = 2;
+    private static final byte SET_LONG = 3;
+    private static final byte REMOVE = 4;
+    private static final byte CLEAR = 5;
+    private static final int MAX_RECORD = 13;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int syncRecords;
+    private final long syncNanos;
+    private final Thread writer;
+    // Held while appending a record; also held by a concurrent store around an update and
+    // its record, so records of one variable are in update order
+    final ReentrantLock lock = new ReentrantLock();
+    // Signals the writer that there is work; signals appenders and flushers that it made progress
+    private final Condition work = lock.newCondition();
+    private final Condition progress = lock.newCondition();
+
+    // Guarded by lock
+    private ByteBuffer active;
+    private ByteBuffer spare;
+    private boolean[] named = new boolean[64];
+    private long appended;
+    private long synced;
+    private long oldestUnsynced;
+    private int flushWaiters;
+    private int spaceWaiters;
+    private boolean closed;
+    private volatile IOException failure;
+    private boolean attached;
+    // Names of the slots of the attached store
+    private Symbols symbols;
+
+    /**
+     * Opens a journal for appending, creating the file if needed. A torn frame at the
+     * end of an existing file (from a crash while writing) is cut off first.
+     *
+     * @param file Journal file
+     * @param syncRecords Force the file to disk once this many records are unsynced
+     * @param syncMillis Force the file to disk once the oldest unsynced record is this old
+     * @param bufferSize Size of each of the two record buffers in bytes
+     */
+    public Journal(Path file, int syncRecords, long syncMillis, int bufferSize) throws IOException {
+        if (syncRecords <= 0 || syncMillis < 0 || bufferSize < 2 * MAX_RECORD) {
+            throw new IllegalArgumentException("Invalid journal settings: syncRecords=" + syncRecords
+                + ", syncMillis=" + syncMillis + ", bufferSize=" + bufferSize);
+        }
+        this.file = file;
+        this.syncRecords = syncRecords;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            long valid = validLength(channel, file);
+            if (valid == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                channel.write(header, 0);
+                valid = HEADER;
+            }
+            channel.truncate(valid);
+            channel.position(valid);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.active = ByteBuffer.allocate(bufferSize);
+        this.spare = ByteBuffer.allocate(bufferSize);
+        this.writer = new Thread(this::writeLoop, "taboola-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens a journal with the default buffer size.
+     *
+     * @see #Journal(Path, int, long, int)
+     */
+    public Journal(Path file, int syncRecords, long syncMillis) throws IOException {
+        this(file, syncRecords, syncMillis, DEFAULT_BUFFER_SIZE);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Marks the journal as used by a calculator and records the calculator's current
+     * variables, so that replaying the journal alone restores them.
+     */
+    void attach(VariableStore store) {
+        lock.lock();
+        try {
+            if (attached) {
+                throw new IllegalStateException("Journal is already attached to a calculator: " + file);
+            }
+            attached = true;
+            symbols = store.symbols;
+            clear();
+            for (Var var : store.map.sortedVars()) {
+                if (var.isInteger()) {
+                    setLong(var.slot, var.getLongValue());
+                } else {
+                    set(var.slot, var.value());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void detach() {
+        lock.lock();
+        try {
+            attached = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void set(int slot, double value) {
+        lock.lock();
+        try {
+            reserve(slot);
+            appendSet(slot, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the record of an assignment that {@link #reserve(int)} made room for; the
+     * caller has held the lock since that call.
+     */
+    void appendSet(int slot, double value) {
+        active.put(SET).putInt(slot).putLong(Double.doubleToRawLongBits(value));
+        appended();
+    }
+
+    void setLong(int slot, long value) {
+        lock.lock();
+        try {
+            reserve(slot);
+            active.put(SET_LONG).putInt(slot).putLong(value);
+            appended();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(int slot) {
+        lock.lock();
+        try {
+            reserve(slot);
+            active.put(REMOVE).putInt(slot);
+            appended();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            reserve(-1);
+            active.put(CLEAR);
+            appended();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room in the active buffer for one record about the slot, preceded by the
+     * slot's name the first time the slot appears in this journal. Called with the lock
+     * held; fails if the journal is closed or a write failed, so callers reserve before
+     * changing the store and a change the journal refuses is never made.
+     */
+    void reserve(int slot) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed: " + file);
+        }
+        byte[] name = null;
+        int needed = MAX_RECORD;
+        if (slot >= 0 && (slot >= named.length || !named[slot])) {
+            name = symbols.name(slot).getBytes(StandardCharsets.UTF_8);
+            needed += 9 + name.length;
+        }
+        while (active.remaining() < needed && failure == null) {
+            if (needed > active.capacity() && active.position() == 0) {
+                active = ByteBuffer.allocate(needed);
+                break;
+            }
+            // Full: hand the buffer to the writer and wait for the other one
+            spaceWaiters++;
+            work.signal();
+            progress.awaitUninterruptibly();
+            spaceWaiters--;
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed: " + file, failure);
+        }
+        if (name != null) {
+            if (slot >= named.length) {
+                named = Arrays.copyOf(named, Math.max(slot + 1, named.length * 2));
+            }
+            named[slot] = true;
+            active.put(NAME).putInt(slot).putInt(name.length).put(name);
+        }
+    }
+
+    private void appended() {
+        if (appended++ == synced) {
+            oldestUnsynced = System.nanoTime();
+            // The writer may be waiting without a deadline
+            work.signal();
+        } else if (appended - synced == syncRecords || active.position() >= active.capacity() / 2) {
+            work.signal();
+        }
+    }
+
+    /**
+     * Waits until every record appended so far is written and forced to disk.
+     *
+     * @throws IOException If writing the journal failed
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = appended;
+            flushWaiters++;
+            work.signal();
+            try {
+                while (synced < target && failure == null) {
+                    progress.awaitUninterruptibly();
+                }
+            } finally {
+                flushWaiters--;
+            }
+            if (failure != null) {
+                throw new IOException("Journal write failed: " + file, failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces all appended records, then closes the file. Changes made by an
+     * attached calculator afterwards fail with an IllegalStateException.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw new IOException("Journal write failed: " + file, failure);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch = null;
+            long end;
+            boolean sync;
+            lock.lock();
+            try {
+                while (true) {
+                    long unsynced = appended - synced;
+                    long age = System.nanoTime() - oldestUnsynced;
+                    sync = unsynced > 0
+                        && (unsynced >= syncRecords || age >= syncNanos || flushWaiters > 0 || closed);
+                    if (sync || active.position() >= active.capacity() / 2
+                            || (spaceWaiters > 0 && active.position() > 0)) {
+                        break;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        if (unsynced > 0) {
+                            work.awaitNanos(syncNanos - age);
+                        } else {
+                            work.await();
+                        }
+                    } catch (InterruptedException e) {
+                        // Only close() stops the writer
+                    }
+                }
+                if (active.position() > 0) {
+                    batch = active;
+                    active = spare;
+                    spare = null;
+                    progress.signalAll();
+                }
+                end = appended;
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            try {
+                if (batch != null) {
+                    writeFrame(batch);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                    progress.signalAll();
+                    return;
+                }
+                if (batch != null) {
+                    batch.clear();
+                    spare = batch;
+                }
+                if (sync) {
+                    synced = end;
+                    if (appended > synced) {
+                        oldestUnsynced = System.nanoTime();
+                    }
+                }
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeFrame(ByteBuffer batch) throws IOException {
+        batch.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(batch.array(), 0, batch.limit());
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER).putInt(batch.limit()).putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer[] frame = {header, batch};
+        while (header.hasRemaining() || batch.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Applies every complete frame of a journal to a store, in order.
+     *
+     * @param store Store to apply the changes to; must have no journal attached
+     * @param file Journal file
+     * @return Number of changes applied
+     * @throws IOException If the file cannot be read or is not a journal
+     */
+    static long replay(VariableStore store, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long valid = validLength(channel, file);
+            long records = 0;
+            int[] slots = new int[64];
+            Arrays.fill(slots, -1);
+            long position = HEADER;
+            ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER);
+            while (position < valid) {
+                frameHeader.clear();
+                readFully(channel, frameHeader, position);
+                int length = frameHeader.getInt(0);
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, position + FRAME_HEADER);
+                payload.flip();
+                while (payload.hasRemaining()) {
+                    byte type = payload.get();
+                    if (type == CLEAR) {
+                        store.clear();
+                    } else if (type == NAME) {
+                        int id = payload.getInt();
+                        byte[] name = new byte[payload.getInt()];
+                        payload.get(name);
+                        if (id >= slots.length) {
+                            int oldLength = slots.length;
+                            slots = Arrays.copyOf(slots, Math.max(id + 1, oldLength * 2));
+                            Arrays.fill(slots, oldLength, slots.length, -1);
+                        }
+                        slots[id] = store.symbols.intern(new String(name, StandardCharsets.UTF_8));
+                        continue;
+                    } else {
+                        int id = payload.getInt();
+                        int slot = id < slots.length ? slots[id] : -1;
+                        if (slot < 0) {
+                            throw new IOException("Invalid journal " + file + ": variable " + id + " has no name");
+                        }
+                        if (type == SET) {
+                            store.set(slot, Double.longBitsToDouble(payload.getLong()));
+                        } else if (type == SET_LONG) {
+                            store.setLong(slot, payload.getLong());
+                        } else if (type == REMOVE) {
+                            store.remove(slot);
+                        } else {
+                            throw new IOException("Invalid journal " + file + ": record type " + type);
+                        }
+                    }
+                    records++;
+                }
+                position += FRAME_HEADER + length;
+            }
+            return records;
+        }
+    }
+
+    /**
+     * @return The length of the header plus all complete, intact frames; 0 for an empty file
+     * @throws IOException If the file is not a journal
+     */
+    private static long validLength(FileChannel channel, Path file) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        if (size < HEADER || readFully(channel, header, 0) < HEADER || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a journal: " + file);
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported journal version " + header.getInt(4) + ": " + file);
+        }
+        long position = HEADER;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER);
+        CRC32C crc = new CRC32C();
+        while (position + FRAME_HEADER <= size) {
+            frameHeader.clear();
+            readFully(channel, frameHeader, position);
+            int length = frameHeader.getInt(0);
+            if (length <= 0 || position + FRAME_HEADER + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + FRAME_HEADER);
+            payload.flip();
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != frameHeader.getInt(4)) {
+                break;
+            }
+            position += FRAME_HEADER + length;
+        }
+        return position;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,273 @@
+package taboola;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Calculator that loads a script without running it and evaluates, on demand, only the
+ * statements needed for the variables asked for.
+ *
+ * {@link #load(String[])} compiles the script and records which statement produced every
+ * value each statement reads (see {@link Dependencies}). {@link #get(String)} and
+ * {@link #formatOutput(Set)} then run the last statement writing each requested variable,
+ * after first running, in script order, the statements whose values it reads, and so
+ * on. The hidden reads of ++, -- and compound assignments are part of that graph, so a
+ * chain of "x++" statements runs in order from its start, and every value is exactly
+ * what eager execution of the whole script computes. Results are memoized per statement
+ * until {@link #setVariable(String, double)} changes a value they depend on.
+ *
+ * Errors surface from the statements a request needs, so a script with a failing
+ * statement that no request depends on never reports it. The variables map shows the
+ * starting values the script does not overwrite and the final values evaluated so far;
+ * variables the script assigns but nobody asked for yet are missing from it. As with
+ * {@link ReactiveCalculator}, changing variables other than through setVariable after
+ * loading is not tracked.
+ */
+public class LazyCalculator extends Calculator {
+    private Dependencies dependencies;
+    // Per statement: whether results holds its current values
+    private boolean[] computed;
+    // Per statement: value of each slot of its write set after it ran
+    private double[][] results;
+    // Value of each slot before the script ran
+    private double[] inputs;
+    private boolean[] hasInput;
+
+    // Evaluation state, reused between calls
+    private int[] pending = new int[16];
+    private int[] touched = new int[16];
+    private int touchedCount;
+    private boolean[] isTouched;
+
+    public LazyCalculator() {
+        super();
+    }
+
+    /**
+     * Creates a calculator that looks up compiled expressions in the given cache.
+     *
+     * @param cache Cache to use (may be shared with other calculators), or null to parse on every call
+     */
+    public LazyCalculator(ExpressionCache cache) {
+        super(cache);
+    }
+
+    /**
+     * Compiles a script for on-demand evaluation, with the current variables as its
+     * starting values, without running any statement. Replaces any previously loaded script.
+     *
+     * @param expressions Array of assignment expressions
+     * @return HashMap of variable names to their Var objects
+     * @throws IllegalArgumentException If a statement does not compile; no script is loaded then
+     */
+    public HashMap<String, Var> load(String[] expressions) {
+        dependencies = null;
+        Script script = Script.compile(this, expressions);
+        Dependencies loaded = new Dependencies(script);
+        int limit = script.slotLimit();
+        inputs = new double[limit];
+        hasInput = new boolean[limit];
+        for (int slot = 0; slot < limit; slot++) {
+            if (store.isDefined(slot)) {
+                inputs[slot] = store.get(slot);
+                hasInput[slot] = true;
+                if (loaded.lastWriter[slot] >= 0) {
+                    store.remove(slot);
+                }
+            }
+        }
+        computed = new boolean[script.size()];
+        results = new double[script.size()][];
+        isTouched = new boolean[limit];
+        dependencies = loaded;
+        return variables;
+    }
+
+    /**
+     * Returns a variable's value after the loaded script, evaluating only the statements
+     * it depends on that have not been evaluated yet.
+     *
+     * @param name Variable name
+     * @return The value eager execution of the script would leave in the variable
+     * @throws IllegalArgumentException If the variable is not defined, or a needed statement fails
+     */
+    public double get(String name) {
+        int slot = symbols.find(name);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Variable not defined: " + name);
+        }
+        if (dependencies == null || slot >= inputs.length || dependencies.lastWriter[slot] < 0) {
+            return valueOf(slot);
+        }
+        int writer = dependencies.lastWriter[slot];
+        demand(writer);
+        return results[writer][dependencies.lastWriterPosition[slot]];
+    }
+
+    /**
+     * Formats the final values of the given variables like {@link #formatOutput(HashMap)},
+     * evaluating only what they need.
+     *
+     * @param names Variables to include
+     * @return The variables, sorted by name
+     * @throws IllegalArgumentException If a variable is not defined, or a needed statement fails
+     */
+    public String formatOutput(Set<String> names) {
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        double[] values = new double[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            values[i] = get(sorted[i]);
+        }
+        return OutputFormatter.format(sorted, values);
+    }
+
+    /**
+     * Sets a variable. If a script is loaded, memoized results that depend on the
+     * variable's value before the script are discarded, to be evaluated again on demand;
+     * a variable the script assigns keeps its computed value.
+     */
+    @Override
+    public void setVariable(String name, double value) {
+        int slot = symbols.intern(name);
+        if (dependencies == null || slot >= inputs.length) {
+            super.setVariable(name, value);
+            return;
+        }
+        inputs[slot] = value;
+        hasInput[slot] = true;
+        if (dependencies.lastWriter[slot] < 0) {
+            store.set(slot, value);
+        }
+        invalidate(dependencies.inputReaders[slot]);
+    }
+
+    /**
+     * Forgets the results of the given statements and of everything downstream of them.
+     */
+    private void invalidate(int[] statements) {
+        int count = 0;
+        for (int statement : statements) {
+            count = push(count, statement);
+        }
+        while (count > 0) {
+            int statement = pending[--count];
+            if (!computed[statement]) {
+                continue;
+            }
+            computed[statement] = false;
+            results[statement] = null;
+            for (int slot : dependencies.script.writes[statement]) {
+                if (dependencies.lastWriter[slot] == statement) {
+                    store.remove(slot);
+                }
+            }
+            for (int dependent : dependencies.dependents[statement]) {
+                count = push(count, dependent);
+            }
+        }
+    }
+
+    /**
+     * Evaluates a statement and, first, every statement it reads from that has no
+     * memoized result. Iterative, since chains can be as long as the script.
+     */
+    private void demand(int target) {
+        if (computed[target]) {
+            return;
+        }
+        int count = push(0, target);
+        try {
+            while (count > 0) {
+                int statement = pending[count - 1];
+                if (computed[statement]) {
+                    count--;
+                    continue;
+                }
+                int missing = -1;
+                for (int def : dependencies.readDefs[statement]) {
+                    if (def >= 0 && !computed[def]) {
+                        missing = def;
+                        break;
+                    }
+                }
+                if (missing >= 0) {
+                    // Definitions are earlier statements, so the stack never holds one twice
+                    count = push(count, missing);
+                    continue;
+                }
+                runStatement(statement);
+                count--;
+            }
+        } finally {
+            restoreTouched();
+        }
+    }
+
+    /**
+     * Runs a statement with the values of its reaching definitions restored.
+     */
+    private void runStatement(int statement) {
+        Script script = dependencies.script;
+        int[] reads = script.reads[statement];
+        for (int k = 0; k < reads.length; k++) {
+            int def = dependencies.readDefs[statement][k];
+            if (def < 0 && !hasInput[reads[k]]) {
+                throw undefined(reads[k]);
+            }
+            double value = def < 0 ? inputs[reads[k]] : results[def][dependencies.readDefPositions[statement][k]];
+            store.set(reads[k], value);
+            touch(reads[k]);
+        }
+        int[] writes = script.writes[statement];
+        for (int slot : writes) {
+            touch(slot);
+        }
+        script.statements[statement].eval(this);
+        double[] values = new double[writes.length];
+        for (int k = 0; k < writes.length; k++) {
+            values[k] = store.get(writes[k]);
+        }
+        results[statement] = values;
+        computed[statement] = true;
+    }
+
+    private int push(int count, int statement) {
+        if (count == pending.length) {
+            pending = Arrays.copyOf(pending, count * 2);
+        }
+        pending[count] = statement;
+        return count + 1;
+    }
+
+    private void touch(int slot) {
+        if (!isTouched[slot]) {
+            isTouched[slot] = true;
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = slot;
+        }
+    }
+
+    /**
+     * Sets every slot used during evaluation to its final value if that is known, to its
+     * starting value if the script never overwrites it, and removes it otherwise.
+     */
+    private void restoreTouched() {
+        for (int i = 0; i < touchedCount; i++) {
+            int slot = touched[i];
+            isTouched[slot] = false;
+            int writer = dependencies.lastWriter[slot];
+            if (writer >= 0 && computed[writer]) {
+                store.set(slot, results[writer][dependencies.lastWriterPosition[slot]]);
+            } else if (writer < 0 && hasInput[slot]) {
+                store.set(slot, inputs[slot]);
+            } else {
+                store.remove(slot);
+            }
+        }
+        touchedCount = 0;
+    }
+}
@@ -0,0 +1,233 @@
+package taboola;
+
+import java.util.Arrays;
+
+/**
+ * Single-pass scanner that turns an expression into typed tokens.
+ *
+ * Tokens are kept in reusable primitive arrays (kind, start, end, numeric value)
+ * so scanning allocates nothing per token and never creates substrings. Numeric
+ * literals are converted in place by {@link NumberParser}; literals written with
+ * digits only also keep their exact long value when it fits.
+ * Whitespace between tokens is optional. Instances are not thread-safe but can be
+ * reused for any number of inputs.
+ */
+final class Lexer {
+    static final byte NUMBER = 1;
+    static final byte IDENTIFIER = 2;
+    static final byte OPERATOR = 3;
+    static final byte LEFT_PAREN = 4;
+    static final byte RIGHT_PAREN = 5;
+    static final byte ASSIGN = 6;
+    static final byte PRE_STEP = 7;
+    static final byte POST_STEP = 8;
+    static final byte END = 9;
+
+    private CharSequence source;
+    private int count;
+    private byte[] kinds = new byte[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private double[] values = new double[16];
+    // Exact value of integer literals that fit in a long; valid where integral is set
+    private long[] integers = new long[16];
+    private boolean[] integral = new boolean[16];
+
+    /**
+     * Scans the whole input. The tokens can then be read by index until the
+     * next call; the last token is always {@link #END}.
+     *
+     * @param source The expression text
+     */
+    void tokenize(CharSequence source) {
+        this.source = source;
+        this.count = 0;
+        int length = source.length();
+        int pos = 0;
+        while (true) {
+            while (pos < length && Character.isWhitespace(source.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= length) {
+                add(END, pos, pos, 0);
+                return;
+            }
+            char c = source.charAt(pos);
+            char next = pos + 1 < length ? source.charAt(pos + 1) : 0;
+            if (isDigit(c) || (c == '.' && isDigit(next))) {
+                pos = number(pos);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = pos++;
+                while (pos < length && Character.isJavaIdentifierPart(source.charAt(pos))) {
+                    pos++;
+                }
+                add(IDENTIFIER, start, pos, 0);
+            } else if (c == '(') {
+                add(LEFT_PAREN, pos, ++pos, 0);
+            } else if (c == ')') {
+                add(RIGHT_PAREN, pos, ++pos, 0);
+            } else if (c == '=') {
+                add(ASSIGN, pos, ++pos, 0);
+            } else if (c == '+' || c == '-' || c == '*' || c == '/' || c == '%') {
+                if (next == '=') {
+                    add(ASSIGN, pos, pos += 2, 0);
+                } else if ((c == '+' || c == '-') && next == c) {
+                    boolean post = count > 0 && kinds[count - 1] == IDENTIFIER;
+                    add(post ? POST_STEP : PRE_STEP, pos, pos += 2, 0);
+                } else {
+                    add(OPERATOR, pos, ++pos, 0);
+                }
+            } else {
+                throw unexpected(pos);
+            }
+        }
+    }
+
+    /**
+     * Drops the reference to the last input so a pooled lexer does not retain it.
+     */
+    void clear() {
+        source = null;
+        count = 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    byte kind(int index) {
+        return kinds[index];
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int end(int index) {
+        return ends[index];
+    }
+
+    double value(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return true if a NUMBER token is written with digits only and fits in a long
+     */
+    boolean isInteger(int index) {
+        return integral[index];
+    }
+
+    /**
+     * @return The exact value of a NUMBER token for which {@link #isInteger} is true
+     */
+    long integer(int index) {
+        return integers[index];
+    }
+
+    /**
+     * @return The operator character of an OPERATOR, PRE_STEP or POST_STEP token,
+     *         or of a compound ASSIGN token; 0 for a plain '=' assignment
+     */
+    char op(int index) {
+        if (kinds[index] == ASSIGN && ends[index] - starts[index] == 1) {
+            return 0;
+        }
+        return source.charAt(starts[index]);
+    }
+
+    /**
+     * @return The text of a token, e.g. an identifier's name
+     */
+    String text(int index) {
+        return source.subSequence(starts[index], ends[index]).toString();
+    }
+
+    /**
+     * @return The input being scanned, as a String for error messages
+     */
+    String sourceText() {
+        return source.toString();
+    }
+
+    private int number(int pos) {
+        int length = source.length();
+        int start = pos;
+        // Accumulated exactly while it fits; -1 once it overflows
+        long integer = 0;
+        while (pos < length && isDigit(source.charAt(pos))) {
+            int digit = source.charAt(pos) - '0';
+            if (integer >= 0) {
+                integer = integer <= (Long.MAX_VALUE - digit) / 10 ? integer * 10 + digit : -1;
+            }
+            pos++;
+        }
+        int integerEnd = pos;
+        if (pos < length && source.charAt(pos) == '.') {
+            pos++;
+            while (pos < length && isDigit(source.charAt(pos))) {
+                pos++;
+            }
+        }
+        if (pos < length && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+            pos++;
+            if (pos < length && (source.charAt(pos) == '+' || source.charAt(pos) == '-')) {
+                pos++;
+            }
+            int exponentStart = pos;
+            while (pos < length && isDigit(source.charAt(pos))) {
+                pos++;
+            }
+            if (pos == exponentStart) {
+                throw invalidNumber(start, pos);
+            }
+        }
+        if (pos < length && Character.isJavaIdentifierPart(source.charAt(pos))) {
+            throw unexpected(pos);
+        }
+        double value;
+        try {
+            value = NumberParser.parse(source, start, pos);
+        } catch (NumberFormatException e) {
+            throw invalidNumber(start, pos);
+        }
+        add(NUMBER, start, pos, value);
+        if (integerEnd == pos && integer >= 0) {
+            integral[count - 1] = true;
+            integers[count - 1] = integer;
+        }
+        return pos;
+    }
+
+    private void add(byte kind, int start, int end, double value) {
+        if (count == kinds.length) {
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+            integers = Arrays.copyOf(integers, capacity);
+            integral = Arrays.copyOf(integral, capacity);
+        }
+        kinds[count] = kind;
+        starts[count] = start;
+        ends[count] = end;
+        values[count] = value;
+        integral[count] = false;
+        count++;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private IllegalArgumentException invalidNumber(int start, int end) {
+        return new IllegalArgumentException("Invalid number '" + source.subSequence(start, end)
+            + "' in expression: " + source);
+    }
+
+    private IllegalArgumentException unexpected(int pos) {
+        return new IllegalArgumentException("Unexpected character '" + source.charAt(pos)
+            + "' at position " + pos + " in expression: " + source);
+    }
+}
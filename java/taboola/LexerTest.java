@@ -0,0 +1,219 @@
+package taboola;
+
+/**
+ * Unit tests for the Lexer class.
+ */
+public class LexerTest {
+    private Lexer lexer;
+    private int passedTests = 0;
+    private int failedTests = 0;
+
+    public void setUp() {
+        lexer = new Lexer();
+    }
+
+    // Helper methods for assertions
+    private void assertEquals(double expected, double actual, String testName) {
+        if (Math.abs(expected - actual) < 0.0001) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName);
+        } else {
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName + " - Expected: " + expected + ", Got: " + actual);
+        }
+    }
+
+    private void assertEquals(String expected, String actual, String testName) {
+        if (expected.equals(actual)) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName);
+        } else {
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName + " - Expected: '" + expected + "', Got: '" + actual + "'");
+        }
+    }
+
+    private void assertThrows(Runnable code, String testName) {
+        try {
+            code.run();
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName + " - Expected exception but none was thrown");
+        } catch (Exception e) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName + " - Exception thrown as expected: " + e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Renders the scanned tokens as "KIND:text" pairs for easy comparison.
+     */
+    private String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lexer.count(); i++) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            switch (lexer.kind(i)) {
+                case Lexer.NUMBER: sb.append("NUM:"); break;
+                case Lexer.IDENTIFIER: sb.append("ID:"); break;
+                case Lexer.OPERATOR: sb.append("OP:"); break;
+                case Lexer.LEFT_PAREN: sb.append("LP:"); break;
+                case Lexer.RIGHT_PAREN: sb.append("RP:"); break;
+                case Lexer.ASSIGN: sb.append("AS:"); break;
+                case Lexer.PRE_STEP: sb.append("PRE:"); break;
+                case Lexer.POST_STEP: sb.append("POST:"); break;
+                case Lexer.END: sb.append("END"); continue;
+                default: sb.append("?:");
+            }
+            sb.append(lexer.text(i));
+        }
+        return sb.toString();
+    }
+
+    // ==================== Tests for Token Kinds ====================
+
+    public void testTokenize_SpaceSeparated() {
+        setUp();
+        lexer.tokenize("a = x + 8 * ( c - 3 )");
+        assertEquals("ID:a AS:= ID:x OP:+ NUM:8 OP:* LP:( ID:c OP:- NUM:3 RP:) END", describe(),
+                     "tokenize: Space-separated assignment");
+    }
+
+    public void testTokenize_NoWhitespace() {
+        setUp();
+        lexer.tokenize("a=x+8*(c-3)");
+        assertEquals("ID:a AS:= ID:x OP:+ NUM:8 OP:* LP:( ID:c OP:- NUM:3 RP:) END", describe(),
+                     "tokenize: Same tokens without whitespace");
+    }
+
+    public void testTokenize_MixedWhitespace() {
+        setUp();
+        lexer.tokenize("\t a \n+=  b ");
+        assertEquals("ID:a AS:+= ID:b END", describe(), "tokenize: Tabs, newlines and repeated spaces");
+    }
+
+    public void testTokenize_CompoundAssignments() {
+        setUp();
+        lexer.tokenize("a -= b *= c /= d %= e");
+        assertEquals("ID:a AS:-= ID:b AS:*= ID:c AS:/= ID:d AS:%= ID:e END", describe(),
+                     "tokenize: All compound assignment operators");
+        assertEquals("-", String.valueOf(lexer.op(1)), "tokenize: Compound operator character");
+    }
+
+    public void testTokenize_PreAndPostSteps() {
+        setUp();
+        lexer.tokenize("x++ + ++b - --c - d--");
+        assertEquals("ID:x POST:++ OP:+ PRE:++ ID:b OP:- PRE:-- ID:c OP:- ID:d POST:-- END", describe(),
+                     "tokenize: Pre and post increment/decrement");
+    }
+
+    public void testTokenize_GreedySteps() {
+        setUp();
+        lexer.tokenize("x+++y");
+        assertEquals("ID:x POST:++ OP:+ ID:y END", describe(), "tokenize: Greedy ++ followed by +");
+    }
+
+    // ==================== Tests for Numbers ====================
+
+    public void testNumber_Integer() {
+        setUp();
+        lexer.tokenize("12345");
+        assertEquals(12345.0, lexer.value(0), "number: Integer literal");
+    }
+
+    public void testNumber_Decimal() {
+        setUp();
+        lexer.tokenize("3.25 .5");
+        assertEquals(3.25, lexer.value(0), "number: Decimal literal");
+        assertEquals(0.5, lexer.value(1), "number: Leading dot literal");
+    }
+
+    public void testNumber_Exponent() {
+        setUp();
+        lexer.tokenize("1.5e3 2E-2");
+        assertEquals(1500.0, lexer.value(0), "number: Exponent literal");
+        assertEquals(0.02, lexer.value(1), "number: Negative exponent literal");
+    }
+
+    public void testNumber_LongLiteral() {
+        setUp();
+        lexer.tokenize("123456789012345678");
+        assertEquals(123456789012345678.0, lexer.value(0), "number: Literal beyond the exact fast path");
+    }
+
+    public void testNumber_ExactInteger() {
+        setUp();
+        lexer.tokenize("9223372036854775807 + 9223372036854775808 + 2.0 + 1e3");
+        assertEquals("9223372036854775807", String.valueOf(lexer.integer(0)), "number: Largest long kept exactly");
+        assertEquals("false", String.valueOf(lexer.isInteger(2)), "number: Integer beyond a long is not exact");
+        assertEquals("false", String.valueOf(lexer.isInteger(4)), "number: Fraction is not an integer");
+        assertEquals("false", String.valueOf(lexer.isInteger(6)), "number: Exponent is not an integer");
+    }
+
+    public void testNumber_Invalid() {
+        setUp();
+        assertThrows(() -> lexer.tokenize("1e+"), "number: Exponent without digits throws exception");
+        assertThrows(() -> lexer.tokenize("2x"), "number: Identifier directly after number throws exception");
+    }
+
+    // ==================== Tests for Invalid Input ====================
+
+    public void testTokenize_UnexpectedCharacter() {
+        setUp();
+        assertThrows(() -> lexer.tokenize("a # b"), "tokenize: Unknown character throws exception");
+    }
+
+    public void testTokenize_Reuse() {
+        setUp();
+        lexer.tokenize("a + b + c + d + e + f + g + h + i + j");
+        lexer.tokenize("x");
+        assertEquals("ID:x END", describe(), "tokenize: Reused lexer only reports the latest input");
+    }
+
+    // ==================== Run All Tests ====================
+
+    public void runAllTests() {
+        System.out.println("\n========================================");
+        System.out.println("  LEXER UNIT TESTS");
+        System.out.println("========================================\n");
+
+        System.out.println("--- Token Kinds ---");
+        testTokenize_SpaceSeparated();
+        testTokenize_NoWhitespace();
+        testTokenize_MixedWhitespace();
+        testTokenize_CompoundAssignments();
+        testTokenize_PreAndPostSteps();
+        testTokenize_GreedySteps();
+
+        System.out.println("\n--- Numbers ---");
+        testNumber_Integer();
+        testNumber_Decimal();
+        testNumber_Exponent();
+        testNumber_LongLiteral();
+        testNumber_ExactInteger();
+        testNumber_Invalid();
+
+        System.out.println("\n--- Invalid Input Handling ---");
+        testTokenize_UnexpectedCharacter();
+        testTokenize_Reuse();
+
+        // Summary
+        System.out.println("\n========================================");
+        System.out.println("  TEST SUMMARY");
+        System.out.println("========================================");
+        System.out.println("Total tests: " + (passedTests + failedTests));
+        System.out.println("Passed: " + passedTests);
+        System.out.println("Failed: " + failedTests);
+        if (failedTests == 0) {
+            System.out.println("\n🎉 ALL TESTS PASSED! 🎉");
+        } else {
+            System.out.println("\n⚠️  SOME TESTS FAILED ⚠️");
+        }
+        System.out.println("========================================\n");
+    }
+
+    public static void main(String[] args) {
+        LexerTest test = new LexerTest();
+        test.runAllTests();
+    }
+}
@@ -0,0 +1,308 @@
+package taboola;
+
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Optional engine instrumentation: time spent per phase, and counters for variables
+ * created, ++/-- applied, assignments, promotions to bytecode and exceptions.
+ *
+ * Disabled by default (enable with -Dtaboola.metrics=true or {@link #setEnabled(boolean)}).
+ * While disabled every instrumented site costs one read of a volatile flag, so the
+ * instrumentation can stay in production code and be switched on during incidents.
+ * While enabled, each phase costs two System.nanoTime() calls, a thread-local update and
+ * a few uncontended LongAdder updates, and is also emitted as a "taboola.Phase" JFR
+ * event when a flight recording enables it; the counters are emitted periodically as
+ * "taboola.Counters".
+ *
+ * Phases may nest: {@link Phase#OPEN_BRACKETS} includes the calculateCleanExpression
+ * calls it makes, and statements evaluated through the engine are timed as
+ * {@link Phase#EVALUATE} excluding their parsing. An exception is counted, and emitted
+ * as a "taboola.Failure" event, once, by the outermost phase it ends.
+ */
+public final class Metrics {
+
+    public enum Phase {
+        // Scanning source text into tokens
+        TOKENIZE,
+        // Building the tree from tokens
+        PARSE,
+        // Constant folding and simplification
+        OPTIMIZE,
+        // Evaluating a compiled statement, including its assignments
+        EVALUATE,
+        // Legacy string evaluation: Calculator.openBrackets
+        OPEN_BRACKETS,
+        // Legacy string evaluation: Calculator.calculateCleanExpression
+        CLEAN_EXPRESSION
+    }
+
+    public enum Counter {
+        VARIABLES_CREATED,
+        INCREMENTS,
+        ASSIGNMENTS,
+        PROMOTIONS,
+        EXCEPTIONS
+    }
+
+    static volatile boolean enabled = Boolean.getBoolean("taboola.metrics");
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final LongAdder[] PHASE_COUNTS = adders(PHASES.length);
+    private static final LongAdder[] PHASE_NANOS = adders(PHASES.length);
+    private static final LongAdder[] COUNTER_VALUES = adders(COUNTERS.length);
+    // Innermost open phase of each thread
+    private static final ThreadLocal<PhaseEvent> CURRENT = new ThreadLocal<>();
+    private static boolean periodicEventRegistered;
+
+    static {
+        if (enabled) {
+            registerPeriodicEvent();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Turns instrumentation on or off for the whole process. Totals are kept while disabled.
+     *
+     * @param on true to record
+     */
+    public static void setEnabled(boolean on) {
+        if (on) {
+            registerPeriodicEvent();
+        }
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return Totals recorded since startup or the last {@link #reset()}
+     */
+    public static Snapshot snapshot() {
+        long[] counts = new long[PHASES.length];
+        long[] nanos = new long[PHASES.length];
+        long[] counters = new long[COUNTERS.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            counts[i] = PHASE_COUNTS[i].sum();
+            nanos[i] = PHASE_NANOS[i].sum();
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            counters[i] = COUNTER_VALUES[i].sum();
+        }
+        return new Snapshot(counts, nanos, counters);
+    }
+
+    /**
+     * Sets all totals back to zero. Updates made concurrently may or may not be kept.
+     */
+    public static void reset() {
+        for (int i = 0; i < PHASES.length; i++) {
+            PHASE_COUNTS[i].reset();
+            PHASE_NANOS[i].reset();
+        }
+        for (LongAdder counter : COUNTER_VALUES) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * Starts a phase. Every phase must be ended by {@link #end(PhaseEvent)} in a finally
+     * block, so the thread's open phases stay balanced.
+     *
+     * @param phase The phase
+     * @return The open phase
+     */
+    static PhaseEvent begin(Phase phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.kind = phase;
+        event.outer = CURRENT.get();
+        CURRENT.set(event);
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Marks an open phase as ending with an exception.
+     */
+    static void failed(PhaseEvent event, RuntimeException exception) {
+        event.failure = exception;
+    }
+
+    /**
+     * Records a completed phase, and its exception if no enclosing phase will.
+     */
+    static void end(PhaseEvent event) {
+        long elapsed = System.nanoTime() - event.start;
+        event.end();
+        CURRENT.set(event.outer);
+        Phase phase = event.kind;
+        PHASE_COUNTS[phase.ordinal()].increment();
+        PHASE_NANOS[phase.ordinal()].add(elapsed);
+        if (event.shouldCommit()) {
+            event.phase = phase.name();
+            event.commit();
+        }
+        if (event.failure != null && event.outer == null) {
+            count(Counter.EXCEPTIONS);
+            FailureEvent failure = new FailureEvent();
+            if (failure.isEnabled()) {
+                failure.phase = phase.name();
+                failure.message = event.failure.getMessage();
+                failure.commit();
+            }
+        }
+    }
+
+    static void count(Counter counter) {
+        COUNTER_VALUES[counter.ordinal()].increment();
+    }
+
+    /**
+     * Evaluates a tree as one timed {@link Phase#EVALUATE}.
+     */
+    static double evaluate(Node node, Calculator calc) {
+        PhaseEvent phase = begin(Phase.EVALUATE);
+        try {
+            return node.eval(calc);
+        } catch (RuntimeException e) {
+            failed(phase, e);
+            throw e;
+        } finally {
+            end(phase);
+        }
+    }
+
+    private static synchronized void registerPeriodicEvent() {
+        if (!periodicEventRegistered) {
+            periodicEventRegistered = true;
+            FlightRecorder.addPeriodicEvent(CountersEvent.class, () -> {
+                CountersEvent event = new CountersEvent();
+                event.variablesCreated = COUNTER_VALUES[Counter.VARIABLES_CREATED.ordinal()].sum();
+                event.increments = COUNTER_VALUES[Counter.INCREMENTS.ordinal()].sum();
+                event.assignments = COUNTER_VALUES[Counter.ASSIGNMENTS.ordinal()].sum();
+                event.promotions = COUNTER_VALUES[Counter.PROMOTIONS.ordinal()].sum();
+                event.exceptions = COUNTER_VALUES[Counter.EXCEPTIONS.ordinal()].sum();
+                event.commit();
+            });
+        }
+    }
+
+    /**
+     * Immutable copy of the totals at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long[] nanos;
+        private final long[] counters;
+
+        private Snapshot(long[] counts, long[] nanos, long[] counters) {
+            this.counts = counts;
+            this.nanos = nanos;
+            this.counters = counters;
+        }
+
+        /**
+         * @return How many times the phase ran
+         */
+        public long getCount(Phase phase) {
+            return counts[phase.ordinal()];
+        }
+
+        /**
+         * @return Total time spent in the phase, in nanoseconds
+         */
+        public long getNanos(Phase phase) {
+            return nanos[phase.ordinal()];
+        }
+
+        public long get(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Metrics{");
+            for (Phase phase : PHASES) {
+                sb.append(phase).append("=").append(getCount(phase)).append("/")
+                  .append(getNanos(phase) / 1000).append("us, ");
+            }
+            for (Counter counter : COUNTERS) {
+                sb.append(counter).append("=").append(get(counter));
+                sb.append(counter.ordinal() < COUNTERS.length - 1 ? ", " : "}");
+            }
+            return sb.toString();
+        }
+    }
+
+    @Name("taboola.Phase")
+    @Label("Calculator Phase")
+    @Description("Time spent in one phase of parsing or evaluating an expression")
+    @Category("Taboola")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        // Bookkeeping of the open phase, not recorded
+        transient Phase kind;
+        transient PhaseEvent outer;
+        transient long start;
+        transient RuntimeException failure;
+    }
+
+    @Name("taboola.Failure")
+    @Label("Calculator Failure")
+    @Description("Exception thrown while parsing or evaluating an expression")
+    @Category("Taboola")
+    static final class FailureEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("taboola.Counters")
+    @Label("Calculator Counters")
+    @Description("Running totals of the calculator engine counters")
+    @Category("Taboola")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class CountersEvent extends Event {
+        @Label("Variables Created")
+        long variablesCreated;
+
+        @Label("Increments")
+        long increments;
+
+        @Label("Assignments")
+        long assignments;
+
+        @Label("Promotions")
+        long promotions;
+
+        @Label("Exceptions")
+        long exceptions;
+    }
+}
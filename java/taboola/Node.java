@@ -0,0 +1,243 @@
+package taboola;
+
+/**
+ * Node of a compiled expression tree.
+ * Nodes are immutable and hold only primitive doubles and variable slots
+ * (see {@link Symbols}), so a tree can be evaluated any number of times, against
+ * any Calculator using the same symbol table, without any string work or hashing.
+ * toString() names variables from the process-wide table.
+ * Operands are always evaluated left to right, which keeps the side effects of
+ * ++ and -- in the same order as the original token-by-token evaluation.
+ */
+abstract class Node {
+
+    abstract double eval(Calculator calc);
+
+    /**
+     * Numeric literal.
+     */
+    static final class Num extends Node {
+        final double value;
+        // Set for literals written as integers; exact is then their value as a long
+        final boolean integer;
+        final long exact;
+
+        Num(double value) {
+            this.value = value;
+            this.integer = false;
+            this.exact = 0;
+        }
+
+        Num(double value, long exact) {
+            this.value = value;
+            this.integer = true;
+            this.exact = exact;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Read of a variable's current value.
+     */
+    static final class Ref extends Node {
+        final int slot;
+
+        Ref(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            return calc.valueOf(slot);
+        }
+
+        @Override
+        public String toString() {
+            return Symbols.GLOBAL.name(slot);
+        }
+    }
+
+    /**
+     * Pre/post increment or decrement of a variable: ++x, --x, x++, x--.
+     */
+    static final class Step extends Node {
+        final int slot;
+        final boolean increment;
+        final boolean prefix;
+
+        Step(int slot, boolean increment, boolean prefix) {
+            this.slot = slot;
+            this.increment = increment;
+            this.prefix = prefix;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            return calc.step(slot, increment, prefix);
+        }
+
+        @Override
+        public String toString() {
+            String operator = increment ? "++" : "--";
+            return prefix ? operator + Symbols.GLOBAL.name(slot) : Symbols.GLOBAL.name(slot) + operator;
+        }
+    }
+
+    /**
+     * Unary minus applied to a non-literal operand.
+     */
+    static final class Neg extends Node {
+        final Node operand;
+
+        Neg(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            return -operand.eval(calc);
+        }
+
+        @Override
+        public String toString() {
+            return "-" + operand;
+        }
+    }
+
+    /**
+     * Binary arithmetic: +, -, *, /, %.
+     */
+    static final class Binary extends Node {
+        final char op;
+        final Node left;
+        final Node right;
+
+        Binary(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            double a = left.eval(calc);
+            double b = right.eval(calc);
+            return calc.calculate(a, b, op);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + op + " " + right + ")";
+        }
+    }
+
+    /**
+     * Division by a constant zero, found at compile time. Evaluates the dividend (for its
+     * side effects and errors) and then fails through {@link Calculator#divide}, so the
+     * exception is the same as for a zero divisor computed at run time.
+     */
+    static final class DivideByZero extends Node {
+        final Node dividend;
+
+        DivideByZero(Node dividend) {
+            this.dividend = dividend;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            return calc.divide(dividend.eval(calc), 0);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + dividend + " / 0)";
+        }
+    }
+
+    /**
+     * First evaluation of a subexpression shared with later statements: evaluates it and
+     * keeps the result in a temporary for the {@link Load} nodes that reuse it.
+     * Temporaries belong to one rewritten script (see {@link CommonSubexpressions}).
+     */
+    static final class Store extends Node {
+        final double[] temps;
+        final int index;
+        final Node value;
+
+        Store(double[] temps, int index, Node value) {
+            this.temps = temps;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            double result = value.eval(calc);
+            temps[index] = result;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "$" + index + ":" + value;
+        }
+    }
+
+    /**
+     * Reuse of a subexpression computed by an earlier {@link Store}.
+     */
+    static final class Load extends Node {
+        final double[] temps;
+        final int index;
+
+        Load(double[] temps, int index) {
+            this.temps = temps;
+            this.index = index;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            return temps[index];
+        }
+
+        @Override
+        public String toString() {
+            return "$" + index;
+        }
+    }
+
+    /**
+     * Simple or compound assignment. {@code op} is 0 for plain '=',
+     * otherwise the arithmetic operator of the compound form (e.g. '+' for +=).
+     */
+    static final class Assign extends Node {
+        final int slot;
+        final char op;
+        final Node value;
+
+        Assign(int slot, char op, Node value) {
+            this.slot = slot;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        double eval(Calculator calc) {
+            return calc.assign(slot, op, value.eval(calc));
+        }
+
+        @Override
+        public String toString() {
+            return Symbols.GLOBAL.name(slot) + " " + (op == 0 ? "" : String.valueOf(op)) + "= " + value;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package taboola;
+
+import java.math.BigInteger;
+
+/**
+ * Converts decimal literals to doubles straight from the input characters, returning
+ * exactly the double {@link Double#parseDouble} returns for the same text.
+ *
+ * Literals are tried in order of cost:
+ * <ol>
+ *   <li>Integers of up to 18 digits: a long, converted with one correctly rounded cast.</li>
+ *   <li>Clinger's fast path: at most 2^53 in the significand and a power of ten up to
+ *       10^22, where one correctly rounded multiplication or division is exact enough.</li>
+ *   <li>Eisel-Lemire: the significand (up to 19 digits) times a 128-bit approximation of
+ *       the power of five, which decides the rounding in all but rare near-halfway
+ *       cases, which it detects.</li>
+ *   <li>{@link Double#parseDouble} for everything else: more than 19 significant digits,
+ *       subnormal results, the cases Eisel-Lemire rejects, and text outside the literal
+ *       grammar (signs aside), such as "NaN" or "Infinity".</li>
+ * </ol>
+ */
+final class NumberParser {
+    private static final int MIN_POWER = -342;
+    private static final int MAX_POWER = 308;
+    private static final int MAX_SIGNIFICANT_DIGITS = 19;
+    private static final double[] EXACT_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // 5^q for q in [MIN_POWER, MAX_POWER], normalized to 128 bits: high and low halves
+    private static final long[] POWERS_HIGH = new long[MAX_POWER - MIN_POWER + 1];
+    private static final long[] POWERS_LOW = new long[MAX_POWER - MIN_POWER + 1];
+
+    static {
+        BigInteger two128 = BigInteger.ONE.shiftLeft(128);
+        for (int q = MIN_POWER; q <= MAX_POWER; q++) {
+            BigInteger c;
+            if (q < 0) {
+                // Reciprocal, rounded up: 2^b / 5^-q + 1, scaled into [2^127, 2^128)
+                BigInteger power = BigInteger.valueOf(5).pow(-q);
+                int z = power.bitLength();
+                int b = q >= -27 ? z + 127 : 2 * z + 128;
+                c = BigInteger.ONE.shiftLeft(b).divide(power).add(BigInteger.ONE);
+                while (c.compareTo(two128) >= 0) {
+                    c = c.shiftRight(1);
+                }
+            } else {
+                // 5^q truncated to its top 128 bits
+                c = BigInteger.valueOf(5).pow(q);
+                if (c.bitLength() < 128) {
+                    c = c.shiftLeft(128 - c.bitLength());
+                } else {
+                    c = c.shiftRight(c.bitLength() - 128);
+                }
+            }
+            POWERS_HIGH[q - MIN_POWER] = c.shiftRight(64).longValue();
+            POWERS_LOW[q - MIN_POWER] = c.longValue();
+        }
+    }
+
+    private NumberParser() {
+    }
+
+    /**
+     * @param text Literal text
+     * @return The value of the literal
+     * @throws NumberFormatException If the text is not a number {@link Double#parseDouble} accepts
+     */
+    static double parse(String text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Parses [digits][.digits][(e|E)[+|-]digits] with an optional sign, at least one
+     * digit before the exponent, from characters [start, end) of the input.
+     *
+     * @param source Input text
+     * @param start Index of the first character of the literal
+     * @param end Index after the last character of the literal
+     * @return The value of the literal
+     * @throws NumberFormatException If the text is not a number {@link Double#parseDouble} accepts
+     */
+    static double parse(CharSequence source, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (source.charAt(pos) == '-' || source.charAt(pos) == '+')) {
+            negative = source.charAt(pos) == '-';
+            pos++;
+        }
+        // Up to 19 digits, so unsigned: may be negative as a long
+        long significand = 0;
+        int significantDigits = 0;
+        int digits = 0;
+        // Power of ten of the significand's last digit
+        long exponent = 0;
+        while (pos < end && isDigit(source.charAt(pos))) {
+            int digit = source.charAt(pos++) - '0';
+            digits++;
+            if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                significand = significand * 10 + digit;
+                if (significand != 0) {
+                    significantDigits++;
+                }
+            } else {
+                exponent++;
+                significantDigits++;
+            }
+        }
+        boolean integer = true;
+        if (pos < end && source.charAt(pos) == '.') {
+            integer = false;
+            pos++;
+            while (pos < end && isDigit(source.charAt(pos))) {
+                int digit = source.charAt(pos++) - '0';
+                digits++;
+                if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                    significand = significand * 10 + digit;
+                    exponent--;
+                    if (significand != 0) {
+                        significantDigits++;
+                    }
+                } else {
+                    significantDigits++;
+                }
+            }
+        }
+        if (digits > 0 && pos < end && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+            integer = false;
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (source.charAt(pos) == '-' || source.charAt(pos) == '+')) {
+                negativeExponent = source.charAt(pos) == '-';
+                pos++;
+            }
+            int exponentStart = pos;
+            long explicit = 0;
+            while (pos < end && isDigit(source.charAt(pos))) {
+                // Saturate; anything this large is zero or infinite either way
+                explicit = Math.min(explicit * 10 + (source.charAt(pos++) - '0'), 1_000_000_000L);
+            }
+            if (pos == exponentStart) {
+                return fallback(source, start, end);
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (digits == 0 || pos != end || significantDigits > MAX_SIGNIFICANT_DIGITS) {
+            return fallback(source, start, end);
+        }
+        double value;
+        if (significand == 0) {
+            value = 0;
+        } else if (integer && significantDigits <= 18) {
+            value = significand;
+        } else if (significand >= 0 && significand <= 1L << 53 && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0
+                ? significand / EXACT_POWERS_OF_TEN[(int) -exponent]
+                : significand * EXACT_POWERS_OF_TEN[(int) exponent];
+        } else if (exponent < MIN_POWER) {
+            value = 0;
+        } else if (exponent > MAX_POWER) {
+            value = Double.POSITIVE_INFINITY;
+        } else {
+            long bits = eiselLemire(significand, (int) exponent);
+            if (bits < 0) {
+                return fallback(source, start, end);
+            }
+            value = Double.longBitsToDouble(bits);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Computes significand * 10^power, both positive and the significand nonzero.
+     *
+     * @return The bits of the double, or -1 if the result is subnormal, infinite, or
+     *         too close to halfway between two doubles to decide with 128 bits
+     */
+    private static long eiselLemire(long significand, int power) {
+        int index = power - MIN_POWER;
+        // floor(power * log2(10)) + 1023 + 63
+        long exponent = (((152170L + 65536L) * power) >> 16) + 1024 + 63;
+        int shift = Long.numberOfLeadingZeros(significand);
+        long w = significand << shift;
+        long high = POWERS_HIGH[index];
+        long upper = multiplyHighUnsigned(w, high);
+        long lower = w * high;
+        if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + w, lower) < 0) {
+            // Not enough bits to decide; bring in the low half of the power
+            long low = POWERS_LOW[index];
+            long productLow = w * low;
+            long middle = lower + multiplyHighUnsigned(w, low);
+            if (Long.compareUnsigned(middle, lower) < 0) {
+                upper++;
+            }
+            if (middle + 1 == 0 && (upper & 0x1FF) == 0x1FF && Long.compareUnsigned(productLow + w, productLow) < 0) {
+                return -1;
+            }
+            lower = middle;
+        }
+        long upperBit = upper >>> 63;
+        long mantissa = upper >>> (upperBit + 9);
+        shift += (int) (1 ^ upperBit);
+        if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1) {
+            // Possibly exactly halfway between two doubles
+            return -1;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= 1L << 53) {
+            mantissa = 1L << 52;
+            shift--;
+        }
+        mantissa &= ~(1L << 52);
+        long biasedExponent = exponent - shift;
+        if (biasedExponent < 1 || biasedExponent > 2046) {
+            return -1;
+        }
+        return mantissa | biasedExponent << 52;
+    }
+
+    private static long multiplyHighUnsigned(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    private static double fallback(CharSequence source, int start, int end) {
+        return Double.parseDouble(source.subSequence(start, end).toString());
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,166 @@
+package taboola;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+/**
+ * Unit tests for the NumberParser class.
+ * Every value is compared bit for bit with Double.parseDouble.
+ */
+public class NumberParserTest {
+    private int passedTests = 0;
+    private int failedTests = 0;
+
+    // Helper methods for assertions
+    private void assertTrue(boolean condition, String testName) {
+        if (condition) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName);
+        } else {
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName);
+        }
+    }
+
+    private void assertThrows(Runnable code, String testName) {
+        try {
+            code.run();
+            failedTests++;
+            System.out.println("✗ FAIL: " + testName + " - Expected exception but none was thrown");
+        } catch (Exception e) {
+            passedTests++;
+            System.out.println("✓ PASS: " + testName + " - Exception thrown as expected: " + e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Checks that the literals parse to exactly the doubles Double.parseDouble returns.
+     */
+    private void assertSameAsJdk(String[] literals, String testName) {
+        for (String literal : literals) {
+            double expected = Double.parseDouble(literal);
+            double actual = NumberParser.parse(literal);
+            if (Double.doubleToRawLongBits(expected) != Double.doubleToRawLongBits(actual)) {
+                failedTests++;
+                System.out.println("✗ FAIL: " + testName + " - '" + literal + "' Expected: " + expected + ", Got: " + actual);
+                return;
+            }
+        }
+        passedTests++;
+        System.out.println("✓ PASS: " + testName);
+    }
+
+    // ==================== Tests for Fast Paths ====================
+
+    public void testParse_Integers() {
+        assertSameAsJdk(new String[] {"0", "00", "7", "42", "9007199254740993", "123456789012345678",
+                                      "999999999999999999", "-0", "+5", "-123"},
+                        "parse: Integers up to 18 digits");
+    }
+
+    public void testParse_ShortDecimals() {
+        assertSameAsJdk(new String[] {"0.5", ".5", "1.", "3.14159", "0.1", "0.000123", "12.375e2", "1e22", "5e-22"},
+                        "parse: Clinger fast path");
+    }
+
+    public void testParse_LongDecimals() {
+        assertSameAsJdk(new String[] {"1e23", "1234567890123456789", "9999999999999999999", "0.30000000000000004",
+                                      "2.2250738585072014E-308", "1.7976931348623157e308", "4.35679e-200",
+                                      "9.4065645841246544e-324", "1.8e308", "1e-400", "12345678901234567890123"},
+                        "parse: Eisel-Lemire and fallback");
+    }
+
+    public void testParse_Halfway() {
+        // Exactly halfway between two doubles: ties round to even
+        assertSameAsJdk(new String[] {"9007199254740993.0", "9007199254740995.0", "1.00000000000000011102230246251565404236316680908203125"},
+                        "parse: Halfway cases");
+    }
+
+    // ==================== Tests for Random Input ====================
+
+    public void testParse_RandomDoubles() {
+        Random random = new Random(42);
+        String[] literals = new String[200000];
+        for (int i = 0; i < literals.length; i += 2) {
+            double value;
+            do {
+                value = Double.longBitsToDouble(random.nextLong());
+            } while (Double.isNaN(value) || Double.isInfinite(value));
+            literals[i] = Double.toString(value);
+            literals[i + 1] = new BigDecimal(value).round(new MathContext(1 + random.nextInt(19))).toString();
+        }
+        assertSameAsJdk(literals, "parse: Random doubles, shortest and rounded to 1-19 digits");
+    }
+
+    public void testParse_RandomDigits() {
+        Random random = new Random(7);
+        String[] literals = new String[200000];
+        for (int i = 0; i < literals.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int digits = 1 + random.nextInt(19);
+            for (int d = 0; d < digits; d++) {
+                sb.append((char) ('0' + random.nextInt(10)));
+            }
+            if (random.nextBoolean()) {
+                sb.insert(random.nextInt(sb.length() + 1), '.');
+            }
+            if (random.nextInt(3) == 0) {
+                sb.append('e').append(random.nextInt(700) - 350);
+            }
+            literals[i] = sb.toString();
+        }
+        assertSameAsJdk(literals, "parse: Random digit strings with exponents");
+    }
+
+    // ==================== Tests for Invalid Input Handling ====================
+
+    public void testParse_Invalid() {
+        assertThrows(() -> NumberParser.parse("."), "parse: Lone dot throws exception");
+        assertThrows(() -> NumberParser.parse("1e"), "parse: Exponent without digits throws exception");
+        assertThrows(() -> NumberParser.parse("1x"), "parse: Trailing garbage throws exception");
+        assertThrows(() -> NumberParser.parse(""), "parse: Empty text throws exception");
+        assertTrue(Double.isNaN(NumberParser.parse("NaN")), "parse: Falls back for NaN");
+        assertTrue(NumberParser.parse("12345", 1, 4) == 234, "parse: Range of a larger input");
+    }
+
+    // ==================== Run All Tests ====================
+
+    public void runAllTests() {
+        System.out.println("\n========================================");
+        System.out.println("  NUMBER PARSER UNIT TESTS");
+        System.out.println("========================================\n");
+
+        System.out.println("--- Fast Paths ---");
+        testParse_Integers();
+        testParse_ShortDecimals();
+        testParse_LongDecimals();
+        testParse_Halfway();
+
+        System.out.println("\n--- Random Input ---");
+        testParse_RandomDoubles();
+        testParse_RandomDigits();
+
+        System.out.println("\n--- Invalid Input Handling ---");
+        testParse_Invalid();
+
+        // Summary
+        System.out.println("\n========================================");
+        System.out.println("  TEST SUMMARY");
+        System.out.println("========================================");
+        System.out.println("Total tests: " + (passedTests + failedTests));
+        System.out.println("Passed: " + passedTests);
+        System.out.println("Failed: " + failedTests);
+        if (failedTests == 0) {
+            System.out.println("\n🎉 ALL TESTS PASSED! 🎉");
+        } else {
+            System.out.println("\n⚠️  SOME TESTS FAILED ⚠️");
+        }
+        System.out.println("========================================\n");
+    }
+
+    public static void main(String[] args) {
+        NumberParserTest test = new NumberParserTest();
+        test.runAllTests();
+    }
+}
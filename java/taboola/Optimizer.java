@@ -0,0 +1,160 @@
+package taboola;
+
+/**
+ * Rewrites a parsed tree into a cheaper equivalent before it is evaluated or compiled.
+ *
+ * Every rewrite gives bit-for-bit the same result for every input (including NaN,
+ * infinities and -0.0) and keeps every variable read, ++/-- and assignment, in order:
+ * <ul>
+ *   <li>Constant subtrees are folded: (5 + 3) * 10 becomes 80.</li>
+ *   <li>Identities are removed: x * 1, 1 * x, x / 1, x - 0 and x + -0.0 become x.
+ *       x + 0 and x * 0 are kept, since they differ from x and 0 for -0.0, NaN and infinities.</li>
+ *   <li>Multiplying or dividing by -1 becomes a negation, and -(-x) becomes x.</li>
+ *   <li>Division by a power of two becomes multiplication by its exact reciprocal.</li>
+ *   <li>Division by a constant zero becomes a {@link Node.DivideByZero} node, which
+ *       evaluates the dividend and then fails exactly as {@link Calculator#divide} does.</li>
+ * </ul>
+ */
+final class Optimizer {
+
+    private Optimizer() {
+    }
+
+    /**
+     * @param node Parsed tree
+     * @return An equivalent tree, possibly the same instance
+     */
+    static Node optimize(Node node) {
+        if (Metrics.enabled) {
+            Metrics.PhaseEvent phase = Metrics.begin(Metrics.Phase.OPTIMIZE);
+            try {
+                return rewrite(node);
+            } finally {
+                Metrics.end(phase);
+            }
+        }
+        return rewrite(node);
+    }
+
+    private static Node rewrite(Node node) {
+        if (node instanceof Node.Neg) {
+            return negate(rewrite(((Node.Neg) node).operand));
+        }
+        if (node instanceof Node.Binary) {
+            Node.Binary binary = (Node.Binary) node;
+            return binary(binary.op, rewrite(binary.left), rewrite(binary.right));
+        }
+        if (node instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) node;
+            Node value = rewrite(assign.value);
+            return value == assign.value ? node : new Node.Assign(assign.slot, assign.op, value);
+        }
+        return node;
+    }
+
+    private static Node negate(Node operand) {
+        if (operand instanceof Node.Num) {
+            return new Node.Num(-((Node.Num) operand).value);
+        }
+        if (operand instanceof Node.Neg) {
+            return ((Node.Neg) operand).operand;
+        }
+        return new Node.Neg(operand);
+    }
+
+    private static Node binary(char op, Node left, Node right) {
+        if (op == '/' && isConstant(right, 0)) {
+            return new Node.DivideByZero(left);
+        }
+        if (left instanceof Node.Num && right instanceof Node.Num) {
+            return new Node.Num(fold(op, ((Node.Num) left).value, ((Node.Num) right).value));
+        }
+        switch (op) {
+            case '*':
+                if (isConstant(right, 1)) {
+                    return left;
+                }
+                if (isConstant(left, 1)) {
+                    return right;
+                }
+                if (isConstant(right, -1)) {
+                    return negate(left);
+                }
+                if (isConstant(left, -1)) {
+                    return negate(right);
+                }
+                break;
+            case '/':
+                if (isConstant(right, 1)) {
+                    return left;
+                }
+                if (isConstant(right, -1)) {
+                    return negate(left);
+                }
+                if (right instanceof Node.Num && hasExactReciprocal(((Node.Num) right).value)) {
+                    return new Node.Binary('*', left, new Node.Num(1 / ((Node.Num) right).value));
+                }
+                break;
+            case '+':
+                // Only -0.0 is an identity for addition: -0.0 + 0.0 is 0.0
+                if (isNegativeZero(right)) {
+                    return left;
+                }
+                if (isNegativeZero(left)) {
+                    return right;
+                }
+                break;
+            case '-':
+                if (isPositiveZero(right)) {
+                    return left;
+                }
+                break;
+            default:
+                break;
+        }
+        return new Node.Binary(op, left, right);
+    }
+
+    /**
+     * Same arithmetic as {@link Calculator#calculate(double, double, char)} for a divisor other than 0.
+     */
+    private static double fold(char op, double a, double b) {
+        switch (op) {
+            case '*':
+                return a * b;
+            case '/':
+                return a / b;
+            case '%':
+                return a % b;
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            default:
+                throw new IllegalArgumentException("Invalid operator: " + op);
+        }
+    }
+
+    private static boolean isConstant(Node node, double value) {
+        return node instanceof Node.Num && ((Node.Num) node).value == value;
+    }
+
+    private static boolean isPositiveZero(Node node) {
+        return node instanceof Node.Num && Double.doubleToRawLongBits(((Node.Num) node).value) == 0L;
+    }
+
+    private static boolean isNegativeZero(Node node) {
+        return node instanceof Node.Num
+            && Double.doubleToRawLongBits(((Node.Num) node).value) == Long.MIN_VALUE;
+    }
+
+    /**
+     * True for normal powers of two (positive or negative), whose reciprocal is exact,
+     * so that x / c and x * (1 / c) round identically.
+     */
+    private static boolean hasExactReciprocal(double c) {
+        return Math.getExponent(c) >= Double.MIN_EXPONENT
+            && Math.getExponent(c) <= Double.MAX_EXPONENT
+            && (Double.doubleToRawLongBits(c) & 0x000fffffffffffffL) == 0;
+    }
+}
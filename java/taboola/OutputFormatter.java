@@ -0,0 +1,279 @@
+package taboola;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes variables in the output format of {@link Calculator#formatOutput(HashMap)},
+ * (name1=value1,name2=value2,...) sorted by name, straight to an Appendable or ByteBuffer.
+ *
+ * Text is collected in a fixed char buffer and handed to the target in blocks, so
+ * formatting allocates nothing per variable in the common cases. The calculator's own
+ * variables map keeps its names sorted as variables are defined (see
+ * {@link VariableMap#sortedVars()}), so it is not re-sorted on every call; other maps
+ * are sorted once per call.
+ *
+ * Whole numbers print without a fraction over the full range of doubles, using long
+ * arithmetic up to 2^63; integer variables of an {@link IntegerCalculator} print
+ * exactly. Other values print exactly as {@link Double#toString(double)}; values in
+ * [0.001, 10^7) with up to 15 significant digits take a fast path that finds the
+ * shortest decimal that converts back to the same double.
+ */
+final class OutputFormatter {
+    private static final int BUFFER = 8192;
+    // Longest number text: Double.toString of a negative double, or a negative long
+    private static final int MAX_NUMBER = 26;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+    private static final long[] LONG_POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+        10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L, 1000000000000000L
+    };
+
+    private final Appendable appendable;
+    private final ByteBuffer bytes;
+    private char[] buffer = new char[BUFFER];
+    private int length;
+    private byte[] ascii;
+
+    private OutputFormatter(Appendable appendable, ByteBuffer bytes) {
+        this.appendable = appendable;
+        this.bytes = bytes;
+    }
+
+    static String format(Map<String, Var> results) {
+        StringBuilder sb = new StringBuilder(16 + results.size() * 12);
+        try {
+            format(results, sb);
+        } catch (IOException e) {
+            throw unexpected(e);
+        }
+        return sb.toString();
+    }
+
+    static void format(Map<String, Var> results, Appendable out) throws IOException {
+        new OutputFormatter(out, null).write(results);
+    }
+
+    /**
+     * Writes UTF-8 text at the buffer's position.
+     *
+     * @throws java.nio.BufferOverflowException If the output does not fit
+     */
+    static void format(Map<String, Var> results, ByteBuffer out) {
+        try {
+            new OutputFormatter(null, out).write(results);
+        } catch (IOException e) {
+            throw unexpected(e);
+        }
+    }
+
+    /**
+     * Formats double values under the given names, which must already be sorted.
+     */
+    static String format(String[] names, double[] values) {
+        StringBuilder sb = new StringBuilder(16 + names.length * 12);
+        try {
+            format(names, values, sb);
+        } catch (IOException e) {
+            throw unexpected(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes double values under the given names, which must already be sorted.
+     */
+    static void format(String[] names, double[] values, Appendable out) throws IOException {
+        OutputFormatter formatter = new OutputFormatter(out, null);
+        formatter.append('(');
+        for (int i = 0; i < names.length; i++) {
+            formatter.key(i, names[i]);
+            formatter.number(values[i]);
+        }
+        formatter.append(')');
+        formatter.flush();
+    }
+
+    /**
+     * Only a caller's Appendable can throw; StringBuilder and ByteBuffer targets do not.
+     */
+    private static IllegalStateException unexpected(IOException e) {
+        return new IllegalStateException(e);
+    }
+
+    private void write(Map<String, Var> results) throws IOException {
+        append('(');
+        if (results instanceof VariableMap) {
+            Var[] vars = ((VariableMap) results).sortedVars();
+            for (int i = 0; i < vars.length; i++) {
+                entry(i, vars[i].getName(), vars[i]);
+            }
+        } else {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Map.Entry<String, Var>[] entries = results.entrySet().toArray(new Map.Entry[0]);
+            Arrays.sort(entries, Map.Entry.comparingByKey());
+            for (int i = 0; i < entries.length; i++) {
+                entry(i, entries[i].getKey(), entries[i].getValue());
+            }
+        }
+        append(')');
+        flush();
+    }
+
+    private void entry(int index, String name, Var var) throws IOException {
+        key(index, name);
+        if (var.isInteger()) {
+            longValue(var.getLongValue());
+        } else {
+            number(var.value());
+        }
+    }
+
+    /**
+     * Writes the separator and "name=", leaving room for the number that follows.
+     */
+    private void key(int index, String name) throws IOException {
+        // Flush only between entries, so surrogate pairs are never split between blocks
+        int needed = name.length() + MAX_NUMBER + 2;
+        if (length + needed > buffer.length) {
+            flush();
+            if (needed > buffer.length) {
+                buffer = new char[needed];
+            }
+        }
+        if (index > 0) {
+            buffer[length++] = ',';
+        }
+        name.getChars(0, name.length(), buffer, length);
+        length += name.length();
+        buffer[length++] = '=';
+    }
+
+    private void number(double value) {
+        // Display as integer if it's a whole number
+        if (value == Math.floor(value) && !Double.isInfinite(value)) {
+            if (value >= -0x1p63 && value < 0x1p63) {
+                longValue((long) value);
+            } else {
+                text(new BigDecimal(value).toPlainString());
+            }
+            return;
+        }
+        double magnitude = Math.abs(value);
+        if (magnitude >= 1e-3 && magnitude < 1e7) {
+            int start = length;
+            if (value < 0) {
+                buffer[length++] = '-';
+            }
+            if (shortDecimal(magnitude)) {
+                return;
+            }
+            length = start;
+        }
+        text(Double.toString(value));
+    }
+
+    /**
+     * Writes the shortest decimal with at most 15 digits that converts back to the value.
+     * With fewer than 2^52 units of the last digit, the units are coarser than the gap
+     * between adjacent doubles, so at most one decimal of each length converts back
+     * to the value; the shortest one is therefore the one Double.toString prints.
+     *
+     * @return false if there is no such decimal
+     */
+    private boolean shortDecimal(double value) {
+        for (int digits = 1; digits < POWERS_OF_TEN.length; digits++) {
+            double scaled = value * POWERS_OF_TEN[digits];
+            if (scaled >= 0x1p52) {
+                return false;
+            }
+            double units = Math.rint(scaled);
+            if (units / POWERS_OF_TEN[digits] == value) {
+                long whole = (long) units;
+                longValue(whole / LONG_POWERS_OF_TEN[digits]);
+                buffer[length++] = '.';
+                long fraction = whole % LONG_POWERS_OF_TEN[digits];
+                for (int i = digits - 1; i >= 0; i--) {
+                    buffer[length + i] = (char) ('0' + fraction % 10);
+                    fraction /= 10;
+                }
+                length += digits;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void longValue(long value) {
+        if (value == Long.MIN_VALUE) {
+            text("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void text(String text) {
+        if (length + text.length() > buffer.length) {
+            buffer = Arrays.copyOf(buffer, length + text.length());
+        }
+        text.getChars(0, text.length(), buffer, length);
+        length += text.length();
+    }
+
+    private void append(char c) throws IOException {
+        if (length == buffer.length) {
+            flush();
+        }
+        buffer[length++] = c;
+    }
+
+    private void flush() throws IOException {
+        if (bytes != null) {
+            flushBytes();
+        } else if (appendable instanceof StringBuilder) {
+            ((StringBuilder) appendable).append(buffer, 0, length);
+        } else if (appendable instanceof Writer) {
+            ((Writer) appendable).write(buffer, 0, length);
+        } else {
+            appendable.append(CharBuffer.wrap(buffer, 0, length));
+        }
+        length = 0;
+    }
+
+    private void flushBytes() {
+        if (ascii == null || ascii.length < length) {
+            ascii = new byte[buffer.length];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = buffer[i];
+            if (c >= 0x80) {
+                // Names outside ASCII; encode the rest of the block in one go
+                bytes.put(ascii, 0, i);
+                bytes.put(StandardCharsets.UTF_8.encode(CharBuffer.wrap(buffer, i, length - i)));
+                return;
+            }
+            ascii[i] = (byte) c;
+        }
+        bytes.put(ascii, 0, length);
+    }
+}
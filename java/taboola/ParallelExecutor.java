@@ -0,0 +1,118 @@
+package taboola;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a {@link Script} level by level (see {@link Script#levels()}), executing the
+ * independent statements of each level in parallel on a ForkJoinPool.
+ *
+ * Statements of one level never touch a variable another statement of the same level
+ * writes, so they can run concurrently against one Calculator. The storage of every
+ * variable the script writes is reserved up front so no array is reallocated while
+ * tasks run, and the join at the end of each level publishes its writes to the next.
+ */
+final class ParallelExecutor {
+    // Statements per task; a statement is tens of nanoseconds, so small tasks cost more than they save
+    private static final int BATCH = 256;
+
+    private ParallelExecutor() {
+    }
+
+    /**
+     * Executes the script. On success the variables are exactly as after sequential
+     * execution. If statements fail, the exception of the earliest failing statement
+     * (in script order) is thrown once its level has finished; statements of earlier
+     * levels and of that level have run, later levels have not.
+     *
+     * Inside a transaction the statements run one after another in script order, each
+     * atomically, as with {@link Calculator#processExpressions(String[])}: the undo log
+     * is for one thread at a time.
+     *
+     * @param calc Calculator to run against
+     * @param script Compiled script
+     * @param pool Pool to run on
+     */
+    static void run(Calculator calc, Script script, ForkJoinPool pool) {
+        if (calc.inTransaction()) {
+            for (Expression statement : script.statements) {
+                calc.run(statement);
+            }
+            return;
+        }
+        for (int[] writes : script.writes) {
+            for (int slot : writes) {
+                calc.store.reserve(slot);
+            }
+        }
+        for (int[] level : script.levels()) {
+            if (level.length <= BATCH) {
+                for (int statement : level) {
+                    calc.run(script.statements[statement]);
+                }
+                continue;
+            }
+            Failure failure = new Failure();
+            pool.invoke(new LevelTask(calc, script, level, 0, level.length, failure));
+            failure.rethrow();
+        }
+    }
+
+    // Never serialized, like any task run on a pool
+    @SuppressWarnings("serial")
+    private static final class LevelTask extends RecursiveAction {
+        private final Calculator calc;
+        private final Script script;
+        private final int[] level;
+        private final int from;
+        private final int to;
+        private final Failure failure;
+
+        LevelTask(Calculator calc, Script script, int[] level, int from, int to, Failure failure) {
+            this.calc = calc;
+            this.script = script;
+            this.level = level;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        calc.run(script.statements[level[i]]);
+                    } catch (RuntimeException e) {
+                        failure.record(level[i], e);
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new LevelTask(calc, script, level, from, middle, failure),
+                      new LevelTask(calc, script, level, middle, to, failure));
+        }
+    }
+
+    /**
+     * Keeps the exception of the lowest-numbered failing statement.
+     */
+    private static final class Failure {
+        private int statement = Integer.MAX_VALUE;
+        private RuntimeException exception;
+
+        synchronized void record(int statement, RuntimeException exception) {
+            if (statement < this.statement) {
+                this.statement = statement;
+                this.exception = exception;
+            }
+        }
+
+        synchronized void rethrow() {
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package taboola;
+
+/**
+ * Recursive-descent parser that turns the tokens produced by {@link Lexer}
+ * into a {@link Node} tree.
+ *
+ * Grammar:
+ * <pre>
+ * statement := IDENT ('=' | '+=' | '-=' | '*=' | '/=' | '%=') sum | sum
+ * sum       := product (('+' | '-') product)*
+ * product   := unary (('*' | '/' | '%') unary)*
+ * unary     := ('-' | '+') unary | ('++' | '--') IDENT | primary
+ * primary   := NUMBER | IDENT ['++' | '--'] | '(' sum ')'
+ * </pre>
+ *
+ * Trees are parsed, analysed and evaluated recursively, so to fail with an
+ * IllegalArgumentException instead of running out of stack, the parser rejects
+ * statements with more than {@value #MAX_DEPTH} levels of parentheses and unary
+ * operators, and trees more than {@value #MAX_HEIGHT} levels high, which a chain like
+ * "1 + 1 + ... + 1" is once it has that many operators.
+ */
+final class Parser {
+    // One scanner per thread; its token arrays are reused across parses
+    private static final ThreadLocal<Lexer> LEXERS = ThreadLocal.withInitial(Lexer::new);
+
+    static final int MAX_DEPTH = 500;
+
+    /**
+     * Highest tree accepted. Trees this high are still thousands of levels deep, which a
+     * recursive walk survives on a default thread stack only with one small frame per
+     * level; walks that keep more state per level use an explicit stack instead.
+     */
+    static final int MAX_HEIGHT = 3500;
+    private static final String TOO_DEEP = "Expression nested too deeply.";
+
+    private final Lexer lexer;
+    private final Symbols symbols;
+    private int index;
+    // Current parentheses and unary operator nesting
+    private int nesting;
+    // Height of the tree returned by the last sum, product, unary or primary
+    private int height;
+
+    private Parser(Lexer lexer, Symbols symbols) {
+        this.lexer = lexer;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Parses a single statement (an expression or an assignment).
+     *
+     * @param source The expression text
+     * @param symbols Table to intern the variable names into
+     * @return Root of the parsed tree
+     */
+    static Node parse(CharSequence source, Symbols symbols) {
+        Lexer lexer = LEXERS.get();
+        if (Metrics.enabled) {
+            return parseTimed(lexer, source, symbols);
+        }
+        try {
+            lexer.tokenize(source);
+            return new Parser(lexer, symbols).statement();
+        } finally {
+            lexer.clear();
+        }
+    }
+
+    private static Node parseTimed(Lexer lexer, CharSequence source, Symbols symbols) {
+        try {
+            Metrics.PhaseEvent phase = Metrics.begin(Metrics.Phase.TOKENIZE);
+            try {
+                lexer.tokenize(source);
+            } catch (RuntimeException e) {
+                Metrics.failed(phase, e);
+                throw e;
+            } finally {
+                Metrics.end(phase);
+            }
+            phase = Metrics.begin(Metrics.Phase.PARSE);
+            try {
+                return new Parser(lexer, symbols).statement();
+            } catch (RuntimeException e) {
+                Metrics.failed(phase, e);
+                throw e;
+            } finally {
+                Metrics.end(phase);
+            }
+        } finally {
+            lexer.clear();
+        }
+    }
+
+    private Node statement() {
+        if (lexer.kind(0) == Lexer.IDENTIFIER && lexer.kind(1) == Lexer.ASSIGN) {
+            int slot = symbols.intern(lexer.text(0));
+            char op = lexer.op(1);
+            index = 2;
+            if (lexer.kind(index) == Lexer.END) {
+                throw invalidAssignment();
+            }
+            Node value = sum();
+            expectEnd();
+            return new Node.Assign(slot, op, value);
+        }
+        Node node = sum();
+        expectEnd();
+        return node;
+    }
+
+    private void expectEnd() {
+        switch (lexer.kind(index)) {
+            case Lexer.END:
+                return;
+            case Lexer.RIGHT_PAREN:
+                throw mismatchedParentheses();
+            case Lexer.ASSIGN:
+                throw invalidAssignment();
+            default:
+                throw unexpected();
+        }
+    }
+
+    private Node sum() {
+        Node node = product();
+        int left = height;
+        while (lexer.kind(index) == Lexer.OPERATOR && (lexer.op(index) == '+' || lexer.op(index) == '-')) {
+            char op = lexer.op(index++);
+            node = new Node.Binary(op, node, product());
+            left = grow(Math.max(left, height));
+        }
+        height = left;
+        return node;
+    }
+
+    private Node product() {
+        Node node = unary();
+        int left = height;
+        while (lexer.kind(index) == Lexer.OPERATOR
+                && (lexer.op(index) == '*' || lexer.op(index) == '/' || lexer.op(index) == '%')) {
+            char op = lexer.op(index++);
+            node = new Node.Binary(op, node, unary());
+            left = grow(Math.max(left, height));
+        }
+        height = left;
+        return node;
+    }
+
+    /**
+     * @return The height of a node over a child of the given height
+     */
+    private int grow(int childHeight) {
+        if (childHeight >= MAX_HEIGHT) {
+            throw tooDeep();
+        }
+        return childHeight + 1;
+    }
+
+    private void enter() {
+        if (++nesting > MAX_DEPTH) {
+            throw tooDeep();
+        }
+    }
+
+    private Node unary() {
+        byte kind = lexer.kind(index);
+        if (kind == Lexer.PRE_STEP) {
+            char op = lexer.op(index++);
+            if (lexer.kind(index) != Lexer.IDENTIFIER) {
+                throw new IllegalArgumentException("Invalid operand for " + op + op
+                    + " in expression: " + lexer.sourceText());
+            }
+            height = 1;
+            return new Node.Step(symbols.intern(lexer.text(index++)), op == '+', true);
+        }
+        if (kind == Lexer.OPERATOR && (lexer.op(index) == '+' || lexer.op(index) == '-')) {
+            char op = lexer.op(index++);
+            enter();
+            Node operand = unary();
+            nesting--;
+            if (op == '+') {
+                return operand;
+            }
+            if (operand instanceof Node.Num) {
+                Node.Num num = (Node.Num) operand;
+                return num.integer ? new Node.Num(-num.value, -num.exact) : new Node.Num(-num.value);
+            }
+            height = grow(height);
+            return new Node.Neg(operand);
+        }
+        return primary();
+    }
+
+    private Node primary() {
+        switch (lexer.kind(index)) {
+            case Lexer.NUMBER: {
+                Node.Num num = lexer.isInteger(index)
+                    ? new Node.Num(lexer.value(index), lexer.integer(index))
+                    : new Node.Num(lexer.value(index));
+                index++;
+                height = 1;
+                return num;
+            }
+            case Lexer.IDENTIFIER: {
+                height = 1;
+                int slot = symbols.intern(lexer.text(index++));
+                if (lexer.kind(index) == Lexer.POST_STEP) {
+                    return new Node.Step(slot, lexer.op(index++) == '+', false);
+                }
+                return new Node.Ref(slot);
+            }
+            case Lexer.LEFT_PAREN: {
+                index++;
+                enter();
+                Node inner = sum();
+                nesting--;
+                if (lexer.kind(index) != Lexer.RIGHT_PAREN) {
+                    throw mismatchedParentheses();
+                }
+                index++;
+                return inner;
+            }
+            case Lexer.RIGHT_PAREN:
+                throw mismatchedParentheses();
+            case Lexer.END:
+                throw new IllegalArgumentException("Unexpected end of expression: " + lexer.sourceText());
+            default:
+                throw unexpected();
+        }
+    }
+
+    private IllegalArgumentException tooDeep() {
+        return new IllegalArgumentException(TOO_DEEP);
+    }
+
+    /**
+     * Message for a statement that failed. A statement within the limits can still be too
+     * deep for a thread with a smaller stack, such as a pool worker; the caller catches
+     * the StackOverflowError so that statement fails alone, reported like one the parser
+     * rejects.
+     *
+     * @param error RuntimeException or StackOverflowError thrown by the statement
+     */
+    static String failureMessage(Throwable error) {
+        return error instanceof StackOverflowError ? TOO_DEEP : String.valueOf(error.getMessage());
+    }
+
+    private IllegalArgumentException mismatchedParentheses() {
+        return new IllegalArgumentException("Mismatched parentheses in expression.");
+    }
+
+    private IllegalArgumentException invalidAssignment() {
+        return new IllegalArgumentException("Invalid assignment expression: " + lexer.sourceText());
+    }
+
+    private IllegalArgumentException unexpected() {
+        return new IllegalArgumentException("Unexpected '" + lexer.text(index)
+            + "' at position " + lexer.start(index) + " in expression: " + lexer.sourceText());
+    }
+}
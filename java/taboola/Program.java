@@ -0,0 +1,463 @@
+package taboola;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A whole script compiled once into a flat stack-machine program over local variable
+ * slots, for running the same model many times with different starting values.
+ *
+ * Obtain instances with {@link Calculator#compileScript(String[])}. Every variable the
+ * script touches gets a fixed index into one double array. Variables the script reads
+ * before assigning them are its inputs, bound by {@link #run(double[])}; all others are
+ * assigned before they are read, so a run needs no definedness checks and no name
+ * lookups. Statements run in order with exactly the semantics of
+ * {@link Calculator#processExpressions(String[])}: left-to-right operands, ++/-- with
+ * their prefix and postfix results, compound assignments reading the variable after
+ * evaluating the right side, and the same division-by-zero error.
+ *
+ * A run allocates nothing: the operand stack and the output buffer are allocated once,
+ * and each run overwrites the buffer. Like a Calculator, an instance is for one thread
+ * at a time; compile one program per thread to run a model concurrently.
+ *
+ * The stack machine computes in double arithmetic. A program compiled by an
+ * {@link IntegerCalculator} instead runs its statements on a private IntegerCalculator,
+ * so it keeps that calculator's exact integer semantics; its inputs with an integral
+ * value are bound as integers, and {@link #formatOutput()} prints integers exactly.
+ */
+public final class Program {
+    private static final int CONST = 0;
+    private static final int LOAD = 1;
+    private static final int PRE_INC = 2;
+    private static final int PRE_DEC = 3;
+    private static final int POST_INC = 4;
+    private static final int POST_DEC = 5;
+    private static final int NEG = 6;
+    private static final int ADD = 7;
+    private static final int SUB = 8;
+    private static final int MUL = 9;
+    private static final int DIV = 10;
+    private static final int REM = 11;
+    // Operands: variable, operator (0 for '=')
+    private static final int ASSIGN = 12;
+    // Ends a statement, discarding its result
+    private static final int POP = 13;
+
+    // Opcodes, each followed by its operands
+    private final int[] code;
+    private final double[] constants;
+    // Variable names by index, sorted
+    private final String[] names;
+    // Indexes of the inputs, in order of first read
+    private final int[] inputs;
+    private final double[] values;
+    private final double[] stack;
+    // Set for programs compiled by an IntegerCalculator: runs the statements instead of the code
+    private final IntegerCalculator exact;
+    private final Expression[] statements;
+    // Slots of the variables by index
+    private final int[] slots;
+
+    private Program(int[] code, double[] constants, String[] names, int[] inputs, int maxStack,
+                    IntegerCalculator exact, Expression[] statements, int[] slots) {
+        this.code = code;
+        this.constants = constants;
+        this.names = names;
+        this.inputs = inputs;
+        this.values = new double[names.length];
+        this.stack = new double[Math.max(maxStack, 1)];
+        this.exact = exact;
+        this.statements = statements;
+        this.slots = slots;
+    }
+
+    /**
+     * Compiles the statements of a script.
+     *
+     * @param script Compiled statements, in order
+     * @param symbols Table the script's slots belong to
+     * @return The program
+     */
+    static Program compile(Script script, Symbols symbols) {
+        return compile(script, symbols, null);
+    }
+
+    /**
+     * Compiles the statements of a script.
+     *
+     * @param script Compiled statements, in order
+     * @param symbols Table the script's slots belong to
+     * @param exact Calculator to run the statements on with integer semantics, or null
+     *        to run them as double arithmetic code
+     * @return The program
+     */
+    static Program compile(Script script, Symbols symbols, IntegerCalculator exact) {
+        // Local index per slot, in sorted name order
+        Script.SlotSet slotSet = new Script.SlotSet();
+        for (int i = 0; i < script.size(); i++) {
+            for (int slot : script.reads[i]) {
+                slotSet.add(slot);
+            }
+            for (int slot : script.writes[i]) {
+                slotSet.add(slot);
+            }
+        }
+        int[] slots = slotSet.toArray();
+        String[] names = new String[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            names[i] = symbols.name(slots[i]);
+        }
+        Arrays.sort(names);
+        int[] locals = new int[script.slotLimit()];
+        for (int i = 0; i < names.length; i++) {
+            // From here on, slots are in name order too
+            slots[i] = symbols.find(names[i]);
+            locals[slots[i]] = i;
+        }
+        Emitter emitter = new Emitter(locals, names.length);
+        for (Expression statement : script.statements) {
+            emitter.emit(statement.root);
+            emitter.op(POP);
+        }
+        return new Program(Arrays.copyOf(emitter.code, emitter.size), emitter.constants(),
+                           names, emitter.inputs(), emitter.maxStack, exact, script.statements, slots);
+    }
+
+    /**
+     * Runs the script with the given input values.
+     *
+     * @param inputs Starting values of the variables named by {@link #getInputs()}, in that order
+     * @return The output buffer: the final value of each variable named by
+     *         {@link #getVariables()}, in that order. The same array is reused by every run.
+     * @throws IllegalArgumentException If a statement divides by zero, or overflows in a
+     *         program compiled by an IntegerCalculator; the buffer then holds a partial
+     *         run and the next run starts over
+     */
+    public double[] run(double[] inputs) {
+        if (inputs.length != this.inputs.length) {
+            throw new IllegalArgumentException("Expected " + this.inputs.length + " inputs, got " + inputs.length);
+        }
+        if (exact != null) {
+            return runExact(inputs);
+        }
+        double[] values = this.values;
+        for (int i = 0; i < inputs.length; i++) {
+            values[this.inputs[i]] = inputs[i];
+        }
+        int[] code = this.code;
+        double[] stack = this.stack;
+        int top = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[++top] = constants[code[pc++]];
+                    break;
+                case LOAD:
+                    stack[++top] = values[code[pc++]];
+                    break;
+                case PRE_INC:
+                    stack[++top] = ++values[code[pc++]];
+                    break;
+                case PRE_DEC:
+                    stack[++top] = --values[code[pc++]];
+                    break;
+                case POST_INC:
+                    stack[++top] = values[code[pc++]]++;
+                    break;
+                case POST_DEC:
+                    stack[++top] = values[code[pc++]]--;
+                    break;
+                case NEG:
+                    stack[top] = -stack[top];
+                    break;
+                case ADD:
+                    stack[top - 1] = stack[top - 1] + stack[top];
+                    top--;
+                    break;
+                case SUB:
+                    stack[top - 1] = stack[top - 1] - stack[top];
+                    top--;
+                    break;
+                case MUL:
+                    stack[top - 1] = stack[top - 1] * stack[top];
+                    top--;
+                    break;
+                case DIV:
+                    stack[top - 1] = divide(stack[top - 1], stack[top]);
+                    top--;
+                    break;
+                case REM:
+                    stack[top - 1] = stack[top - 1] % stack[top];
+                    top--;
+                    break;
+                case ASSIGN: {
+                    int variable = code[pc++];
+                    int operator = code[pc++];
+                    if (operator != 0) {
+                        stack[top] = apply(values[variable], stack[top], operator);
+                    }
+                    values[variable] = stack[top];
+                    break;
+                }
+                case POP:
+                    top--;
+                    break;
+                default:
+                    throw new IllegalStateException("Invalid opcode " + code[pc - 1]);
+            }
+        }
+        return values;
+    }
+
+    private double[] runExact(double[] inputs) {
+        IntegerCalculator calc = exact;
+        // Every other variable is assigned before it is read, so the previous run's
+        // values are simply overwritten rather than cleared
+        for (int i = 0; i < inputs.length; i++) {
+            double value = inputs[i];
+            int slot = slots[this.inputs[i]];
+            if (value == Math.rint(value) && Math.abs(value) < 0x1p63) {
+                calc.store.setLong(slot, (long) value);
+            } else {
+                calc.store.set(slot, value);
+            }
+        }
+        for (Expression statement : statements) {
+            calc.run(statement);
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = calc.store.get(slots[i]);
+        }
+        return values;
+    }
+
+    private static double divide(double a, double b) {
+        if (b == 0) {
+            throw new IllegalArgumentException("Division by zero is not allowed.");
+        }
+        return a / b;
+    }
+
+    private static double apply(double a, double b, int operator) {
+        switch (operator) {
+            case '*':
+                return a * b;
+            case '/':
+                return divide(a, b);
+            case '%':
+                return a % b;
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            default:
+                throw new IllegalArgumentException("Invalid operator: " + (char) operator);
+        }
+    }
+
+    /**
+     * @return Names of the inputs of {@link #run(double[])}, in the order it takes them
+     */
+    public String[] getInputs() {
+        String[] result = new String[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            result[i] = names[inputs[i]];
+        }
+        return result;
+    }
+
+    /**
+     * @return Names of all variables, sorted, in the order of the output buffer
+     */
+    public String[] getVariables() {
+        return names.clone();
+    }
+
+    /**
+     * @return Index of a variable in the output buffer, or -1 if the script does not use it
+     */
+    public int indexOf(String name) {
+        int index = Arrays.binarySearch(names, name);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Formats the output buffer of the last run like {@link Calculator#formatOutput},
+     * as if the inputs and the script had been run on an empty calculator.
+     */
+    public String formatOutput() {
+        if (exact != null) {
+            return exact.formatOutput(exact.variables);
+        }
+        return OutputFormatter.format(names, values);
+    }
+
+    /**
+     * Translates statement trees into code, tracking which variables are defined so
+     * far to find the inputs, and the operand stack depth.
+     */
+    private static final class Emitter {
+        private final int[] locals;
+        private final boolean[] defined;
+        private final List<Integer> inputs = new ArrayList<>();
+        private final List<Double> constants = new ArrayList<>();
+        private final HashMap<Long, Integer> constantIndexes = new HashMap<>();
+        private int[] code = new int[64];
+        private int size;
+        private int depth;
+        private int maxStack;
+
+        Emitter(int[] locals, int variables) {
+            this.locals = locals;
+            this.defined = new boolean[variables];
+        }
+
+        /**
+         * Emits a statement tree in evaluation order. Walks the tree with an explicit
+         * stack (see {@link Parser#MAX_HEIGHT}).
+         */
+        void emit(Node root) {
+            ArrayDeque<Node> pending = new ArrayDeque<>();
+            // Per pending node, whether the code of its children has been emitted
+            ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+            pending.push(root);
+            expanded.push(false);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                boolean ready = expanded.pop();
+                if (node instanceof Node.Num) {
+                    constant(((Node.Num) node).value);
+                } else if (node instanceof Node.Ref) {
+                    push(LOAD, read(((Node.Ref) node).slot));
+                } else if (node instanceof Node.Step) {
+                    Node.Step step = (Node.Step) node;
+                    int opcode = step.prefix
+                        ? (step.increment ? PRE_INC : PRE_DEC)
+                        : (step.increment ? POST_INC : POST_DEC);
+                    push(opcode, read(step.slot));
+                } else if (!ready) {
+                    pending.push(node);
+                    expanded.push(true);
+                    if (node instanceof Node.Neg) {
+                        pending.push(((Node.Neg) node).operand);
+                        expanded.push(false);
+                    } else if (node instanceof Node.Binary) {
+                        pending.push(((Node.Binary) node).right);
+                        expanded.push(false);
+                        pending.push(((Node.Binary) node).left);
+                        expanded.push(false);
+                    } else if (node instanceof Node.DivideByZero) {
+                        pending.push(((Node.DivideByZero) node).dividend);
+                        expanded.push(false);
+                    } else if (node instanceof Node.Assign) {
+                        pending.push(((Node.Assign) node).value);
+                        expanded.push(false);
+                    } else {
+                        throw new IllegalArgumentException("Unknown node: " + node.getClass().getSimpleName());
+                    }
+                } else if (node instanceof Node.Neg) {
+                    op(NEG);
+                } else if (node instanceof Node.Binary) {
+                    op(opcode(((Node.Binary) node).op));
+                    depth--;
+                } else if (node instanceof Node.DivideByZero) {
+                    // The dividend ran for its side effects, then the division fails as at run time
+                    constant(0);
+                    op(DIV);
+                    depth--;
+                } else {
+                    Node.Assign assign = (Node.Assign) node;
+                    int variable = assign.op != 0 ? read(assign.slot) : local(assign.slot);
+                    defined[variable] = true;
+                    op(ASSIGN);
+                    append(variable);
+                    append(assign.op);
+                }
+            }
+        }
+
+        private void constant(double value) {
+            Integer index = constantIndexes.get(Double.doubleToRawLongBits(value));
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantIndexes.put(Double.doubleToRawLongBits(value), index);
+            }
+            push(CONST, index);
+        }
+
+        /**
+         * A variable read before any assignment defines it becomes an input.
+         */
+        private int read(int slot) {
+            int variable = local(slot);
+            if (!defined[variable]) {
+                defined[variable] = true;
+                inputs.add(variable);
+            }
+            return variable;
+        }
+
+        private int local(int slot) {
+            return locals[slot];
+        }
+
+        private static int opcode(char operator) {
+            switch (operator) {
+                case '+':
+                    return ADD;
+                case '-':
+                    return SUB;
+                case '*':
+                    return MUL;
+                case '/':
+                    return DIV;
+                case '%':
+                    return REM;
+                default:
+                    throw new IllegalArgumentException("Invalid operator: " + operator);
+            }
+        }
+
+        private void push(int opcode, int operand) {
+            op(opcode);
+            append(operand);
+            depth++;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        void op(int opcode) {
+            append(opcode);
+            if (opcode == POP) {
+                depth--;
+            }
+        }
+
+        private void append(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = value;
+        }
+
+        double[] constants() {
+            double[] result = new double[constants.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = constants.get(i);
+            }
+            return result;
+        }
+
+        int[] inputs() {
+            int[] result = new int[inputs.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = inputs.get(i);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package taboola;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Calculator that keeps the results of a loaded script up to date, like a spreadsheet.
+ *
+ * {@link #load(String[])} runs a script once and records which statement produced every
+ * value each statement reads. After that, {@link #setVariable(String, double)} recomputes
+ * only the statements downstream of the changed variable, in script order, and stops
+ * propagating where a recomputed statement produces the same values as before. The
+ * variables end up exactly as if the script had been run again from the same starting
+ * values with the new one, so a one-variable change in a large model costs time in
+ * proportion to what actually depends on it.
+ *
+ * Only setVariable triggers recomputation. Changing variables in other ways (evaluating
+ * further statements, {@link Var#setValue}, the variables map) after loading is not
+ * tracked and is overwritten by later recomputations of the affected statements.
+ */
+public class ReactiveCalculator extends Calculator {
+    private Dependencies dependencies;
+    // Per statement: value of each slot of its write set after it ran
+    private double[][] results;
+    // Value of each slot before the script ran
+    private double[] inputs;
+    private boolean[] hasInput;
+
+    // Recomputation state, reused between calls
+    private int[] queue = new int[16];
+    private int queued;
+    private boolean[] pending;
+    private int[] touched = new int[16];
+    private int touchedCount;
+    private boolean[] isTouched;
+
+    public ReactiveCalculator() {
+        super();
+    }
+
+    /**
+     * Creates a calculator that looks up compiled expressions in the given cache.
+     *
+     * @param cache Cache to use (may be shared with other calculators), or null to parse on every call
+     */
+    public ReactiveCalculator(ExpressionCache cache) {
+        super(cache);
+    }
+
+    /**
+     * Runs a script like {@link #processExpressions(String[])} and keeps it as the model
+     * that later {@link #setVariable} calls refresh. Replaces any previously loaded script.
+     * If a statement fails, its exception is thrown and no script is loaded.
+     *
+     * @param expressions Array of assignment expressions
+     * @return HashMap of variable names to their Var objects; the same live view stays up to date
+     */
+    public HashMap<String, Var> load(String[] expressions) {
+        dependencies = null;
+        Script script = Script.compile(this, expressions);
+        Dependencies loaded = new Dependencies(script);
+        int limit = script.slotLimit();
+        double[] values = new double[limit];
+        boolean[] defined = new boolean[limit];
+        for (int slot = 0; slot < limit; slot++) {
+            if (store.isDefined(slot)) {
+                values[slot] = store.get(slot);
+                defined[slot] = true;
+            }
+        }
+        double[][] recorded = new double[script.size()][];
+        for (int i = 0; i < script.size(); i++) {
+            script.statements[i].eval(this);
+            recorded[i] = new double[script.writes[i].length];
+            record(script.writes[i], recorded[i]);
+        }
+        inputs = values;
+        hasInput = defined;
+        results = recorded;
+        pending = new boolean[script.size()];
+        isTouched = new boolean[limit];
+        dependencies = loaded;
+        return variables;
+    }
+
+    /**
+     * Sets a variable. If a script is loaded, the statements that depend on the variable's
+     * value before the script are recomputed; a variable the script assigns keeps its
+     * computed value. If a recomputed statement fails, every variable is restored to its
+     * state before this call and the exception is thrown.
+     */
+    @Override
+    public void setVariable(String name, double value) {
+        int slot = symbols.intern(name);
+        if (dependencies == null || slot >= inputs.length) {
+            super.setVariable(name, value);
+            return;
+        }
+        double oldInput = inputs[slot];
+        boolean oldHasInput = hasInput[slot];
+        inputs[slot] = value;
+        hasInput[slot] = true;
+        touch(slot);
+        enqueueAll(dependencies.inputReaders[slot]);
+        // Previous results of the recomputed statements, to roll back on failure
+        int[] undoStatements = new int[16];
+        double[][] undoResults = new double[16][];
+        int undoCount = 0;
+        try {
+            while (queued > 0) {
+                int statement = dequeue();
+                if (undoCount == undoStatements.length) {
+                    undoStatements = Arrays.copyOf(undoStatements, undoCount * 2);
+                    undoResults = Arrays.copyOf(undoResults, undoCount * 2);
+                }
+                undoStatements[undoCount] = statement;
+                undoResults[undoCount++] = results[statement].clone();
+                if (recompute(statement)) {
+                    enqueueAll(dependencies.dependents[statement]);
+                }
+            }
+        } catch (RuntimeException e) {
+            for (int i = undoCount - 1; i >= 0; i--) {
+                results[undoStatements[i]] = undoResults[i];
+            }
+            inputs[slot] = oldInput;
+            hasInput[slot] = oldHasInput;
+            while (queued > 0) {
+                dequeue();
+            }
+            restoreTouched();
+            throw e;
+        }
+        restoreTouched();
+    }
+
+    /**
+     * Runs a statement with the values of its reaching definitions restored.
+     *
+     * @return true if any value it wrote changed
+     */
+    private boolean recompute(int statement) {
+        Script script = dependencies.script;
+        int[] reads = script.reads[statement];
+        for (int k = 0; k < reads.length; k++) {
+            int def = dependencies.readDefs[statement][k];
+            double value = def < 0 ? inputs[reads[k]] : results[def][dependencies.readDefPositions[statement][k]];
+            store.set(reads[k], value);
+            touch(reads[k]);
+        }
+        int[] writes = script.writes[statement];
+        for (int slot : writes) {
+            touch(slot);
+        }
+        script.statements[statement].eval(this);
+        double[] values = results[statement];
+        double[] updated = new double[writes.length];
+        record(writes, updated);
+        results[statement] = updated;
+        for (int k = 0; k < writes.length; k++) {
+            if (Double.doubleToRawLongBits(updated[k]) != Double.doubleToRawLongBits(values[k])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void record(int[] writes, double[] values) {
+        for (int k = 0; k < writes.length; k++) {
+            values[k] = store.get(writes[k]);
+        }
+    }
+
+    private void touch(int slot) {
+        if (!isTouched[slot]) {
+            isTouched[slot] = true;
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = slot;
+        }
+    }
+
+    /**
+     * Sets every slot used during recomputation to its value after the whole script.
+     */
+    private void restoreTouched() {
+        for (int i = 0; i < touchedCount; i++) {
+            int slot = touched[i];
+            isTouched[slot] = false;
+            int writer = dependencies.lastWriter[slot];
+            if (writer >= 0) {
+                store.set(slot, results[writer][dependencies.lastWriterPosition[slot]]);
+            } else if (hasInput[slot]) {
+                store.set(slot, inputs[slot]);
+            }
+        }
+        touchedCount = 0;
+    }
+
+    private void enqueueAll(int[] statements) {
+        for (int statement : statements) {
+            if (!pending[statement]) {
+                pending[statement] = true;
+                enqueue(statement);
+            }
+        }
+    }
+
+    // Binary min-heap of statement indexes, so statements run in script order
+
+    private void enqueue(int statement) {
+        if (queued == queue.length) {
+            queue = Arrays.copyOf(queue, queued * 2);
+        }
+        int i = queued++;
+        while (i > 0 && queue[(i - 1) >>> 1] > statement) {
+            queue[i] = queue[(i - 1) >>> 1];
+            i = (i - 1) >>> 1;
+        }
+        queue[i] = statement;
+    }
+
+    private int dequeue() {
+        int first = queue[0];
+        pending[first] = false;
+        int last = queue[--queued];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= queued) {
+                break;
+            }
+            if (child + 1 < queued && queue[child + 1] < queue[child]) {
+                child++;
+            }
+            if (queue[child] >= last) {
+                break;
+            }
+            queue[i] = queue[child];
+            i = child;
+        }
+        queue[i] = last;
+        return first;
+    }
+}
@@ -0,0 +1,223 @@
+package taboola;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A script compiled statement by statement, together with the variables each
+ * statement reads and writes.
+ *
+ * The read and write sets include the hidden effects of the operators: x++ and --x
+ * both read and write x, and a compound assignment such as i += y reads i as well as
+ * writing it. They are the basis for the analyses that reorder, share or skip
+ * statements while keeping results identical to running them in order.
+ */
+final class Script {
+    final Expression[] statements;
+    // Sorted, distinct slots per statement
+    final int[][] reads;
+    final int[][] writes;
+    // Exception of the first statement that did not compile; statements holds the ones before it
+    private final RuntimeException compileError;
+
+    private Script(Expression[] statements, RuntimeException compileError) {
+        this.statements = statements;
+        this.compileError = compileError;
+        this.reads = new int[statements.length][];
+        this.writes = new int[statements.length][];
+        SlotSet readSet = new SlotSet();
+        SlotSet writeSet = new SlotSet();
+        for (int i = 0; i < statements.length; i++) {
+            readSet.clear();
+            writeSet.clear();
+            collect(statements[i].root, readSet, writeSet);
+            reads[i] = readSet.toArray();
+            writes[i] = writeSet.toArray();
+        }
+    }
+
+    /**
+     * Compiles the non-blank statements of a script, trimmed as in
+     * {@link Calculator#processExpressions(String[])}.
+     *
+     * @param calc Calculator whose expression cache is used
+     * @param expressions Script statements
+     * @return The compiled script
+     */
+    static Script compile(Calculator calc, String[] expressions) {
+        Script script = compileUntilError(calc, expressions);
+        script.throwCompileError();
+        return script;
+    }
+
+    /**
+     * Compiles the non-blank statements of a script up to the first one that does not
+     * compile. Running them and then calling {@link #throwCompileError()} fails like
+     * {@link Calculator#processExpressions(String[])}, after the statements before the
+     * syntax error have taken effect.
+     *
+     * @param calc Calculator whose expression cache is used
+     * @param expressions Script statements
+     * @return The compiled statements before the first syntax error
+     */
+    static Script compileUntilError(Calculator calc, String[] expressions) {
+        List<Expression> statements = new ArrayList<>(expressions.length);
+        RuntimeException error = null;
+        for (String expression : expressions) {
+            expression = expression.trim();
+            if (!expression.isEmpty()) {
+                try {
+                    statements.add(calc.compile(expression));
+                } catch (RuntimeException e) {
+                    error = e;
+                    break;
+                }
+            }
+        }
+        return new Script(statements.toArray(new Expression[0]), error);
+    }
+
+    /**
+     * Throws the exception of the statement that stopped {@link #compileUntilError}, if any.
+     */
+    void throwCompileError() {
+        if (compileError != null) {
+            throw compileError;
+        }
+    }
+
+    int size() {
+        return statements.length;
+    }
+
+    /**
+     * @return One more than the highest slot the script touches
+     */
+    int slotLimit() {
+        int limit = 0;
+        for (int i = 0; i < statements.length; i++) {
+            for (int slot : reads[i]) {
+                limit = Math.max(limit, slot + 1);
+            }
+            for (int slot : writes[i]) {
+                limit = Math.max(limit, slot + 1);
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Groups statements into levels such that statements in the same level touch no
+     * variable that another statement of that level writes, and every statement comes
+     * after all earlier statements it conflicts with (read-after-write, write-after-read
+     * and write-after-write). Running the levels in order, with any order or degree of
+     * parallelism inside a level, gives the same final state as running the script in order.
+     *
+     * @return Statement indexes per level, in ascending order inside each level
+     */
+    int[][] levels() {
+        int limit = slotLimit();
+        int[] lastWriter = new int[limit];
+        Arrays.fill(lastWriter, -1);
+        // Highest level among the readers of each slot since its last write
+        int[] readerLevel = new int[limit];
+        Arrays.fill(readerLevel, -1);
+        int[] level = new int[statements.length];
+        int levelCount = 0;
+        for (int i = 0; i < statements.length; i++) {
+            int depth = -1;
+            for (int slot : reads[i]) {
+                if (lastWriter[slot] >= 0) {
+                    depth = Math.max(depth, level[lastWriter[slot]]);
+                }
+            }
+            for (int slot : writes[i]) {
+                if (lastWriter[slot] >= 0) {
+                    depth = Math.max(depth, level[lastWriter[slot]]);
+                }
+                depth = Math.max(depth, readerLevel[slot]);
+            }
+            level[i] = depth + 1;
+            levelCount = Math.max(levelCount, level[i] + 1);
+            for (int slot : reads[i]) {
+                readerLevel[slot] = Math.max(readerLevel[slot], level[i]);
+            }
+            for (int slot : writes[i]) {
+                lastWriter[slot] = i;
+                readerLevel[slot] = -1;
+            }
+        }
+        int[] counts = new int[levelCount];
+        for (int l : level) {
+            counts[l]++;
+        }
+        int[][] levels = new int[levelCount][];
+        for (int l = 0; l < levelCount; l++) {
+            levels[l] = new int[counts[l]];
+            counts[l] = 0;
+        }
+        for (int i = 0; i < statements.length; i++) {
+            levels[level[i]][counts[level[i]]++] = i;
+        }
+        return levels;
+    }
+
+    /**
+     * Adds the slots read and written by a tree to the given sets.
+     */
+    static void collect(Node node, SlotSet reads, SlotSet writes) {
+        if (node instanceof Node.Ref) {
+            reads.add(((Node.Ref) node).slot);
+        } else if (node instanceof Node.Step) {
+            reads.add(((Node.Step) node).slot);
+            writes.add(((Node.Step) node).slot);
+        } else if (node instanceof Node.Neg) {
+            collect(((Node.Neg) node).operand, reads, writes);
+        } else if (node instanceof Node.Binary) {
+            collect(((Node.Binary) node).left, reads, writes);
+            collect(((Node.Binary) node).right, reads, writes);
+        } else if (node instanceof Node.DivideByZero) {
+            collect(((Node.DivideByZero) node).dividend, reads, writes);
+        } else if (node instanceof Node.Assign) {
+            Node.Assign assign = (Node.Assign) node;
+            collect(assign.value, reads, writes);
+            if (assign.op != 0) {
+                reads.add(assign.slot);
+            }
+            writes.add(assign.slot);
+        } else if (!(node instanceof Node.Num)) {
+            throw new IllegalArgumentException("Unknown node: " + node.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Small growable set of slots.
+     */
+    static final class SlotSet {
+        private int[] slots = new int[8];
+        private int size;
+
+        void add(int slot) {
+            for (int i = 0; i < size; i++) {
+                if (slots[i] == slot) {
+                    return;
+                }
+            }
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] toArray() {
+            int[] result = Arrays.copyOf(slots, size);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package taboola;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Executes scripts statement by statement (one per line) straight from a Reader or a file,
+ * without materializing the script as a String[].
+ *
+ * Memory use is bounded by the buffer (or mapping window) and the longest line, not by
+ * the length of the script. Statements are parsed directly from the buffer and are not
+ * added to the expression cache, so a long script of one-off lines does not evict the
+ * hot entries of other callers.
+ */
+final class ScriptStream {
+    private static final int READ_BUFFER = 8192;
+    // Files are mapped in windows of this size; a longer line grows the window
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+
+    private ScriptStream() {
+    }
+
+    /**
+     * Runs every non-blank line of the reader as a statement.
+     *
+     * @param calc Calculator to run against
+     * @param reader Script source; not closed
+     */
+    static void run(Calculator calc, Reader reader) throws IOException {
+        char[] buffer = new char[READ_BUFFER];
+        int length = 0;
+        int read;
+        while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            int lineStart = 0;
+            for (int i = length - read; i < length; i++) {
+                if (buffer[i] == '\n') {
+                    execute(calc, buffer, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            // Move the unfinished line to the front, growing the buffer only for very long lines
+            length -= lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, length);
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        execute(calc, buffer, 0, length);
+    }
+
+    private static void execute(Calculator calc, char[] buffer, int start, int end) {
+        // Same trimming as String.trim() in Calculator.processExpressions(String[])
+        while (start < end && buffer[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buffer[end - 1] <= ' ') {
+            end--;
+        }
+        if (start < end) {
+            calc.execute(CharBuffer.wrap(buffer, start, end - start));
+        }
+    }
+
+    /**
+     * Runs every non-blank line of an ASCII file as a statement, decoding directly
+     * from memory-mapped windows of the file.
+     *
+     * @param calc Calculator to run against
+     * @param path Script file
+     */
+    static void run(Calculator calc, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            int window = MAP_WINDOW;
+            AsciiSequence line = new AsciiSequence();
+            while (position < size) {
+                int length = (int) Math.min(window, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (buffer.get(i) == '\n') {
+                        execute(calc, line, buffer, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                if (last) {
+                    execute(calc, line, buffer, lineStart, length);
+                    lineStart = length;
+                } else if (lineStart == 0) {
+                    // A single line longer than the window; retry with a larger one
+                    window = (int) Math.min(Integer.MAX_VALUE - 8, (long) window * 2);
+                    continue;
+                }
+                position += lineStart;
+            }
+        }
+    }
+
+    private static void execute(Calculator calc, AsciiSequence line, ByteBuffer buffer, int start, int end) {
+        while (start < end && isBlank(buffer.get(start))) {
+            start++;
+        }
+        while (end > start && isBlank(buffer.get(end - 1))) {
+            end--;
+        }
+        if (start < end) {
+            line.reset(buffer, start, end);
+            calc.execute(line);
+        }
+    }
+
+    private static boolean isBlank(byte b) {
+        return (b & 0xff) <= ' ';
+    }
+
+    /**
+     * Zero-copy view of a range of ASCII bytes as characters. Reused for every line.
+     */
+    private static final class AsciiSequence implements CharSequence {
+        private ByteBuffer buffer;
+        private int start;
+        private int end;
+
+        void reset(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(start + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            AsciiSequence sequence = new AsciiSequence();
+            sequence.reset(buffer, start + from, start + to);
+            return sequence;
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
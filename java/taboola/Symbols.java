@@ -0,0 +1,79 @@
+package taboola;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table that interns each variable name once into a dense int slot.
+ *
+ * Compiled expressions refer to variables by slot, so evaluation indexes straight into
+ * the calculator's value array instead of hashing names. Every calculator and
+ * expression cache created through the public API uses the process-wide
+ * {@link #GLOBAL} table, so the same compiled tree can be evaluated against any of
+ * them; slots there are never reused, and the table grows with the names the process's
+ * own code uses. Names that come from outside the process go into a table of their own
+ * with a limit, such as one per server session, which is dropped together with the
+ * calculator and cache using it.
+ */
+final class Symbols {
+    static final Symbols GLOBAL = new Symbols(Integer.MAX_VALUE);
+
+    private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    private final int limit;
+    private volatile String[] names = new String[64];
+    private int count;
+
+    /**
+     * @param limit Most names the table may hold
+     */
+    Symbols(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the slot of a name, assigning the next free slot on first use.
+     *
+     * @param name Variable name
+     * @return The name's slot
+     * @throws IllegalArgumentException If the name is new and the table is full
+     */
+    int intern(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (this) {
+            slot = slots.get(name);
+            if (slot != null) {
+                return slot;
+            }
+            if (count == limit) {
+                throw new IllegalArgumentException("Too many variable names.");
+            }
+            int next = count++;
+            if (next == names.length) {
+                names = Arrays.copyOf(names, next * 2);
+            }
+            names[next] = name;
+            slots.put(name, next);
+            return next;
+        }
+    }
+
+    /**
+     * @param name Variable name
+     * @return The name's slot, or -1 if the name has never been interned
+     */
+    int find(String name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * @param slot A slot returned by {@link #intern(String)}
+     * @return The name interned into that slot
+     */
+    String name(int slot) {
+        return names[slot];
+    }
+}
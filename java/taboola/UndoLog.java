@@ -0,0 +1,107 @@
+package taboola;
+
+import java.util.Arrays;
+
+/**
+ * Undo log of an open transaction on a {@link VariableStore}.
+ *
+ * While a log is attached, the store records the previous state of a slot (undefined,
+ * a double, or an exact integer) before every change. Rolling back to a mark restores
+ * those states newest first, so it costs time in proportion to the writes since the
+ * mark, not to the number of variables. Marks are kept as a stack of savepoints: one
+ * per {@link Calculator#begin()}, plus a temporary one around each statement.
+ */
+final class UndoLog {
+    private static final byte UNDEFINED = 0;
+    private static final byte DOUBLE = 1;
+    private static final byte INTEGER = 2;
+
+    private int[] slots = new int[64];
+    private long[] values = new long[64];
+    private byte[] states = new byte[64];
+    private int size;
+    private int[] savepoints = new int[8];
+    private int depth;
+
+    /**
+     * Records the current state of a slot before the store changes it.
+     */
+    void record(VariableStore store, int slot) {
+        if (size == slots.length) {
+            int capacity = size * 2;
+            slots = Arrays.copyOf(slots, capacity);
+            values = Arrays.copyOf(values, capacity);
+            states = Arrays.copyOf(states, capacity);
+        }
+        slots[size] = slot;
+        if (!store.isDefined(slot)) {
+            states[size] = UNDEFINED;
+        } else if (store.isInteger(slot)) {
+            states[size] = INTEGER;
+            values[size] = store.getLong(slot);
+        } else {
+            states[size] = DOUBLE;
+            values[size] = Double.doubleToRawLongBits(store.get(slot));
+        }
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    void savepoint() {
+        if (depth == savepoints.length) {
+            savepoints = Arrays.copyOf(savepoints, depth * 2);
+        }
+        savepoints[depth++] = size;
+    }
+
+    /**
+     * Drops the innermost savepoint, keeping its changes in the enclosing one.
+     */
+    void release() {
+        depth--;
+        if (depth == 0) {
+            size = 0;
+        }
+    }
+
+    /**
+     * Undoes the changes since the innermost savepoint and drops it.
+     */
+    void rollback(VariableStore store) {
+        rollback(store, savepoints[--depth]);
+    }
+
+    /**
+     * Undoes the changes recorded after the mark, newest first. The store must not be
+     * logging into this log while it restores.
+     *
+     * @param store Store the log belongs to
+     * @param mark Value of {@link #size()} to return to
+     */
+    void rollback(VariableStore store, int mark) {
+        UndoLog log = store.undo;
+        store.undo = null;
+        try {
+            for (int i = size - 1; i >= mark; i--) {
+                int slot = slots[i];
+                if (states[i] == UNDEFINED) {
+                    store.remove(slot);
+                } else if (states[i] == INTEGER) {
+                    store.setLong(slot, values[i]);
+                } else {
+                    store.set(slot, Double.longBitsToDouble(values[i]));
+                }
+            }
+            size = mark;
+        } finally {
+            store.undo = log;
+        }
+    }
+}
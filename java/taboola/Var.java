@@ -3,10 +3,21 @@ package taboola;
 public class Var {
     String name;
     Double value;
+    // Set for the views handed out by a Calculator; the value then lives in the store
+    final VariableStore store;
+    final int slot;
 
     public Var(String name, Double value) {
         this.name = name;
         this.value = value;
+        this.store = null;
+        this.slot = -1;
+    }
+
+    Var(String name, VariableStore store, int slot) {
+        this.name = name;
+        this.store = store;
+        this.slot = slot;
     }
 
     public String getName() {
@@ -14,15 +25,40 @@ public class Var {
     }
 
     public Double getValue() {
-        return value;
+        return store != null ? store.get(slot) : value;
+    }
+
+    /**
+     * @return The value without boxing
+     */
+    double value() {
+        return store != null ? store.get(slot) : value;
+    }
+
+    /**
+     * @return true if the variable holds an exact integer of an {@link IntegerCalculator}
+     */
+    public boolean isInteger() {
+        return store != null && store.isInteger(slot);
+    }
+
+    /**
+     * @return The exact value of an integer variable; for other variables the value cast to long
+     */
+    public long getLongValue() {
+        return store != null ? store.getLong(slot) : (long) value.doubleValue();
     }
 
     public void setValue(Double value) {
-        this.value = value;
+        if (store != null) {
+            store.set(slot, value);
+        } else {
+            this.value = value;
+        }
     }
 
     public String toString() {
-        return "Var{name='" + name + "', value=" + value + "}";
+        return "Var{name='" + name + "', value=" + getValue() + "}";
     }
 
 }
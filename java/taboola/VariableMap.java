@@ -0,0 +1,118 @@
+package taboola;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Map view of a {@link VariableStore}, kept for callers of
+ * {@link Calculator#processExpressions(String[])} and {@link Calculator#formatOutput(HashMap)}.
+ *
+ * Every entry is the store's live {@link Var} view of a defined slot. put, putAll,
+ * remove and clear are routed through the store, so after {@code put(name, var)} the
+ * map holds the store's view carrying var's value rather than var itself.
+ * Other mutators (e.g. compute, merge, iterator removal) bypass the store and must not be used.
+ */
+final class VariableMap extends HashMap<String, Var> {
+    private static final long serialVersionUID = 1L;
+
+    private static final Comparator<Var> BY_NAME = Comparator.comparing(Var::getName);
+
+    private final transient VariableStore store;
+    // Views sorted by name, plus the views registered since they were last sorted
+    private transient Var[] sorted = new Var[0];
+    private transient Var[] added = new Var[16];
+    private transient int addedCount;
+    private transient boolean removed;
+
+    VariableMap(VariableStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Var put(String name, Var var) {
+        Var previous = get(name);
+        store.set(store.symbols.intern(name), var.getValue());
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Var> variables) {
+        for (Map.Entry<? extends String, ? extends Var> entry : variables.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Var remove(Object name) {
+        Var previous = get(name);
+        if (previous != null) {
+            store.remove(store.symbols.find((String) name));
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        store.clear();
+    }
+
+    void register(String name, Var var) {
+        if (super.put(name, var) != null) {
+            removed = true;
+        } else if (!removed) {
+            if (addedCount == added.length) {
+                added = Arrays.copyOf(added, addedCount * 2);
+            }
+            added[addedCount++] = var;
+        }
+    }
+
+    void unregister(String name) {
+        if (super.remove(name) != null) {
+            removed = true;
+        }
+    }
+
+    void unregisterAll() {
+        super.clear();
+        sorted = new Var[0];
+        Arrays.fill(added, 0, addedCount, null);
+        addedCount = 0;
+        removed = false;
+    }
+
+    /**
+     * Returns the views sorted by name. Views defined since the last call are sorted on
+     * their own and merged in, so a call costs O(n + k log k) for k new variables rather
+     * than a full sort; only removals make the next call rebuild the order from scratch.
+     *
+     * @return The views in name order; shared, must not be modified
+     */
+    synchronized Var[] sortedVars() {
+        if (removed) {
+            sorted = values().toArray(new Var[0]);
+            Arrays.sort(sorted, BY_NAME);
+            Arrays.fill(added, 0, addedCount, null);
+            addedCount = 0;
+            removed = false;
+        } else if (addedCount > 0) {
+            Arrays.sort(added, 0, addedCount, BY_NAME);
+            Var[] merged = new Var[sorted.length + addedCount];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < merged.length; k++) {
+                if (j == addedCount || (i < sorted.length && sorted[i].getName().compareTo(added[j].getName()) < 0)) {
+                    merged[k] = sorted[i++];
+                } else {
+                    merged[k] = added[j++];
+                }
+            }
+            sorted = merged;
+            Arrays.fill(added, 0, addedCount, null);
+            addedCount = 0;
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,186 @@
+package taboola;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary snapshot of a calculator's variables, for restoring state without replaying
+ * the script that produced it.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int    magic "TBVS"
+ *   int    format version
+ *   int    variable count n
+ *   int    length of the name table in bytes
+ *   name table: per variable, an int byte length and the UTF-8 name, in name order
+ *   padding to a multiple of 8 bytes
+ *   long[n] values: the double's bits, or the exact value of an integer variable
+ *   byte[(n + 7) / 8] integer flags, one bit per variable
+ *   int    CRC-32C of everything before it
+ * </pre>
+ * Restoring maps the file and reads it in place, so it costs one pass over the file
+ * plus one store per variable, regardless of how many statements built the values.
+ */
+final class VariableSnapshot {
+    private static final int MAGIC = 0x54425653;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+
+    private VariableSnapshot() {
+    }
+
+    /**
+     * Writes the calculator's variables to a file. The file is written under a temporary
+     * name and then moved into place, so readers never see a partial snapshot.
+     *
+     * @param calc Calculator to save
+     * @param file Destination; replaced if it exists
+     */
+    static void save(Calculator calc, Path file) throws IOException {
+        Var[] vars;
+        long[] values;
+        boolean[] integers;
+        // Consistent with concurrent definitions, like ConcurrentCalculator.snapshot()
+        synchronized (calc.variables) {
+            vars = calc.store.map.sortedVars().clone();
+            values = new long[vars.length];
+            integers = new boolean[vars.length];
+            for (int i = 0; i < vars.length; i++) {
+                integers[i] = vars[i].isInteger();
+                values[i] = integers[i] ? vars[i].getLongValue() : Double.doubleToRawLongBits(vars[i].value());
+            }
+        }
+        byte[][] names = new byte[vars.length][];
+        long namesLength = 0;
+        for (int i = 0; i < vars.length; i++) {
+            names[i] = vars[i].getName().getBytes(StandardCharsets.UTF_8);
+            namesLength += 4 + names[i].length;
+        }
+        long size = align(HEADER + namesLength) + 8L * vars.length + (vars.length + 7) / 8 + 4;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many variables for a snapshot: " + vars.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(vars.length).putInt((int) namesLength);
+        for (byte[] name : names) {
+            buffer.putInt(name.length).put(name);
+        }
+        buffer.position((int) align(buffer.position()));
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+        byte[] flags = new byte[(vars.length + 7) / 8];
+        for (int i = 0; i < vars.length; i++) {
+            if (integers[i]) {
+                flags[i >>> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        buffer.put(flags);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            try {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Replaces the calculator's variables with those of a snapshot. The whole file is
+     * validated first; if it is not a valid snapshot the variables are left unchanged.
+     *
+     * @param calc Calculator to restore into
+     * @param file Snapshot written by {@link #save}
+     * @throws IOException If the file cannot be read or is not a valid snapshot
+     */
+    static void restore(Calculator calc, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER + 4 || size > Integer.MAX_VALUE) {
+                throw invalid(file, "unexpected size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                throw invalid(file, "not a snapshot");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw invalid(file, "unsupported version " + buffer.getInt(4));
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice(0, (int) size - 4));
+            if ((int) crc.getValue() != buffer.getInt((int) size - 4)) {
+                throw invalid(file, "checksum mismatch");
+            }
+            int count = buffer.getInt(8);
+            int namesLength = buffer.getInt(12);
+            long valuesStart = align(HEADER + (long) namesLength);
+            if (count < 0 || namesLength < 0
+                    || valuesStart + 8L * count + (count + 7) / 8 + 4 != size) {
+                throw invalid(file, "inconsistent header");
+            }
+            int[] slots = new int[count];
+            int position = HEADER;
+            byte[] bytes = new byte[64];
+            for (int i = 0; i < count; i++) {
+                int length = position + 4 <= HEADER + namesLength ? buffer.getInt(position) : -1;
+                if (length <= 0 || length > HEADER + namesLength - position - 4) {
+                    throw invalid(file, "corrupt name table");
+                }
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                buffer.get(position + 4, bytes, 0, length);
+                slots[i] = calc.symbols.intern(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                position += 4 + length;
+            }
+            if (position != HEADER + namesLength) {
+                throw invalid(file, "corrupt name table");
+            }
+            int flagsStart = (int) (valuesStart + 8L * count);
+            synchronized (calc.variables) {
+                calc.store.clear();
+                for (int i = 0; i < count; i++) {
+                    long value = buffer.getLong((int) valuesStart + 8 * i);
+                    if ((buffer.get(flagsStart + (i >>> 3)) & (1 << (i & 7))) != 0) {
+                        calc.store.setLong(slots[i], value);
+                    } else {
+                        calc.store.set(slots[i], Double.longBitsToDouble(value));
+                    }
+                }
+            }
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private static IOException invalid(Path file, String reason) {
+        return new IOException("Invalid snapshot " + file + ": " + reason);
+    }
+}
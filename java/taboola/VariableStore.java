@@ -0,0 +1,118 @@
+package taboola;
+
+/**
+ * Slot-indexed variable values of one Calculator.
+ *
+ * Slots are handed out by the calculator's {@link Symbols} table, so reads and writes
+ * from compiled expressions index straight into the store without hashing names. The
+ * process-wide table is shared by all calculators, so stores keep slots in chunks
+ * allocated on first use rather than in arrays as long as the highest slot. Each
+ * defined slot also has one {@link Var} view, created when the variable is first
+ * assigned, which reads and writes through to the store; those views back the
+ * calculator's {@link VariableMap}.
+ */
+abstract class VariableStore {
+    final Symbols symbols;
+    final VariableMap map = new VariableMap(this);
+    // Receives every change while attached, see Calculator#setJournal
+    volatile Journal journal;
+    // Receives the previous state of every changed slot while a transaction is open
+    UndoLog undo;
+
+    VariableStore(Symbols symbols) {
+        this.symbols = symbols;
+    }
+
+    abstract boolean isDefined(int slot);
+
+    /**
+     * @param slot Slot of a defined variable
+     * @return The variable's value
+     */
+    abstract double get(int slot);
+
+    /**
+     * Stores a value, defining the variable if needed.
+     *
+     * @param slot Variable slot
+     * @param value New value
+     */
+    abstract void set(int slot, double value);
+
+    /**
+     * @param slot Slot of a defined variable
+     * @return true if the variable holds an exact integer, see {@link #getLong(int)}
+     */
+    boolean isInteger(int slot) {
+        return false;
+    }
+
+    /**
+     * @param slot Slot of a variable for which {@link #isInteger(int)} is true
+     * @return The variable's exact value
+     */
+    long getLong(int slot) {
+        return (long) get(slot);
+    }
+
+    /**
+     * Stores an integer, defining the variable if needed. Stores that do not keep exact
+     * integers store it as a double.
+     *
+     * @param slot Variable slot
+     * @param value New value
+     */
+    void setLong(int slot, long value) {
+        set(slot, (double) value);
+    }
+
+    /**
+     * Removes a variable so that it is undefined again.
+     *
+     * @param slot Variable slot
+     */
+    abstract void remove(int slot);
+
+    /**
+     * Removes all variables.
+     */
+    abstract void clear();
+
+    /**
+     * Allocates the storage of a slot up front, so that defining it later does not
+     * reallocate storage other threads may be using.
+     *
+     * @param slot Slot that will be defined
+     */
+    abstract void reserve(int slot);
+
+    /**
+     * Creates the Var view of a newly defined slot and adds it to the map.
+     *
+     * @param slot Variable slot
+     * @return The new view
+     */
+    Var newView(int slot) {
+        if (Metrics.enabled) {
+            Metrics.count(Metrics.Counter.VARIABLES_CREATED);
+        }
+        Var var = new Var(symbols.name(slot), this, slot);
+        // Only the first assignment of a variable gets here; the lock keeps the
+        // map consistent when variables are defined from several threads
+        synchronized (map) {
+            map.register(var.getName(), var);
+        }
+        return var;
+    }
+
+    /**
+     * Removes the view of a slot from the map.
+     *
+     * @param var The slot's view
+     */
+    void dropView(Var var) {
+        synchronized (map) {
+            map.unregister(var.getName());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package taboola;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * Dependency-free fallback for {@link CalculatorBenchmark}: runs the same benchmarks over
+ * the same {@link Workloads} with a simple timed loop, and prints throughput, average
+ * time and bytes allocated per operation in the layout of jmh/baseline.txt.
+ *
+ * Numbers from this runner are less rigorous than JMH's (one JVM, no forks, no dead-code
+ * guard beyond consuming results), but they are comparable with each other, so they catch
+ * regressions where JMH is not available:
+ *
+ *   javac -d out java/taboola/*.java jmh/taboola/Workloads.java jmh/taboola/BaselineRunner.java
+ *   java -cp out taboola.BaselineRunner
+ */
+final class BaselineRunner {
+    private static final long WARMUP_NANOS = 3_000_000_000L;
+    private static final long MEASURE_NANOS = 3_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Consumed results, so the JIT cannot drop the benchmarked calls
+    private static int sink;
+
+    private BaselineRunner() {
+    }
+
+    /**
+     * A benchmarked call, returning something derived from its result so it cannot be dropped.
+     */
+    private interface Operation {
+        int run();
+    }
+
+    public static void main(String[] args) {
+        System.out.println(String.format("%-20s %-16s %6s %14s %12s %12s",
+                                         "Benchmark", "Shape", "Size", "ops/us", "us/op", "B/op"));
+        for (Workloads.Shape shape : Workloads.Shape.values()) {
+            for (int size : new int[] {16, 256}) {
+                Calculator calc = new Calculator();
+                Workloads.seed(calc, size);
+                String expression = Workloads.expression(shape, size);
+                measure("evaluate", shape.name(), size, () -> (int) calc.evaluate(expression));
+            }
+        }
+        for (Workloads.Shape shape : Workloads.Shape.values()) {
+            for (int size : new int[] {16, 256}) {
+                String[] script = Workloads.script(shape, size);
+                measure("processExpressions", shape.name(), size, () -> {
+                    Calculator calc = new Calculator();
+                    Workloads.seed(calc, size);
+                    return calc.processExpressions(script).size();
+                });
+            }
+        }
+        for (int depth : new int[] {8, 64}) {
+            Calculator calc = new Calculator();
+            String expression = Workloads.brackets(depth);
+            measure("openBrackets", "-", depth, () -> calc.openBrackets(expression).length());
+        }
+        for (int variables : new int[] {100, 10000}) {
+            Calculator calc = new Calculator();
+            HashMap<String, Var> results = Workloads.results(variables);
+            measure("formatOutput", "-", variables, () -> calc.formatOutput(results).length());
+        }
+    }
+
+    private static void measure(String benchmark, String shape, int size, Operation operation) {
+        run(operation, WARMUP_NANOS);
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long operations = run(operation, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        double microsPerOp = elapsed / 1000.0 / operations;
+        System.out.println(String.format("%-20s %-16s %6d %14.3f %12.3f %12.0f", benchmark, shape, size,
+                                         1 / microsPerOp, microsPerOp, (double) allocated / operations));
+    }
+
+    private static long run(Operation operation, long nanos) {
+        long operations = 0;
+        long deadline = System.nanoTime() + nanos;
+        do {
+            // Check the clock every 64 operations to keep its cost out of fast benchmarks
+            for (int i = 0; i < 64; i++) {
+                sink += operation.run();
+            }
+            operations += 64;
+        } while (System.nanoTime() < deadline);
+        return operations;
+    }
+}
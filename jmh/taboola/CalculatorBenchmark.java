@@ -0,0 +1,129 @@
+package taboola;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for evaluate, processExpressions, openBrackets and formatOutput over
+ * the workloads in {@link Workloads}. Each benchmark reports throughput and average time;
+ * {@link #main(String[])} also enables the GC profiler for allocation rates
+ * (gc.alloc.rate.norm is bytes allocated per operation).
+ *
+ * The benchmark sources live outside java/ because they need JMH. To run them, compile
+ * both source roots with jmh-core and jmh-generator-annprocess on the classpath (the
+ * annotation processor generates the benchmark list) and start this class:
+ *
+ *   javac -cp "$JMH_CP" -d out java/taboola/*.java jmh/taboola/*.java
+ *   java -cp "out:$JMH_CP" taboola.CalculatorBenchmark
+ *
+ * Results are written to jmh-result.json. Compare them with jmh/baseline.txt, or rerun
+ * {@link BaselineRunner} when JMH is not available.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalculatorBenchmark {
+
+    @State(Scope.Thread)
+    public static class Expressions {
+        @Param({"SHORT", "LONG", "NESTED", "MANY_VARIABLES", "INCREMENTS", "COMPOUND"})
+        public Workloads.Shape shape;
+
+        @Param({"16", "256"})
+        public int size;
+
+        Calculator calc;
+        String expression;
+        String[] script;
+
+        @Setup
+        public void setUp() {
+            calc = new Calculator();
+            Workloads.seed(calc, size);
+            expression = Workloads.expression(shape, size);
+            script = Workloads.script(shape, size);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Brackets {
+        @Param({"8", "64"})
+        public int depth;
+
+        Calculator calc;
+        String expression;
+
+        @Setup
+        public void setUp() {
+            calc = new Calculator();
+            expression = Workloads.brackets(depth);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Results {
+        @Param({"100", "10000"})
+        public int variables;
+
+        Calculator calc;
+        HashMap<String, Var> results;
+
+        @Setup
+        public void setUp() {
+            calc = new Calculator();
+            results = Workloads.results(variables);
+        }
+    }
+
+    @Benchmark
+    public double evaluate(Expressions state) {
+        return state.calc.evaluate(state.expression);
+    }
+
+    @Benchmark
+    public HashMap<String, Var> processExpressions(Expressions state) {
+        // A fresh calculator per script, as callers use it
+        Calculator calc = new Calculator();
+        Workloads.seed(calc, state.size);
+        return calc.processExpressions(state.script);
+    }
+
+    @Benchmark
+    public String openBrackets(Brackets state) {
+        return state.calc.openBrackets(state.expression);
+    }
+
+    @Benchmark
+    public String formatOutput(Results state) {
+        return state.calc.formatOutput(state.results);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(CalculatorBenchmark.class.getName())
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result("jmh-result.json")
+            .build();
+        new Runner(options).run();
+    }
+}
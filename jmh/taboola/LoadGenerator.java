@@ -0,0 +1,149 @@
+package taboola;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for {@link CalculatorServer}: sends single-statement requests
+ * at a fixed target rate over pipelined connections and prints latency percentiles.
+ *
+ * Latency is measured from the time each request was scheduled to be sent, not from when
+ * it actually went out, so a stalled server shows up in the percentiles instead of
+ * silently lowering the offered rate (coordinated omission). Without an address it starts
+ * a server on loopback in the same JVM:
+ *
+ *   javac -d out java/taboola/*.java jmh/taboola/LoadGenerator.java
+ *   java -cp out taboola.LoadGenerator [rate/s] [seconds] [connections] [host:port]
+ */
+final class LoadGenerator {
+    private static final String[] STATEMENTS = {
+        "i = 0",
+        "j = ++i",
+        "x = i++ + 5",
+        "y = (5 + 3) * 10",
+        "i += y",
+        "z = x * y - j / 2",
+    };
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        CalculatorServer server = null;
+        InetSocketAddress address;
+        if (args.length > 3) {
+            String[] hostPort = args[3].split(":");
+            address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        } else {
+            server = CalculatorServer.start(new InetSocketAddress("127.0.0.1", 0));
+            address = server.getAddress();
+        }
+        try {
+            // Warm up at the same rate, then measure
+            run(address, rate, Math.max(1, seconds / 5), connections);
+            long[] latencies = run(address, rate, seconds, connections);
+            report(rate, seconds, latencies);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Offers rate requests per second for the given time, spread over the connections.
+     *
+     * @return Latency of every request in nanoseconds, sorted
+     */
+    static long[] run(InetSocketAddress address, int rate, int seconds, int connections) throws Exception {
+        int perConnection = (int) ((long) rate * seconds / connections);
+        long interval = 1_000_000_000L * connections / rate;
+        long[][] latencies = new long[connections][perConnection];
+        Thread[] threads = new Thread[2 * connections];
+        Exception[] failure = new Exception[1];
+        long start = System.nanoTime() + 10_000_000L;
+        for (int c = 0; c < connections; c++) {
+            CalculatorClient client = new CalculatorClient(address);
+            long offset = start + interval * c / connections;
+            long[] measured = latencies[c];
+            threads[2 * c] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perConnection; i++) {
+                        long intended = offset + i * interval;
+                        long wait;
+                        while ((wait = intended - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        client.send(CalculatorServer.EVALUATE, STATEMENTS[i % STATEMENTS.length]);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fail(failure, e);
+                    // Wakes the receiver, which would otherwise wait for responses never requested
+                    try {
+                        client.close();
+                    } catch (IOException ignored) {
+                        // Closing anyway
+                    }
+                }
+            }, "load-sender-" + c);
+            threads[2 * c + 1] = new Thread(() -> {
+                try (client) {
+                    for (int i = 0; i < perConnection; i++) {
+                        // Throws IllegalArgumentException for an error response, failing the run
+                        client.receive();
+                        measured[i] = System.nanoTime() - (offset + i * interval);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fail(failure, e);
+                }
+            }, "load-receiver-" + c);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        long[] all = new long[perConnection * connections];
+        for (int c = 0; c < connections; c++) {
+            System.arraycopy(latencies[c], 0, all, c * perConnection, perConnection);
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static void fail(Exception[] failure, Exception e) {
+        synchronized (failure) {
+            if (failure[0] == null) {
+                failure[0] = e;
+            }
+        }
+    }
+
+    /**
+     * Latency at quantile q of sorted latencies, nearest rank.
+     */
+    static long percentile(long[] sorted, double q) {
+        int rank = (int) Math.ceil(q * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static void report(int rate, int seconds, long[] latencies) {
+        System.out.println(String.format("%-10s %8s %10s %10s %10s %10s %10s",
+                                         "rate/s", "seconds", "requests", "p50 us", "p99 us", "p999 us", "max us"));
+        System.out.println(String.format("%-10d %8d %10d %10.1f %10.1f %10.1f %10.1f",
+                                         rate, seconds, latencies.length,
+                                         percentile(latencies, 0.50) / 1e3,
+                                         percentile(latencies, 0.99) / 1e3,
+                                         percentile(latencies, 0.999) / 1e3,
+                                         latencies[latencies.length - 1] / 1e3));
+    }
+}
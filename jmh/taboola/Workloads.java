@@ -0,0 +1,169 @@
+package taboola;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Inputs for the benchmarks, shared by {@link CalculatorBenchmark} (JMH) and
+ * {@link BaselineRunner} so that both measure exactly the same work.
+ *
+ * Every workload is generated from a shape and a size, and evaluates without errors
+ * against a calculator prepared with {@link #seed(Calculator, int)}.
+ */
+final class Workloads {
+
+    enum Shape {
+        // One small assignment
+        SHORT,
+        // Many terms mixing every binary operator and precedence level
+        LONG,
+        // Deeply nested parentheses
+        NESTED,
+        // Many distinct variables read and defined
+        MANY_VARIABLES,
+        // Pre/post increment and decrement everywhere
+        INCREMENTS,
+        // Compound assignments to one accumulator
+        COMPOUND
+    }
+
+    private static final String[] OPERATORS = {" + ", " * ", " - ", " % ", " / "};
+
+    private Workloads() {
+    }
+
+    /**
+     * Defines the variables the workloads read: x, y, i, j, k, m, acc and x0 .. x(size-1).
+     */
+    static void seed(Calculator calc, int size) {
+        calc.setVariable("x", 5);
+        calc.setVariable("y", 3);
+        calc.setVariable("i", 0);
+        calc.setVariable("j", 0);
+        calc.setVariable("k", 10);
+        calc.setVariable("m", 0);
+        calc.setVariable("acc", 1);
+        for (int n = 0; n < size; n++) {
+            calc.setVariable("x" + n, n + 1);
+        }
+    }
+
+    /**
+     * A single statement whose cost grows with size (except SHORT and COMPOUND).
+     * Evaluating it repeatedly keeps the variables bounded, so timings do not drift.
+     */
+    static String expression(Shape shape, int size) {
+        switch (shape) {
+            case SHORT:
+                return "a = x + 8 * y";
+            case LONG:
+                return "a = " + longBody(size, 0);
+            case NESTED:
+                return "a = " + nestedBody(size);
+            case MANY_VARIABLES:
+                return "a = " + sumOfVariables(size);
+            case INCREMENTS:
+                // Every unit changes i and k and then changes them back
+                List<String> units = new ArrayList<>();
+                for (int n = 0; n < Math.max(1, size / 4); n++) {
+                    units.add("(i++ - --k + i-- * ++k)");
+                }
+                return "j = " + String.join(" + ", units);
+            case COMPOUND:
+                return "acc += x * y - acc % 3";
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+
+    /**
+     * A script of size statements of the given shape.
+     */
+    static String[] script(Shape shape, int size) {
+        String[] script = new String[size];
+        for (int n = 0; n < size; n++) {
+            script[n] = statement(shape, n);
+        }
+        return script;
+    }
+
+    private static String statement(Shape shape, int n) {
+        switch (shape) {
+            case SHORT:
+                return "r" + n + " = x + " + n + " * y";
+            case LONG:
+                return "r" + n + " = " + longBody(16, n);
+            case NESTED:
+                return "r" + n + " = " + nestedBody(16);
+            case MANY_VARIABLES:
+                return "v" + n + " = " + (n == 0 ? "x" : "v" + (n - 1) + " + " + n);
+            case INCREMENTS:
+                String[] increments = {"i++", "j = ++i + k--", "--k", "m = i-- - ++k * j++"};
+                return increments[n % increments.length];
+            case COMPOUND:
+                String[] compound = {"acc += x", "acc *= 1.5", "acc -= y", "acc /= 1.25", "acc %= 1000"};
+                return compound[n % compound.length];
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+
+    private static String longBody(int terms, int salt) {
+        StringBuilder sb = new StringBuilder("x");
+        for (int n = 1; n < terms; n++) {
+            sb.append(OPERATORS[(n + salt) % OPERATORS.length]);
+            // Divisors and moduli are never zero
+            sb.append(n % 3 == 0 ? "y" : String.valueOf(n + 1));
+        }
+        return sb.toString();
+    }
+
+    private static String nestedBody(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < depth; n++) {
+            sb.append("(x + ");
+        }
+        sb.append('1');
+        for (int n = 0; n < depth; n++) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    private static String sumOfVariables(int count) {
+        StringBuilder sb = new StringBuilder("x0");
+        for (int n = 1; n < count; n++) {
+            sb.append(" + x").append(n);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A space-separated numeric expression with the given nesting depth, in the form
+     * {@link Calculator#openBrackets(String)} expects, e.g. "( 1 + ( 2 * ( 3 - 1 ) ) )".
+     */
+    static String brackets(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < depth; n++) {
+            sb.append("( ").append(n + 1).append(OPERATORS[n % 3]);
+        }
+        sb.append('1');
+        for (int n = 0; n < depth; n++) {
+            sb.append(" )");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Variables named v0 .. v(size-1), half of them whole numbers and half fractions,
+     * as returned by {@link Calculator#processExpressions(String[])}.
+     */
+    static HashMap<String, Var> results(int size) {
+        Calculator calc = new Calculator();
+        for (int n = 0; n < size; n++) {
+            calc.setVariable("v" + n, n % 2 == 0 ? n * 1000 : n / 7.0);
+        }
+        return calc.variables;
+    }
+}